@@ -0,0 +1,83 @@
+package Server.Bench;
+
+import Server.Common.TransactionManager;
+import Server.Interface.IResourceManager;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * CommitFanOutBench
+ *
+ * Two-phase commit latency of the TransactionManager over four RMs that take 2, 4, 6 and 8 ms
+ * to answer prepare and commit, against the same protocol run one RM after the other.
+ *
+ * Usage: java Server.Bench.CommitFanOutBench [transactions]
+ */
+public class CommitFanOutBench {
+
+    private static final int[] DELAYS_MS = {2, 4, 6, 8};
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        System.setProperty("tm.log", "false");
+        System.setProperty("tm.resolveSeconds", "0");
+
+        List<IResourceManager> rms = new ArrayList<>();
+        for (int delay : DELAYS_MS) {
+            rms.add(slowRM(delay));
+        }
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        TransactionManager tm = new TransactionManager();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < txns; i++) {
+            int tid = tm.start();
+            for (IResourceManager rm : rms) {
+                rm.prepare(tid);
+            }
+            for (IResourceManager rm : rms) {
+                rm.commit(tid);
+            }
+        }
+        double sequential = (System.nanoTime() - start) / 1e6 / txns;
+
+        start = System.nanoTime();
+        for (int i = 0; i < txns; i++) {
+            tm.commit(tm.start(), rms);
+        }
+        double fanOut = (System.nanoTime() - start) / 1e6 / txns;
+
+        System.setOut(console);
+        System.out.printf("RM delays %s ms per call, %d transactions%n", Arrays.toString(DELAYS_MS), txns);
+        System.out.printf("one RM after the other: %.1f ms per commit%n", sequential);
+        System.out.printf("fan-out:                %.1f ms per commit%n", fanOut);
+    }
+
+    // an RM whose prepare and commit take delay ms and succeed
+    private static IResourceManager slowRM(int delay) {
+        return (IResourceManager) Proxy.newProxyInstance(IResourceManager.class.getClassLoader(),
+                new Class<?>[]{IResourceManager.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepare":
+                            Thread.sleep(delay);
+                            return IResourceManager.Vote.YES;
+                        case "commit":
+                        case "abort":
+                            Thread.sleep(delay);
+                            return true;
+                        case "toString":
+                            return "RM(" + delay + " ms)";
+                        case "getInDoubt":
+                            return new int[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,154 @@
+package Server.Bench;
+
+import Server.Common.Middleware;
+import Server.Interface.IResourceManager;
+import Server.RMI.RMICarServer;
+import Server.RMI.RMICustomerServer;
+import Server.RMI.RMIFlightServer;
+import Server.RMI.RMIRoomServer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CommitRoundTripBench
+ *
+ * Commit protocol calls (prepare, commit, commitOnePhase, abort) the middleware makes per
+ * transaction on a mixed workload, with plain two-phase commit (-Dtm.plain2pc=true) and with the
+ * read-only vote and one-phase commit. The four RMs run in-process without logging; every call to
+ * them is counted. The mix:
+ *  - 40% query one flight
+ *  - 15% query a customer, a flight price and a car location (three RMs, all reads)
+ *  - 15% add seats to a flight (one RM, a write)
+ *  - 10% query a flight, then add rooms (one write, one read)
+ *  - 20% reserve a flight for a customer (two RMs with writes)
+ *
+ * Usage: java Server.Bench.CommitRoundTripBench [transactions]
+ */
+public class CommitRoundTripBench {
+
+    private static final int ITEMS = 100;
+
+    private static final String[] KINDS = {
+            "read one RM", "read three RMs", "write one RM", "write one, read one", "write two RMs"};
+    private static final int[] MIX = {40, 15, 15, 10, 20};
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        System.setProperty("rm.log", "false");
+        System.setProperty("tm.log", "false");
+        System.setProperty("tm.resolveSeconds", "0");
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.setProperty("tm.plain2pc", "true");
+        long[][] plain = run(txns);
+        System.setProperty("tm.plain2pc", "false");
+        long[][] optimized = run(txns);
+        System.setOut(console);
+
+        System.out.printf("%d transactions, commit protocol calls per transaction%n", txns);
+        System.out.printf("%-22s %8s %10s %10s%n", "", "share", "plain 2PC", "shortcuts");
+        long plainTotal = 0;
+        long optimizedTotal = 0;
+        for (int k = 0; k < KINDS.length; k++) {
+            System.out.printf("%-22s %7d%% %10.2f %10.2f%n", KINDS[k], MIX[k],
+                    (double) plain[1][k] / plain[0][k], (double) optimized[1][k] / optimized[0][k]);
+            plainTotal += plain[1][k];
+            optimizedTotal += optimized[1][k];
+        }
+        System.out.printf("%-22s %8s %10.2f %10.2f%n", "all", "",
+                (double) plainTotal / txns, (double) optimizedTotal / txns);
+    }
+
+    // {transactions, commit protocol calls} per kind
+    private static long[][] run(int txns) throws Exception {
+        AtomicLong calls = new AtomicLong();
+        Middleware mw = new Middleware(counted(new RMIFlightServer("Flights"), calls),
+                counted(new RMICarServer("Cars"), calls),
+                counted(new RMIRoomServer("Rooms"), calls),
+                counted(new RMICustomerServer("Customers"), calls));
+
+        int tid = mw.startTransaction();
+        for (int i = 0; i < ITEMS; i++) {
+            mw.addFlight(tid, "F" + i, 1_000_000, 100);
+            mw.addCars(tid, "L" + i, 1_000_000, 50);
+            mw.addRooms(tid, "L" + i, 1_000_000, 80);
+            mw.newCustomerID(tid, i + 1);
+        }
+        mw.commitTransaction(tid);
+
+        long[][] counts = new long[2][KINDS.length];
+        Random random = new Random(42);
+        for (int i = 0; i < txns; i++) {
+            int kind = pick(random.nextInt(100));
+            String item = String.valueOf(random.nextInt(ITEMS));
+            int cid = 1 + random.nextInt(ITEMS);
+
+            tid = mw.startTransaction();
+            switch (kind) {
+                case 0:
+                    mw.queryFlight(tid, "F" + item);
+                    break;
+                case 1:
+                    mw.queryCustomerInfo(tid, cid);
+                    mw.queryFlightPrice(tid, "F" + item);
+                    mw.queryCars(tid, "L" + item);
+                    break;
+                case 2:
+                    mw.addFlight(tid, "F" + item, 1, 100);
+                    break;
+                case 3:
+                    mw.queryFlight(tid, "F" + item);
+                    mw.addRooms(tid, "L" + item, 1, 80);
+                    break;
+                default:
+                    mw.reserveFlight(tid, cid, "F" + item);
+                    break;
+            }
+            long before = calls.get();
+            if (!mw.commitTransaction(tid)) {
+                throw new IllegalStateException("T" + tid + " aborted");
+            }
+            counts[0][kind]++;
+            counts[1][kind] += calls.get() - before;
+        }
+        return counts;
+    }
+
+    private static int pick(int percent) {
+        for (int k = 0; k < MIX.length; k++) {
+            if (percent < MIX[k]) {
+                return k;
+            }
+            percent -= MIX[k];
+        }
+        return MIX.length - 1;
+    }
+
+    // rm, counting its commit protocol calls
+    private static IResourceManager counted(IResourceManager rm, AtomicLong calls) {
+        return (IResourceManager) Proxy.newProxyInstance(IResourceManager.class.getClassLoader(),
+                new Class<?>[]{IResourceManager.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "prepare":
+                        case "commit":
+                        case "commitOnePhase":
+                        case "abort":
+                            calls.incrementAndGet();
+                            break;
+                        default:
+                            break;
+                    }
+                    try {
+                        return method.invoke(rm, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+}
@@ -0,0 +1,123 @@
+package Server.Bench;
+
+import Server.TCP.TCPFlightRM;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ConnectionScaleBench
+ *
+ * What an RM pays for its open connections: a TCPFlightRM in this JVM takes more and more
+ * middleware connections, each of which sends a Ping, and after each step the bench reports the
+ * RM's threads, the heap and resident memory per connection, and how long a round of one Ping on
+ * every connection takes. The client sockets live in the same JVM, so their share is counted too.
+ * Resident memory is read from /proc/self/status, where there is one.
+ *
+ * Usage: java Server.Bench.ConnectionScaleBench [connections,...] [port]
+ */
+public class ConnectionScaleBench {
+
+    private static final String NAME = "FlightRM";
+
+    public static void main(String[] args) throws Exception {
+        String[] steps = (args.length > 0 ? args[0] : "100,1000,4000").split(",");
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5101;
+        System.setProperty("rm.log", "false");
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        TCPFlightRM rm = new TCPFlightRM(NAME, port);
+        Thread server = new Thread(rm::start, "server");
+        server.setDaemon(true);
+        server.start();
+        long heap0 = usedHeap();
+        long rss0 = residentKb();
+
+        console.printf("%12s %10s %16s %16s %14s%n", "connections", "RM threads", "heap B/conn", "RSS B/conn", "ping round ms");
+        List<Client> clients = new ArrayList<>();
+        for (String step : steps) {
+            int n = Integer.parseInt(step.trim());
+            while (clients.size() < n) {
+                clients.add(new Client(port));
+            }
+            pingAll(clients); // every connection has been read from and answered once
+            long start = System.nanoTime();
+            pingAll(clients);
+            double round = (System.nanoTime() - start) / 1e6;
+            long heap = usedHeap() - heap0;
+            long rss = residentKb();
+            console.printf("%12d %10d %16d %16s %14.1f%n", n, rmThreads(), heap / n,
+                    (rss < 0 || rss0 < 0) ? "-" : String.valueOf((rss - rss0) * 1024 / n), round);
+        }
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        System.exit(0);
+    }
+
+    // a Ping on every connection, then every reply
+    private static void pingAll(List<Client> clients) throws IOException {
+        for (Client client : clients) {
+            client.out.write("1,Ping\n".getBytes(StandardCharsets.UTF_8));
+            client.out.flush();
+        }
+        for (Client client : clients) {
+            String reply = client.in.readLine();
+            if (!"OK".equals(reply)) throw new IllegalStateException("Ping -> " + reply);
+        }
+    }
+
+    // its I/O loops and workers, or the default pool a thread-per-connection server runs
+    private static int rmThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith(NAME) || t.getName().startsWith("pool-") || t.getName().equals("server")) n++;
+        }
+        return n;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // -1 where the JVM can't tell
+    private static long residentKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    private static final class Client {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        private Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+    }
+}
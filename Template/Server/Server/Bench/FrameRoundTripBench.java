@@ -0,0 +1,255 @@
+package Server.Bench;
+
+import Server.TCP.TCPCarRM;
+import Server.TCP.TCPCustomerRM;
+import Server.TCP.TCPFlightRM;
+import Server.TCP.TCPMiddleware;
+import Server.TCP.TCPRoomRM;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * FrameRoundTripBench
+ *
+ * Requests the TCP middleware sends to the RMs per transaction, commit protocol included, and
+ * time per transaction, with every message in its own round trip, one after the other
+ * (-Dtm.frames=false), and with a frame per RM, the frames of different RMs at once. The four TCP
+ * RMs and the middlewares run in-process without logging; a client runs each kind of transaction
+ * over a socket. Given a round-trip time, the RMs sit behind relays that hold everything for half
+ * of it each way, so time per transaction shows how many round trips are waited for one after
+ * the other. The kinds:
+ *  - one query
+ *  - 20 operations at one RM (10 adds, 10 queries)
+ *  - 20 operations over the four RMs
+ *  - 4 reservations for a customer (two flights, a car, a room)
+ *  - a bundle of 3 flights, a car and a room
+ *
+ * Usage: java Server.Bench.FrameRoundTripBench [transactions per kind] [round-trip ms]
+ */
+public class FrameRoundTripBench {
+
+    private static final int ITEMS = 20;
+    private static final Pattern REQUESTS = Pattern.compile("requests=(\\d+)");
+
+    private static final String[] KINDS = {
+            "one query", "20 ops, one RM", "20 ops, four RMs", "4 reservations", "bundle of 5"};
+
+    public static void main(String[] args) throws Exception {
+        int txns = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        long rttMillis = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        System.setProperty("rm.log", "false");
+        System.setProperty("tm.log", "false");
+        System.setProperty("tm.resolveSeconds", "0");
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        startRMs(rttMillis);
+        System.setProperty("tm.frames", "false");
+        double[][] unframed = run(3036, txns);
+        System.setProperty("tm.frames", "true");
+        double[][] framed = run(3037, txns);
+        System.setOut(console);
+
+        System.out.printf("%d transactions per kind, %d ms round trip to the RMs%n", txns, rttMillis);
+        System.out.println("RM round trips per transaction (and ms per transaction)");
+        System.out.printf("%-18s %20s %20s%n", "", "message each", "frame per RM");
+        for (int k = 0; k < KINDS.length; k++) {
+            System.out.printf("%-18s %11.2f %6.2f ms %11.2f %6.2f ms%n", KINDS[k],
+                    unframed[0][k], unframed[1][k], framed[0][k], framed[1][k]);
+        }
+        System.exit(0); // the RMs and middlewares don't stop
+    }
+
+    // the middlewares expect the RMs at 5001-5004; with a round-trip time, relays take those ports
+    private static void startRMs(long rttMillis) throws IOException {
+        int base = (rttMillis > 0) ? 6000 : 5000;
+        TCPFlightRM flights = new TCPFlightRM("FlightRM", base + 1);
+        TCPCarRM cars = new TCPCarRM("CarRM", base + 2);
+        TCPRoomRM rooms = new TCPRoomRM("RoomRM", base + 3);
+        TCPCustomerRM customers = new TCPCustomerRM("CustomerRM", base + 4);
+        daemon(flights::start);
+        daemon(cars::start);
+        daemon(rooms::start);
+        daemon(customers::start);
+        if (rttMillis > 0) {
+            for (int i = 1; i <= 4; i++) {
+                relay(5000 + i, 6000 + i, rttMillis / 2);
+            }
+        }
+    }
+
+    // forward connections to port from to port to, holding what goes through for delayMillis each way
+    private static void relay(int from, int to, long delayMillis) throws IOException {
+        ServerSocket server = new ServerSocket(from);
+        daemon(() -> {
+            while (true) {
+                try {
+                    Socket a = server.accept();
+                    Socket b = new Socket("localhost", to);
+                    a.setTcpNoDelay(true);
+                    b.setTcpNoDelay(true);
+                    pump(a, b, delayMillis);
+                    pump(b, a, delayMillis);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    private static void pump(Socket from, Socket to, long delayMillis) {
+        // one thread, same delay for every chunk: they go out in the order they came in
+        ScheduledExecutorService later = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        daemon(() -> {
+            byte[] buf = new byte[8192];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    byte[] chunk = Arrays.copyOf(buf, n);
+                    later.schedule(() -> {
+                        out.write(chunk);
+                        return null;
+                    }, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+    }
+
+    // {round trips, ms} per transaction, per kind
+    private static double[][] run(int port, int txns) throws Exception {
+        TCPMiddleware mw = new TCPMiddleware(port, 4);
+        daemon(() -> {
+            try {
+                mw.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        try (Socket socket = connect(port);
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            List<String> setup = new ArrayList<>();
+            for (int i = 0; i < ITEMS; i++) {
+                setup.add("AddFlight,F" + i + ",1000000,100");
+                setup.add("AddCars,L" + i + ",1000000,50");
+                setup.add("AddRooms,L" + i + ",1000000,80");
+                setup.add("AddCustomerID," + (port * 100 + i));
+            }
+            transaction(out, in, setup);
+
+            double[][] perTxn = new double[2][KINDS.length];
+            for (int k = 0; k < KINDS.length; k++) {
+                long before = requests(mw);
+                long start = System.nanoTime();
+                for (int t = 0; t < txns; t++) {
+                    transaction(out, in, ops(k, t, port * 100 + t % ITEMS));
+                }
+                perTxn[0][k] = (double) (requests(mw) - before) / txns;
+                perTxn[1][k] = (System.nanoTime() - start) / 1e6 / txns;
+            }
+            return perTxn;
+        }
+    }
+
+    private static List<String> ops(int kind, int t, int cid) {
+        List<String> ops = new ArrayList<>();
+        String item = String.valueOf(t % ITEMS);
+        switch (kind) {
+            case 0:
+                ops.add("QueryFlight,F" + item);
+                break;
+            case 1:
+                for (int i = 0; i < 10; i++) {
+                    ops.add("AddFlight,F" + (t + i) % ITEMS + ",1,100");
+                    ops.add("QueryFlight,F" + (t + i) % ITEMS);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < 5; i++) {
+                    String other = String.valueOf((t + i) % ITEMS);
+                    ops.add("AddFlight,F" + other + ",1,100");
+                    ops.add("AddCars,L" + other + ",1,50");
+                    ops.add("QueryRooms,L" + other);
+                    ops.add("QueryCustomer," + cid);
+                }
+                break;
+            case 3:
+                ops.add("ReserveFlight," + cid + ",F" + item);
+                ops.add("ReserveFlight," + cid + ",F" + (t + 1) % ITEMS);
+                ops.add("ReserveCar," + cid + ",L" + item);
+                ops.add("ReserveRoom," + cid + ",L" + item);
+                break;
+            default:
+                ops.add("Bundle," + cid + ",F" + item + ",F" + (t + 1) % ITEMS + ",F" + (t + 2) % ITEMS
+                        + ",L" + item + ",true,true");
+                break;
+        }
+        return ops;
+    }
+
+    private static void transaction(PrintWriter out, BufferedReader in, List<String> ops) throws IOException {
+        out.println("Start");
+        in.readLine(); // TID,<tid>
+        ops.forEach(out::println);
+        out.println("Commit");
+        String line;
+        String last = null;
+        while (!(line = in.readLine()).equals("TXN_RESULT_END")) {
+            last = line;
+        }
+        if (last == null || !last.endsWith("COMMITTED")) {
+            throw new IllegalStateException(last);
+        }
+    }
+
+    private static long requests(TCPMiddleware mw) {
+        long sum = 0;
+        Matcher m = REQUESTS.matcher(mw.getPoolStats());
+        while (m.find()) {
+            sum += Long.parseLong(m.group(1));
+        }
+        return sum;
+    }
+
+    private static Socket connect(int port) throws InterruptedException {
+        while (true) {
+            try {
+                Socket socket = new Socket("localhost", port);
+                socket.setTcpNoDelay(true); // a transaction is several lines written back to back
+                return socket;
+            } catch (IOException e) {
+                Thread.sleep(50); // not listening yet
+            }
+        }
+    }
+
+    private static void daemon(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,70 @@
+package Server.Bench;
+
+import Server.Common.Flight;
+import Server.Common.LogRecord;
+import Server.Common.RMItem;
+import Server.Common.RedoLog;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * GroupCommitBench
+ *
+ * Commit throughput of the redo log: each thread appends a COMMIT record the size of a one-item
+ * reservation and waits for it to be durable, over and over. Run once flushing as soon as anyone
+ * waits (batch 1, no linger) and once lingering for a batch, for each thread count.
+ *
+ * Usage: java Server.Bench.GroupCommitBench [commitsPerThread] [dir]
+ */
+public class GroupCommitBench {
+
+    public static void main(String[] args) throws Exception {
+        int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        Path dir = args.length > 1 ? Path.of(args[1]) : Files.createTempDirectory("redo-bench");
+
+        System.out.println("threads  mode           commits/s   fsyncs/commit");
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            run(dir, threads, perThread, 1, 0, "no-linger");
+            run(dir, threads, perThread, RedoLog.DEFAULT_BATCH, RedoLog.DEFAULT_LINGER_MICROS, "linger");
+        }
+    }
+
+    private static void run(Path dir, int threads, int perThread, int batch, long lingerMicros, String mode) throws Exception {
+        Path file = dir.resolve(mode + "-" + threads + ".log");
+        Files.deleteIfExists(file);
+        RedoLog log = new RedoLog(file, batch, lingerMicros);
+        Map<String, RMItem> writes = Collections.singletonMap("flight-42", new Flight("42", 100, 350));
+        byte[] payload = LogRecord.commit(1, 1, writes).encode();
+
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    go.await();
+                    for (int i = 0; i < perThread; i++) {
+                        log.appendAndForce(payload);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            workers[t].start();
+        }
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread w : workers) {
+            w.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long commits = (long) threads * perThread;
+        System.out.printf("%7d  %-13s %10.0f   %13.3f%n", threads, mode, commits / seconds,
+                (double) log.getFlushCount() / commits);
+        log.close();
+        Files.deleteIfExists(file);
+    }
+}
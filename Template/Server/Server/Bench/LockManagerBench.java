@@ -0,0 +1,93 @@
+package Server.Bench;
+
+import Server.Common.LockManager;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LockManagerBench
+ *
+ * Multi-threaded lock/unlock throughput of one LockManager, for 1..N threads.
+ * Each operation is a short transaction: lock a few random keys (mostly READ, some WRITE),
+ * then release them all. Conflicts are refused rather than waited on, so the numbers
+ * measure the lock table itself.
+ *
+ * Usage: java Server.Bench.LockManagerBench [keys] [locksPerTxn] [seconds] [maxThreads]
+ */
+public class LockManagerBench {
+
+    public static void main(String[] args) throws Exception {
+        int keys = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int locksPerTxn = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        String[] keySpace = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            keySpace[i] = "flight-" + i;
+        }
+
+        // the lock manager logs every release; keep the console out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        console.println("keys=" + keys + " locksPerTxn=" + locksPerTxn + " seconds=" + seconds);
+        console.println("threads\ttxn/s\tlock+unlock/s");
+        for (int threads = 1; threads <= maxThreads; threads <<= 1) {
+            run(new LockManager(64, 0), keySpace, locksPerTxn, 1, threads); // warm-up
+            double txnPerSec = run(new LockManager(64, 0), keySpace, locksPerTxn, seconds, threads);
+            console.printf("%d\t%.0f\t%.0f%n", threads, txnPerSec, txnPerSec * locksPerTxn);
+        }
+        System.setOut(console);
+    }
+
+    private static double run(LockManager lm, String[] keySpace, int locksPerTxn, int seconds, int threads)
+            throws InterruptedException {
+        AtomicInteger tidGen = new AtomicInteger(1);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        LongAdder done = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                ready.countDown();
+                try {
+                    go.await();
+                    while (!stop.get()) {
+                        int tid = tidGen.getAndIncrement();
+                        for (int i = 0; i < locksPerTxn; i++) {
+                            String key = keySpace[rnd.nextInt(keySpace.length)];
+                            LockManager.LockType type = rnd.nextInt(4) == 0 ? LockManager.LockType.WRITE : LockManager.LockType.READ;
+                            lm.lock(tid, key, type);
+                        }
+                        lm.releaseLocks(tid);
+                        done.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }, "bench-" + t);
+            workers[t].start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        Thread.sleep(seconds * 1000L);
+        stop.set(true);
+        for (Thread w : workers) {
+            w.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        return done.sum() / elapsed;
+    }
+}
@@ -0,0 +1,87 @@
+package Server.Bench;
+
+import Server.RMI.RMIFlightServer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * RecoveryBench
+ *
+ * Restart time of a flight RM holding many items: once from a fuzzy checkpoint plus the log written
+ * after it, and once replaying its whole redo log. Items are loaded in transactions of 1000 adds
+ * and each is reserved once, then a checkpoint is taken and a tail of single-reservation
+ * commits follows it. After each restart, 10k flights nobody asked for yet are queried.
+ *
+ * Usage: java Server.Bench.RecoveryBench [items] [tailCommits]
+ */
+public class RecoveryBench {
+
+    public static void main(String[] args) throws Exception {
+        int items = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int tail = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        Path dir = Files.createTempDirectory("recovery-bench");
+        System.setProperty("rm.logdir", dir.toString());
+        System.setProperty("rm.checkpoint.seconds", "0"); // checkpoint when the bench says so
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        RMIFlightServer flights = new RMIFlightServer("Flights");
+        int tid = 1;
+        for (int i = 0; i < items; tid++) {
+            for (int end = Math.min(items, i + 1000); i < end; i++) {
+                flights.addFlight(tid, String.valueOf(i), 100, 200);
+            }
+            flights.commit(tid);
+        }
+        // history the checkpoint makes obsolete: every item reserved once, 50 per transaction
+        for (int i = 0; i < items; tid++) {
+            for (int end = Math.min(items, i + 50); i < end; i++) {
+                flights.reserveFlight(tid, 1, String.valueOf(i));
+            }
+            flights.prepare(tid);
+            flights.commit(tid);
+        }
+        flights.checkpoint();
+        for (int i = 0; i < tail; i++, tid++) {
+            flights.reserveFlight(tid, 1, String.valueOf(i % items));
+            flights.prepare(tid);
+            flights.commit(tid);
+        }
+        flights.closeLog();
+        long log = Files.size(dir.resolve("Flights.log"));
+        long checkpoint = Files.size(dir.resolve("Flights.ckpt"));
+
+        long[] fromCheckpoint = restart(items);
+        Files.delete(dir.resolve("Flights.ckpt"));
+        long[] full = restart(items);
+
+        System.setOut(console);
+        System.out.println("items=" + items + " transactions=" + (tid - 1) + " log=" + log / 1024
+                + " KB checkpoint=" + checkpoint / 1024 + " KB");
+        System.out.printf("restart, checkpoint + %d commits of log: %d ms, then %.1f us per first query%n",
+                tail, fromCheckpoint[0], fromCheckpoint[1] / 1e3);
+        System.out.printf("restart, whole log: %d ms, then %.1f us per first query%n", full[0], full[1] / 1e3);
+    }
+
+    // time bringing the RM back up from what it left on disk (ms), then its first queries (ns each)
+    private static long[] restart(int items) throws Exception {
+        System.gc();
+        long start = System.nanoTime();
+        RMIFlightServer restarted = new RMIFlightServer("Flights");
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        int queries = Math.min(items, 10_000);
+        start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            restarted.queryFlight(-1, String.valueOf((int) ((i * 2654435761L) % items)));
+        }
+        long perQuery = (System.nanoTime() - start) / queries;
+        restarted.commit(-1);
+        restarted.closeLog();
+        return new long[]{millis, perQuery};
+    }
+}
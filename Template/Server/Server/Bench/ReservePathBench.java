@@ -0,0 +1,86 @@
+package Server.Bench;
+
+import Server.RMI.RMICustomerServer;
+import Server.RMI.RMIFlightServer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * ReservePathBench
+ *
+ * Heap allocated per transaction on the flight reservation path, run in-process against a flight
+ * RM and a customer RM the way the middleware drives them: customerExists, queryFlightPrice,
+ * reserveFlight, customerReserve, then prepare/commit at both RMs. The customer starts with a
+ * number of reservations already, since that is what made every copy of it expensive.
+ * Allocation is read from the JVM's per-thread allocation counter.
+ *
+ * Usage: java Server.Bench.ReservePathBench [reservationsPerCustomer] [transactions]
+ */
+public class ReservePathBench {
+
+    public static void main(String[] args) throws Exception {
+        int existing = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int txns = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        System.setProperty("rm.log", "false"); // in memory only, this measures the reserve path itself
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long me = Thread.currentThread().getId();
+
+        // the RMs log every call; keep the console out of the measurement
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        RMIFlightServer flights = new RMIFlightServer("Flights");
+        RMICustomerServer customers = new RMICustomerServer("Customers");
+        int cid = 42;
+        int tid = 1;
+        for (int f = 0; f < existing; f++) {
+            flights.addFlight(tid, String.valueOf(f), Integer.MAX_VALUE / 2, 100 + f);
+        }
+        customers.newCustomerID(tid, cid);
+        for (int f = 0; f < existing; f++) {
+            customers.customerReserve(tid, cid, "flight-" + f, 1, 100 + f);
+        }
+        flights.commit(tid);
+        customers.commit(tid);
+
+        run(flights, customers, cid, existing, 2, txns / 4); // warm-up
+        long startBytes = threads.getThreadAllocatedBytes(me);
+        long start = System.nanoTime();
+        run(flights, customers, cid, existing, 100_000, txns);
+        long nanos = System.nanoTime() - start;
+        long bytes = threads.getThreadAllocatedBytes(me) - startBytes;
+
+        long existsBytes = threads.getThreadAllocatedBytes(me);
+        for (int i = 0; i < txns; i++) {
+            int t = 10_000_000 + i;
+            customers.customerExists(t, cid);
+            customers.commit(t);
+        }
+        existsBytes = threads.getThreadAllocatedBytes(me) - existsBytes;
+
+        System.setOut(console);
+        System.out.println("reservationsPerCustomer=" + existing + " transactions=" + txns);
+        System.out.printf("reserve txn: %.0f bytes/txn, %.1f us/txn%n", (double) bytes / txns, nanos / 1e3 / txns);
+        System.out.printf("customerExists txn: %.0f bytes/txn%n", (double) existsBytes / txns);
+    }
+
+    private static void run(RMIFlightServer flights, RMICustomerServer customers, int cid,
+                            int flightCount, int firstTid, int txns) throws Exception {
+        for (int i = 0; i < txns; i++) {
+            int tid = firstTid + i;
+            String flight = String.valueOf(i % flightCount);
+            customers.customerExists(tid, cid);
+            int price = flights.queryFlightPrice(tid, flight);
+            flights.reserveFlight(tid, cid, flight);
+            customers.customerReserve(tid, cid, "flight-" + flight, 1, price);
+            flights.prepare(tid);
+            customers.prepare(tid);
+            flights.commit(tid);
+            customers.commit(tid);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package Server.Bench;
+
+import Server.Common.TransactionManager;
+import Server.Common.TransactionManager.TransactionStatus;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StatusTableBench
+ *
+ * Heap held by transaction statuses under sustained load: a TransactionManager runs start and
+ * commit for millions of transactions (no participants, nothing logged), and live heap is read
+ * after a full GC every million. Next to it, the same statuses in a ConcurrentHashMap keyed by
+ * tid, the way the TM kept them before.
+ *
+ * Usage: java Server.Bench.StatusTableBench [millions]
+ */
+public class StatusTableBench {
+
+    public static void main(String[] args) throws Exception {
+        int millions = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        System.setProperty("tm.log", "false");
+        System.setProperty("tm.idleTimeoutSeconds", "0");
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        TransactionManager tm = new TransactionManager();
+        long base = usedHeap(); // the table's ring is allocated already
+        long[] table = new long[millions];
+        for (int m = 0; m < millions; m++) {
+            for (int i = 0; i < 1_000_000; i++) {
+                tm.commit(tm.start(), Collections.emptyList());
+            }
+            table[m] = usedHeap() - base;
+        }
+        tm = null;
+
+        base = usedHeap();
+        Map<Integer, TransactionStatus> map = new ConcurrentHashMap<>();
+        long[] boxed = new long[millions];
+        int tid = 1;
+        for (int m = 0; m < millions; m++) {
+            for (int i = 0; i < 1_000_000; i++, tid++) {
+                map.put(tid, TransactionStatus.COMMITTED);
+            }
+            boxed[m] = usedHeap() - base;
+        }
+        System.setOut(console);
+
+        System.out.printf("%-14s %16s %16s%n", "transactions", "status table", "map by tid");
+        for (int m = 0; m < millions; m++) {
+            System.out.printf("%-14s %13.1f MB %13.1f MB%n", (m + 1) + "M", table[m] / 1e6, boxed[m] / 1e6);
+        }
+        System.out.println("map entries at the end: " + map.size());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
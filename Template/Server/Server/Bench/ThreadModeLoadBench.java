@@ -0,0 +1,222 @@
+package Server.Bench;
+
+import Server.Common.Threads;
+import Server.TCP.TCPCarRM;
+import Server.TCP.TCPCustomerRM;
+import Server.TCP.TCPFlightRM;
+import Server.TCP.TCPMiddleware;
+import Server.TCP.TCPRoomRM;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ThreadModeLoadBench
+ *
+ * The TCP middleware and its four RMs under many concurrent clients, on platform threads and on
+ * virtual threads (see Threads). For each mode and client count, the servers run in a JVM of their
+ * own, started with or without -Dthreads.virtual=true; this one opens every client connection,
+ * then has all of them run a transaction at once: Start, AddFlight and QueryFlight on a flight of
+ * the client's own, and Commit. Reported: how long opening the connections and the round of
+ * transactions took, transactions per second, how many committed, and the server JVM's live and
+ * peak threads and resident memory (from /proc, where there is one) at the end.
+ *
+ * A few threads here drive all the clients, writing each request to every connection before
+ * reading the replies, so the client count is what is in flight at the server, not a thread count.
+ *
+ * Usage: java Server.Bench.ThreadModeLoadBench [clients,...] [middleware workers]
+ */
+public class ThreadModeLoadBench {
+
+    private static final int PORT = 3135;
+    private static final int DRIVERS = 4;
+
+    private static boolean fellBack;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(Integer.parseInt(args[1]));
+            return;
+        }
+        String[] counts = (args.length > 0 ? args[0] : "1000,10000").split(",");
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        System.out.printf("%-9s %8s %10s %10s %10s %10s %9s %9s %10s%n", "mode", "clients", "connect ms",
+                "round ms", "txn/s", "committed", "threads", "peak", "RSS MB");
+        for (String count : counts) {
+            for (boolean virtual : new boolean[]{false, true}) {
+                run(virtual, Integer.parseInt(count.trim()), workers);
+            }
+        }
+        if (fellBack) {
+            System.out.println("* virtual threads asked for, but this JVM ran platform threads: they need Java 21");
+        }
+        System.exit(0);
+    }
+
+    private static void run(boolean virtual, int clients, int workers) throws Exception {
+        Process server = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), "-Dthreads.virtual=" + virtual,
+                "-Drm.log=false", "-Dtm.log=false", "-Dtm.resolveSeconds=0",
+                ThreadModeLoadBench.class.getName(), "serve", String.valueOf(workers))
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        BufferedReader control = new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        PrintStream command = new PrintStream(server.getOutputStream(), true, StandardCharsets.UTF_8);
+        String mode = control.readLine(); // once it listens
+        if (mode == null) throw new IllegalStateException("server JVM exited");
+        if (virtual && !mode.equals("virtual")) {
+            mode = "virtual*";
+            fellBack = true;
+        }
+
+        List<Client> all = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            all.add(new Client(i));
+        }
+        double connect = (System.nanoTime() - start) / 1e6;
+
+        List<List<Client>> slices = new ArrayList<>();
+        for (int d = 0; d < DRIVERS; d++) {
+            slices.add(all.subList(d * clients / DRIVERS, (d + 1) * clients / DRIVERS));
+        }
+        int[] committed = new int[DRIVERS];
+        Thread[] drivers = new Thread[DRIVERS];
+        start = System.nanoTime();
+        for (int d = 0; d < DRIVERS; d++) {
+            int slice = d;
+            drivers[d] = new Thread(() -> committed[slice] = transactions(slices.get(slice)));
+            drivers[d].start();
+        }
+        int total = 0;
+        for (int d = 0; d < DRIVERS; d++) {
+            drivers[d].join();
+            total += committed[d];
+        }
+        double round = (System.nanoTime() - start) / 1e6;
+
+        command.println("stats");
+        String[] stats = control.readLine().split(",");
+        System.out.printf("%-9s %8d %10.0f %10.0f %10.0f %10d %9s %9s %10s%n", mode, clients, connect, round,
+                clients / (round / 1000), total, stats[0], stats[1], stats[2]);
+        for (Client client : all) {
+            client.socket.close();
+        }
+        server.destroy();
+        server.waitFor();
+    }
+
+    // one transaction on every client at once; the number committed
+    private static int transactions(List<Client> clients) {
+        try {
+            for (Client client : clients) {
+                client.send("Start\n");
+            }
+            for (Client client : clients) {
+                String tid = client.in.readLine();
+                if (tid == null || !tid.startsWith("TID,")) throw new IllegalStateException("Start -> " + tid);
+            }
+            for (Client client : clients) {
+                client.send("AddFlight,L" + client.id + ",10,100\nQueryFlight,L" + client.id + "\nCommit\n");
+            }
+            int committed = 0;
+            for (Client client : clients) {
+                String line;
+                while ((line = client.in.readLine()) != null && !line.equals("TXN_RESULT_END")) {
+                    if (line.endsWith(" COMMITTED")) committed++;
+                }
+            }
+            return committed;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the server JVM: RMs and middleware, then a line of stats for each line on stdin
+    private static void serve(int workers) throws Exception {
+        PrintStream control = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        TCPFlightRM flight = new TCPFlightRM("FlightRM", 5001);
+        TCPCarRM car = new TCPCarRM("CarRM", 5002);
+        TCPRoomRM room = new TCPRoomRM("RoomRM", 5003);
+        TCPCustomerRM customer = new TCPCustomerRM("CustomerRM", 5004);
+        TCPMiddleware middleware = new TCPMiddleware(PORT, workers);
+        daemon(flight::start);
+        daemon(car::start);
+        daemon(room::start);
+        daemon(customer::start);
+        daemon(() -> {
+            try {
+                middleware.start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        // listening once its RM pools are connected
+        while (middleware.getPoolStats().contains("open=0")) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200);
+        control.println(Threads.VIRTUAL ? "virtual" : "platform");
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        while (in.readLine() != null) {
+            long rss = residentKb();
+            control.println(threads.getThreadCount() + "," + threads.getPeakThreadCount() + ","
+                    + (rss < 0 ? "-" : String.valueOf(rss / 1024)));
+        }
+        System.exit(0);
+    }
+
+    private static void daemon(Runnable task) {
+        Thread t = new Thread(task);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // -1 where the JVM can't tell
+    private static long residentKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not Linux
+        }
+        return -1;
+    }
+
+    private static final class Client {
+        private final int id;
+        private final Socket socket;
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        private Client(int id) throws IOException {
+            this.id = id;
+            socket = new Socket("localhost", PORT);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 256);
+        }
+
+        private void send(String lines) throws IOException {
+            out.write(lines.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package Server.Bench;
+
+import Server.TCPHelper.RMFrames;
+import Server.TCPHelper.RMRequest;
+import Server.TCPHelper.WireFormat;
+
+import java.lang.management.ManagementFactory;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * WireFormatBench
+ *
+ * Cost of getting requests from the middleware to the RMs and their replies back, in text lines
+ * and in binary frames (see WireFormat), without the sockets: time and heap allocated per
+ * message, and its size on the wire. For a request, the middleware encodes it and the RM decodes
+ * it and reads its arguments the way its handler does; for a reply, the RM encodes it and the
+ * middleware decodes it. Text does what RMConnection and MiddlewareConnection do with lines (the
+ * "#<id>," tag included), binary what they do with frames, into buffers reused throughout.
+ * Allocation is read from the JVM's per-thread allocation counter.
+ *
+ * Usage: java Server.Bench.WireFormatBench [iterations]
+ */
+public class WireFormatBench {
+
+    private static final String[] KINDS = {"add", "query price", "customer reserve", "frame of 20"};
+
+    private static long sink; // keeps the JIT from dropping work whose result is unused
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long me = Thread.currentThread().getId();
+
+        String[][] messages = new String[KINDS.length][];
+        messages[0] = new String[]{"1042,AddFlight,F42,100,250", "OK"};
+        messages[1] = new String[]{"1042,QueryFlightPrice,F42", "OK,250"};
+        messages[2] = new String[]{"1042,CustomerReserve,42,flight-F42,1,250", "OK"};
+        StringBuilder frame = new StringBuilder("1042,Batch,");
+        StringBuilder replies = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            String sep = (i == 0) ? "" : RMFrames.SEPARATOR;
+            frame.append(sep).append((i % 2 == 0) ? "AddFlight,F" + i + ",100,250" : "QueryFlight,F" + i);
+            replies.append(sep).append((i % 2 == 0) ? "OK" : "OK,100");
+        }
+        messages[3] = new String[]{frame.toString(), replies.toString()};
+
+        // every codec on every kind once first, so none is measured while the JIT is still at work
+        long[][][] results = null;
+        for (int pass = 0; pass < 2; pass++) {
+            results = new long[KINDS.length][][];
+            for (int k = 0; k < KINDS.length; k++) {
+                boolean batch = k == 3;
+                String[] reply = messages[k][1].split(RMFrames.SEPARATOR, -1); // as the RM has them
+                results[k] = new long[][]{
+                        measure(new Text(), messages[k][0], reply, batch, iterations, threads, me),
+                        measure(new Binary(), messages[k][0], reply, batch, iterations, threads, me)};
+            }
+        }
+
+        System.out.printf("%d iterations; ns and bytes allocated per message, bytes on the wire%n", iterations);
+        System.out.printf("%-18s %13s %23s %23s %23s %23s%n", "", "wire bytes",
+                "request ns", "request alloc", "reply ns", "reply alloc");
+        System.out.printf("%-18s %6s %6s %11s %11s %11s %11s %11s %11s %11s %11s%n", "",
+                "text", "binary", "text", "binary", "text", "binary", "text", "binary", "text", "binary");
+        for (int k = 0; k < KINDS.length; k++) {
+            long[][] result = results[k];
+            System.out.printf("%-18s %6d %6d %11d %11d %11d %11d %11d %11d %11d %11d%n", KINDS[k],
+                    result[0][0] + result[0][1], result[1][0] + result[1][1],
+                    result[0][2], result[1][2], result[0][3], result[1][3],
+                    result[0][4], result[1][4], result[0][5], result[1][5]);
+        }
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    // {request bytes, reply bytes, request ns, request alloc, reply ns, reply alloc}
+    private static long[] measure(Codec codec, String request, String[] reply, boolean batch, int iterations,
+                                  com.sun.management.ThreadMXBean threads, long me) {
+        long startBytes = threads.getThreadAllocatedBytes(me);
+        long start = System.nanoTime();
+        run(codec, request, reply, batch, iterations, true);
+        long requestNanos = System.nanoTime() - start;
+        long requestBytes = threads.getThreadAllocatedBytes(me) - startBytes;
+        startBytes = threads.getThreadAllocatedBytes(me);
+        start = System.nanoTime();
+        run(codec, request, reply, batch, iterations, false);
+        long replyNanos = System.nanoTime() - start;
+        long replyBytes = threads.getThreadAllocatedBytes(me) - startBytes;
+        return new long[]{codec.requestSize(request), codec.replySize(reply, batch),
+                requestNanos / iterations, requestBytes / iterations,
+                replyNanos / iterations, replyBytes / iterations};
+    }
+
+    private static void run(Codec codec, String request, String[] reply, boolean batch, int n, boolean requests) {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += requests ? codec.request(i, request) : codec.reply(i, reply, batch);
+        }
+        sink += sum;
+    }
+
+    // what an RM handler reads of a request, as TCPFlightRM and TCPCustomerRM do
+    private static long readArguments(RMRequest request) {
+        RMRequest[] batch = request.getBatch();
+        if (batch != null) {
+            long sum = 0;
+            for (RMRequest message : batch) {
+                sum += readArguments(message);
+            }
+            return sum;
+        }
+        switch (request.getCommand()) {
+            case "AddFlight":
+                return request.getTid() + request.getString(0).length() + request.getInt(1) + request.getInt(2);
+            case "CustomerReserve":
+                return request.getTid() + request.getInt(0) + request.getString(1).length()
+                        + request.getInt(2) + request.getInt(3);
+            default:
+                return request.getTid() + request.getString(0).length();
+        }
+    }
+
+    private interface Codec {
+        /** encode request as the middleware, decode it and read its arguments as the RM */
+        long request(long id, String request);
+
+        /** encode the replies to a request as the RM, decode them as the middleware */
+        long reply(long id, String[] replies, boolean batch);
+
+        int requestSize(String request);
+
+        int replySize(String[] replies, boolean batch);
+    }
+
+    private static final class Text implements Codec {
+        @Override
+        public long request(long id, String request) {
+            byte[] wire = ("#" + id + "," + request + "\n").getBytes(StandardCharsets.UTF_8);
+            String line = new String(wire, 0, wire.length - 1, StandardCharsets.UTF_8).trim();
+            int comma = line.indexOf(',');
+            String tag = line.substring(0, comma + 1);
+            return tag.length() + readArguments(RMRequest.parse(line.substring(comma + 1)));
+        }
+
+        @Override
+        public long reply(long id, String[] replies, boolean batch) {
+            String reply = String.join(RMFrames.SEPARATOR, replies);
+            byte[] wire = ("#" + id + "," + reply + "\n").getBytes(StandardCharsets.UTF_8);
+            String line = new String(wire, 0, wire.length - 1, StandardCharsets.UTF_8);
+            int comma = line.indexOf(',');
+            return Long.parseLong(line.substring(1, comma)) + line.substring(comma + 1).length();
+        }
+
+        @Override
+        public int requestSize(String request) {
+            return ("#1," + request + "\n").getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        @Override
+        public int replySize(String[] replies, boolean batch) {
+            return ("#1," + String.join(RMFrames.SEPARATOR, replies) + "\n").getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    private static final class Binary implements Codec {
+        private ByteBuffer out = ByteBuffer.allocate(WireFormat.BUFFER_SIZE);
+        private final ByteBuffer in = ByteBuffer.allocate(WireFormat.BUFFER_SIZE);
+
+        // what the reader does with a frame: copy it off the socket into its buffer
+        private ByteBuffer receive() {
+            in.clear();
+            in.put(out.array(), 4, out.limit() - 4);
+            in.flip();
+            return in;
+        }
+
+        @Override
+        public long request(long id, String request) {
+            out = WireFormat.writeRequest(out, id, request);
+            ByteBuffer frame = receive();
+            try {
+                return WireFormat.getVarlong(frame) + readArguments(WireFormat.readRequest(frame));
+            } catch (ProtocolException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public long reply(long id, String[] replies, boolean batch) {
+            out = WireFormat.writeReply(out, id, replies, batch);
+            ByteBuffer frame = receive();
+            try {
+                return WireFormat.getVarlong(frame) + WireFormat.readReply(frame).length();
+            } catch (ProtocolException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public int requestSize(String request) {
+            return WireFormat.writeRequest(ByteBuffer.allocate(WireFormat.BUFFER_SIZE), 1, request).limit();
+        }
+
+        @Override
+        public int replySize(String[] replies, boolean batch) {
+            return WireFormat.writeReply(ByteBuffer.allocate(WireFormat.BUFFER_SIZE), 1, replies, batch).limit();
+        }
+    }
+}
@@ -15,14 +15,14 @@ public abstract class CarResourceManager extends ResourceManager {
     public boolean addCars(int tid, String location, int count, int price) throws RemoteException {
         String key = Car.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock denied in addCars xid=" + tid);
             }
 
             Car curObj = (Car) readTransactionData(tid, key);
             if (curObj == null) {
-                curObj = (Car) readData(key);
+                curObj = (Car) copyData(key);
             }
 
             if (curObj == null) {
@@ -37,7 +37,7 @@ public abstract class CarResourceManager extends ResourceManager {
             }
             return true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in addCars xid=" + tid, e);
         }
     }
@@ -45,7 +45,7 @@ public abstract class CarResourceManager extends ResourceManager {
     public boolean deleteCars(int tid, String location) throws RemoteException {
         String key = Car.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock denied in deleteCars xid=" + tid);
             }
@@ -68,7 +68,7 @@ public abstract class CarResourceManager extends ResourceManager {
             Trace.info("RM::deleteCars(" + tid + ") staged delete for " + location);
             return true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in deleteCars xid=" + tid, e);
         }
     }
@@ -76,21 +76,13 @@ public abstract class CarResourceManager extends ResourceManager {
     public int queryCars(int tid, String location) throws RemoteException {
         String key = Car.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock denied in queryCars xid=" + tid);
-            }
-
-            Car curObj = (Car) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Car) readData(key);
-            }
+            Car curObj = (Car) queryData(tid, key, LockManager.LockType.READ);
 
             int value = (curObj == null) ? 0 : curObj.getCount();
             Trace.info("RM::queryCars(" + tid + ", " + location + ") returns " + value);
             return value;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryCars xid=" + tid, e);
         }
     }
@@ -98,21 +90,14 @@ public abstract class CarResourceManager extends ResourceManager {
     public int queryCarsPrice(int tid, String location) throws RemoteException {
         String key = Car.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock denied in queryCarsPrice xid=" + tid);
-            }
-
-            Car curObj = (Car) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Car) readData(key);
-            }
+            // if key is locked already, escrow never changes the price, so a reservation keeps its lock mode
+            Car curObj = (Car) queryData(tid, key, LockManager.LockType.ESCROW);
 
             int value = (curObj == null) ? 0 : curObj.getPrice();
             Trace.info("RM::queryCarsPrice(" + tid + ", " + location + ") returns $" + value);
             return value;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryCarsPrice xid=" + tid, e);
         }
     }
@@ -120,37 +105,21 @@ public abstract class CarResourceManager extends ResourceManager {
     public boolean reserveCar(int tid, int customerID, String location) throws RemoteException {
         String key = Car.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            // cars are taken in escrow: concurrent bookings of this location share the lock
+            if (!lock(tid, key, LockManager.LockType.ESCROW)) {
                 throw new RemoteException("Lock denied in reserveCar xid=" + tid);
             }
 
-            Car car = (Car) readTransactionData(tid, key);
-            if (car == null) {
-                car = (Car) readData(key);
-                if (car != null) {
-                    writeTransactionData(tid, key, (RMItem) car.clone());
-                }
-            }
-
-            if (car == null) {
-                Trace.warn("CarRM::reserveCar(" + tid + ", " + customerID + ", " + location + ") failed -- no such location");
-                return false;
-            }
-
-            if (car.getCount() == 0) {
+            if (!escrowReserve(tid, key, 1)) {
                 Trace.warn("CarRM::reserveCar(" + tid + ", " + customerID + ", " + location + ") failed -- no cars available");
                 return false;
             }
 
-            car.setCount(car.getCount() - 1);
-            car.setReserved(car.getReserved() + 1);
-
-            writeTransactionData(tid, key, car);
-
             Trace.info("CarRM::reserveCar(" + tid + ", " + customerID + ", " + location + ") succeeded");
             return true;
 
         } catch (DeadlockException e) {
+            abortVictim(tid);
             throw new RemoteException("Deadlock in reserveCar xid=" + tid, e);
         }
     }
@@ -159,16 +128,10 @@ public abstract class CarResourceManager extends ResourceManager {
     public boolean carExists(int tid, String location) throws RemoteException {
         String key = Car.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                throw new RemoteException("Lock failed in querying Car tid=" + tid);
-            }
-
-            Car curObj = (Car) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Car) readData(key);
-            }
+            Car curObj = (Car) queryData(tid, key, LockManager.LockType.READ);
             return (curObj != null);
         } catch (DeadlockException e) {
+            abortVictim(tid);
             throw new RemoteException("Deadlock in checking Car xid=" + tid, e);
         }
     }
@@ -178,7 +141,7 @@ public abstract class CarResourceManager extends ResourceManager {
 //    public boolean cancelCarReservation(int tid, int customerID, String location) throws RemoteException {
 //        String key = Car.getKey(location);
 //        try {
-//            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+//            if (!lock(tid, key, LockManager.LockType.WRITE)) {
 //                abort(tid);
 //                throw new RemoteException("Lock failed in cancelCarReservation tid=" + tid);
 //            }
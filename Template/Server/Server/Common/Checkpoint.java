@@ -0,0 +1,275 @@
+package Server.Common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint
+ *
+ * Fuzzy checkpoint of an RM: the committed state as of one snapshot timestamp, written while
+ * commits go on, plus the redo log offset to replay from and the PREPARE records of the
+ * transactions still in doubt at that point. Recovery replays only the log after it, skipping the
+ * commits the snapshot already holds.
+ *
+ * The file is memory-mapped when it is read and becomes the base of the restarted store: an item
+ * is decoded the first time its key is used, so a restart does not wait for the whole state.
+ *
+ * Layout, big-endian:
+ *  - header (HEADER bytes): magic, format, ts, lsn, item count, slot count, table offset,
+ *    and a crc32 of the rest of the header in its last 4 bytes
+ *  - the PREPARE payloads: count, then [length][payload] each
+ *  - the items: [value length][key, writeUTF][value, ItemCodec] each
+ *  - the key table: a power of two of [key hash][item offset] slots, SLOT bytes each,
+ *    open addressing, offset 0 marks an empty slot
+ * The file is written next to its final name and renamed over it once it is on disk, so a crash
+ * leaves the previous checkpoint in place. Files have to stay under 2 GB to be mapped.
+ */
+public final class Checkpoint implements VersionedStore.Base {
+
+    private static final int MAGIC = 0x524d434b; // "RMCK"
+    private static final int FORMAT = 2;
+    private static final int HEADER = 48;
+    private static final int SLOT = 12;
+
+    public final long ts; // every commit stamped up to here is in the checkpoint
+    public final long lsn; // replay the redo log from here
+    public final List<byte[]> prepared;
+    private final MappedByteBuffer map;
+    private final int count;
+    private final int slotMask;
+    private final int table;
+
+    private Checkpoint(long ts, long lsn, List<byte[]> prepared, MappedByteBuffer map, int count, int slots, int table) {
+        this.ts = ts;
+        this.lsn = lsn;
+        this.prepared = prepared;
+        this.map = map;
+        this.count = count;
+        this.slotMask = slots - 1;
+        this.table = table;
+    }
+
+    /** @return number of items in the checkpoint */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Write the state of store as of snapshot ts to file. The caller keeps ts open meanwhile.
+     * @return number of items written
+     */
+    public static int write(Path file, long ts, long lsn, Collection<byte[]> prepared, VersionedStore store) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        int n;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 256 * 1024));
+            out.writeInt(prepared.size());
+            for (byte[] record : prepared) {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+
+            // items, remembering the hash and offset of each for the key table
+            ByteArrayOutputStream value = new ByteArrayOutputStream(64);
+            DataOutputStream valueOut = new DataOutputStream(value);
+            int[][] index = {new int[1024], new int[1024]};
+            int[] items = {0};
+            IOException[] failure = {null};
+            store.forEach(ts, (key, item) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    long offset = HEADER + (long) out.size();
+                    if (offset > Integer.MAX_VALUE) {
+                        throw new IOException("checkpoint over 2 GB, can't be mapped");
+                    }
+                    value.reset();
+                    ItemCodec.write(valueOut, item);
+                    out.writeInt(value.size());
+                    out.writeUTF(key);
+                    value.writeTo(out);
+
+                    int i = items[0]++;
+                    if (i == index[0].length) {
+                        index[0] = Arrays.copyOf(index[0], i * 2);
+                        index[1] = Arrays.copyOf(index[1], i * 2);
+                    }
+                    index[0][i] = hash(key);
+                    index[1][i] = (int) offset;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            n = items[0];
+
+            int slots = 2;
+            while (slots < 2 * n) {
+                slots <<= 1;
+            }
+            long table = HEADER + (long) out.size();
+            if (table + (long) slots * SLOT > Integer.MAX_VALUE) {
+                throw new IOException("checkpoint over 2 GB, can't be mapped");
+            }
+            int[] slotHash = new int[slots];
+            int[] slotOffset = new int[slots];
+            for (int i = 0; i < n; i++) {
+                int s = index[0][i] & (slots - 1);
+                while (slotOffset[s] != 0) {
+                    s = (s + 1) & (slots - 1);
+                }
+                slotHash[s] = index[0][i];
+                slotOffset[s] = index[1][i];
+            }
+            for (int s = 0; s < slots; s++) {
+                out.writeInt(slotHash[s]);
+                out.writeLong(slotOffset[s]);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(MAGIC).putInt(FORMAT).putLong(ts).putLong(lsn).putInt(n).putInt(slots).putLong(table);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HEADER - 4);
+            header.putInt(HEADER - 4, (int) crc.getValue());
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return n;
+    }
+
+    /** @return the checkpoint in file, mapped, or null if there is none or it is damaged */
+    public static Checkpoint read(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER || size > Integer.MAX_VALUE) {
+                Trace.warn("Checkpoint::read(" + file + ") bad size " + size + ", ignored");
+                return null;
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            crc.update(map.duplicate().limit(HEADER - 4));
+            if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT || map.getInt(HEADER - 4) != (int) crc.getValue()) {
+                Trace.warn("Checkpoint::read(" + file + ") not a checkpoint, ignored");
+                return null;
+            }
+            long ts = map.getLong(8);
+            long lsn = map.getLong(16);
+            int count = map.getInt(24);
+            int slots = map.getInt(28);
+            long table = map.getLong(32);
+            if (Integer.bitCount(slots) != 1 || table + (long) slots * SLOT != size) {
+                Trace.warn("Checkpoint::read(" + file + ") truncated, ignored");
+                return null;
+            }
+
+            int n = map.getInt(HEADER);
+            List<byte[]> prepared = new ArrayList<>(n);
+            int pos = HEADER + 4;
+            for (int i = 0; i < n; i++) {
+                byte[] record = new byte[map.getInt(pos)];
+                map.get(pos + 4, record);
+                prepared.add(record);
+                pos += 4 + record.length;
+            }
+            return new Checkpoint(ts, lsn, prepared, map, count, slots, (int) table);
+        } catch (IOException | RuntimeException e) {
+            Trace.warn("Checkpoint::read(" + file + ") unreadable, ignored: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public RMItem get(String key) {
+        int offset = find(key);
+        return (offset == 0) ? null : value(offset, key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return find(key) != 0;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, RMItem> consumer) {
+        for (int s = 0; s <= slotMask; s++) {
+            int offset = (int) map.getLong(table + s * SLOT + 4);
+            if (offset != 0) {
+                String key = key(offset);
+                consumer.accept(key, value(offset, key));
+            }
+        }
+    }
+
+    // offset of key's item, or 0
+    private int find(String key) {
+        int h = hash(key);
+        for (int s = h & slotMask; ; s = (s + 1) & slotMask) {
+            int slot = table + s * SLOT;
+            int offset = (int) map.getLong(slot + 4);
+            if (offset == 0) {
+                return 0;
+            }
+            if (map.getInt(slot) == h && key.equals(key(offset))) {
+                return offset;
+            }
+        }
+    }
+
+    private String key(int offset) {
+        byte[] bytes = new byte[2 + (map.getShort(offset + 4) & 0xffff)];
+        map.get(offset + 4, bytes);
+        try {
+            return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+        } catch (IOException e) {
+            throw new IllegalStateException("bad key at " + offset + " in checkpoint", e);
+        }
+    }
+
+    private RMItem value(int offset, String key) {
+        int keyLength = map.getShort(offset + 4) & 0xffff;
+        byte[] bytes = new byte[map.getInt(offset)];
+        map.get(offset + 6 + keyLength, bytes);
+        try {
+            return ItemCodec.read(new DataInputStream(new ByteArrayInputStream(bytes)), key);
+        } catch (IOException e) {
+            throw new IllegalStateException("bad item " + key + " in checkpoint", e);
+        }
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -10,11 +10,11 @@ import java.util.*;
 public class Customer extends RMItem
 {
 	private int m_ID;
-	private RMHashMap m_reservations;
+	private PersistentMap<String, ReservedItem> m_reservations; // shared between copies, replaced on change
 
 	public Customer(int id) {
 		super();
-		m_reservations = new RMHashMap();
+		m_reservations = PersistentMap.empty();
 		m_ID = id;
 	}
 
@@ -29,18 +29,24 @@ public class Customer extends RMItem
 	}
 
 	public ReservedItem getReservedItem(String key) {
-		ReservedItem item = (ReservedItem) m_reservations.get(key);
+		ReservedItem item = m_reservations.get(key);
 		if (item == null) {
 			return null;
 		}
 		return (ReservedItem) item.clone();
 	}
 
+	// Add count units of key; the customer pays the latest price for all of them
+	public void reserve(String key, int count, int price) {
+		ReservedItem item = m_reservations.get(key);
+		int total = (item == null) ? count : item.getCount() + count;
+		m_reservations = m_reservations.with(key, new ReservedItem(key, total, price));
+	}
+
 
 	public String getBill() {
 		StringBuilder sb = new StringBuilder("Bill for customer " + m_ID + ": ");
-		for (String key : m_reservations.keySet()) {
-			ReservedItem item = (ReservedItem) m_reservations.get(key);
+		for (ReservedItem item : m_reservations.values()) {
 			sb.append(item.getCount())
 					.append(" ")
 					.append(item.getReservableItemKey())
@@ -72,14 +78,16 @@ public class Customer extends RMItem
 		return Customer.getKey(getID());
 	}
 
-	public RMHashMap getReservations() {
-		return (RMHashMap) m_reservations;
+	// Read-only: use reserve() to change a customer's reservations
+	public Map<String, ReservedItem> getReservations() {
+		return m_reservations;
 	}
 
+	// Reservations are immutable and shared with the copy, so this costs O(1)
 	public Object clone() {
 		Customer obj = (Customer)super.clone();
 		obj.m_ID = m_ID;
-		obj.m_reservations = (RMHashMap)m_reservations.clone();
+		obj.m_reservations = m_reservations;
 		return obj;
 	}
 
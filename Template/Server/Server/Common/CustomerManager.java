@@ -14,16 +14,7 @@ public abstract class CustomerManager extends ResourceManager {
     public String queryCustomerInfo(int tid, int customerID) throws RemoteException {
         String key = Customer.getKey(customerID);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock denied in queryCustomerInfo xid=" + tid);
-            }
-
-            Customer customer = (Customer) readTransactionData(tid, key);
-            if (customer == null) {
-                customer = (Customer) readData(key);
-                System.out.println("Customer" + customerID + " from m_data");
-            }
+            Customer customer = (Customer) queryData(tid, key, LockManager.LockType.READ);
 
             if (customer == null) {
                 Trace.warn("RM::queryCustomerInfo(" + tid + ", " + customerID + ") failed -- customer doesn't exist");
@@ -33,7 +24,7 @@ public abstract class CustomerManager extends ResourceManager {
                 return customer.getBill();
             }
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryCustomerInfo xid=" + tid, e);
         }
     }
@@ -52,7 +43,7 @@ public abstract class CustomerManager extends ResourceManager {
     public boolean newCustomerID(int tid, int customerID) throws RemoteException {
         String key = Customer.getKey(customerID);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock denied in newCustomer xid=" + tid);
             }
@@ -72,7 +63,7 @@ public abstract class CustomerManager extends ResourceManager {
                 return false;
             }
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in newCustomer xid=" + tid, e);
         }
     }
@@ -80,7 +71,7 @@ public abstract class CustomerManager extends ResourceManager {
     public boolean deleteCustomer(int tid, int customerID) throws RemoteException {
         String key = Customer.getKey(customerID);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock denied in deleteCustomer xid=" + tid);
             }
@@ -100,7 +91,7 @@ public abstract class CustomerManager extends ResourceManager {
             Trace.info("RM::deleteCustomer(" + tid + ", " + customerID + ") staged delete");
             return true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in deleteCustomer xid=" + tid, e);
         }
     }
@@ -108,16 +99,7 @@ public abstract class CustomerManager extends ResourceManager {
     public boolean customerExists(int tid, int customerID) throws RemoteException{
         String key = Customer.getKey(customerID);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock denied in queryCustomer xid=" + tid);
-            }
-
-            Customer customer = (Customer) readTransactionData(tid, key);
-            if (customer == null) {
-                customer = (Customer) readData(key);
-                //System.out.println("Customer" + customerID + " from m_data");
-            }
+            Customer customer = (Customer) queryData(tid, key, LockManager.LockType.READ);
 
             if (customer == null) {
                 Trace.warn("RM::queryCustomer(" + tid + ", " + customerID + ") failed -- customer doesn't exist");
@@ -127,8 +109,7 @@ public abstract class CustomerManager extends ResourceManager {
                 return true;
             }
         } catch (DeadlockException e) {
-            //
-            // abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryCustomer xid=" + tid, e);
         }
     }
@@ -137,7 +118,7 @@ public abstract class CustomerManager extends ResourceManager {
         String custKey = Customer.getKey(cid);
         try {
             // Lock customer for write
-            if (!LM.lock(tid, custKey, LockManager.LockType.WRITE)) {
+            if (!lock(tid, custKey, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock denied in customerReserve xid=" + tid);
             }
@@ -145,10 +126,7 @@ public abstract class CustomerManager extends ResourceManager {
             // Read staged or global data
             Customer customer = (Customer) readTransactionData(tid, custKey);
             if (customer == null) {
-                customer = (Customer) readData(custKey);
-                if(customer != null){
-                    customer = (Customer) customer.clone();
-                }
+                customer = (Customer) copyData(custKey); // shares the reservations, see Customer.clone
             }
 
             if (customer == null) {
@@ -156,15 +134,8 @@ public abstract class CustomerManager extends ResourceManager {
                 return false;
             }
 
-            // Update customer’s reservations
-            ReservedItem item = customer.getReservedItem(key);
-            if (item == null) {
-                item = new ReservedItem(key, count, price); // location/key needed
-            } else {
-                item.setCount(item.getCount() + count);
-                item.setPrice(price); // overwrite with the latest price
-            }
-            customer.getReservations().put(key, item); //this will return a clone of the customer's reservation, so customer's reservation still unchange
+            // Update customer’s reservations, overwriting with the latest price
+            customer.reserve(key, count, price);
 
             // Write full customer back to transactionData (not just item!)
             writeTransactionData(tid, custKey, customer);
@@ -173,7 +144,7 @@ public abstract class CustomerManager extends ResourceManager {
             return true;
 
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in customerReserve xid=" + tid, e);
         }
     }
@@ -182,7 +153,7 @@ public abstract class CustomerManager extends ResourceManager {
 //    public Customer getCustomer(int tid, int cid) throws RemoteException{
 //        String key = Customer.getKey(cid);
 //        try {
-//            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
+//            if (!lock(tid, key, LockManager.LockType.READ)) {
 //                //abort(tid);
 //                throw new RemoteException("Lock denied in getting Customer xid=" + tid);
 //            }
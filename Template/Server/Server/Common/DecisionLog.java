@@ -0,0 +1,88 @@
+package Server.Common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * DecisionLog
+ *
+ * The transaction manager's durable memory, on a RedoLog:
+ *  - COMMIT tid: forced before the first commit goes out to a participant. Presumed abort: a
+ *    transaction without one never committed, so aborts are not logged at all.
+ *  - TIDS n: every tid up to n may have been handed out. Tids are reserved in blocks, so this is
+ *    forced once per block, and a restarted TM starts after the last block instead of reusing tids.
+ *
+ * compact() rewrites the log with the high-water mark only, once a recovering TM has told every
+ * participant about the commits it found.
+ */
+public class DecisionLog {
+
+    private static final byte COMMIT = 1;
+    private static final byte TIDS = 2;
+
+    private final Path file;
+    private RedoLog log;
+    private int highWater;
+    private final Set<Integer> committed = new HashSet<>();
+
+    /** Open (or create) the log at file and read it back */
+    public DecisionLog(Path file) throws IOException {
+        this.file = file;
+        this.log = new RedoLog(file);
+        log.replay(0, payload -> {
+            ByteBuffer record = ByteBuffer.wrap(payload);
+            byte type = record.get();
+            int value = record.getInt();
+            if (type == COMMIT) {
+                committed.add(value);
+            } else if (type == TIDS) {
+                highWater = Math.max(highWater, value);
+            }
+        });
+    }
+
+    /** @return highest tid that may have been handed out before, 0 if none */
+    public int getHighWater() {
+        return highWater;
+    }
+
+    /** @return tids whose commit decision was logged before the restart */
+    public Set<Integer> getCommitted() {
+        return Collections.unmodifiableSet(committed);
+    }
+
+    /** Record that tids up to n may be handed out; returns once it is durable */
+    public void reserveTids(int n) throws IOException {
+        log.appendAndForce(record(TIDS, n));
+        highWater = n;
+    }
+
+    /** Record the commit decision for tid; returns once it is durable */
+    public void commit(int tid) throws IOException {
+        log.appendAndForce(record(COMMIT, tid));
+    }
+
+    /** Forget every commit decision, keeping the tid high-water mark. Nothing may be logged meanwhile. */
+    public synchronized void compact() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        RedoLog fresh = new RedoLog(tmp);
+        fresh.appendAndForce(record(TIDS, highWater));
+        fresh.close();
+        log.close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = new RedoLog(file);
+        log.replay(0, payload -> { });
+        committed.clear();
+    }
+
+    private static byte[] record(byte type, int value) {
+        return ByteBuffer.allocate(5).put(type).putInt(value).array();
+    }
+}
@@ -0,0 +1,101 @@
+package Server.Common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * FanOut
+ *
+ * Issues one call per participant at once and waits for them up to a deadline, so a phase of
+ * two-phase commit takes as long as its slowest participant instead of the sum of all of them.
+ * Calls still running at the deadline are abandoned, not interrupted: a late answer is dropped.
+ */
+public final class FanOut {
+
+    private static final ExecutorService POOL = Threads.VIRTUAL ? Threads.perTask("fan-out")
+            : Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "fan-out");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private FanOut() {
+    }
+
+    /**
+     * Run calls concurrently.
+     * @return true if every call returned true before the deadline; false as soon as one returns
+     *         false or throws, or when the deadline passes
+     */
+    public static boolean allTrue(Collection<? extends Callable<Boolean>> calls, long timeoutMillis) {
+        ExecutorCompletionService<Boolean> done = new ExecutorCompletionService<>(POOL);
+        for (Callable<Boolean> call : calls) {
+            done.submit(call);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (int i = 0; i < calls.size(); i++) {
+                Future<Boolean> next = done.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (next == null || !Boolean.TRUE.equals(next.get())) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Run call and wait for it until the deadline.
+     * @return what it returned, or null if it threw or missed the deadline
+     */
+    public static <T> T one(Callable<T> call, long timeoutMillis) {
+        Future<T> future = POOL.submit(call);
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Run calls concurrently and wait for all of them until the deadline.
+     * @return number of calls that finished without throwing before the deadline
+     */
+    public static int all(Collection<? extends Callable<?>> calls, long timeoutMillis) {
+        List<Future<?>> futures = new ArrayList<>(calls.size());
+        for (Callable<?> call : calls) {
+            futures.add(POOL.submit(call));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int ok = 0;
+        for (Future<?> future : futures) {
+            try {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                ok++;
+            } catch (ExecutionException | TimeoutException e) {
+                // counted as missing; the caller decides what that means
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return ok;
+    }
+}
@@ -16,14 +16,14 @@ public abstract class FlightResourceManager extends ResourceManager {
     public boolean addFlight(int tid, String flightNum, int flightSeats, int flightPrice) throws RemoteException {
         String key = Flight.getKey(flightNum);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock failed in addFlight tid=" + tid);
             }
 
             Flight curObj = (Flight) readTransactionData(tid, key);
             if (curObj == null) {
-                curObj = (Flight) readData(key);
+                curObj = (Flight) copyData(key);
             }
 
             if (curObj == null) {
@@ -38,7 +38,7 @@ public abstract class FlightResourceManager extends ResourceManager {
             }
             return true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in addFlight tid=" + tid, e);
         }
     }
@@ -46,7 +46,7 @@ public abstract class FlightResourceManager extends ResourceManager {
     public boolean deleteFlight(int tid, String flightNum) throws RemoteException {
         String key = Flight.getKey(flightNum);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock failed in deleteFlight tid=" + tid);
             }
@@ -70,7 +70,7 @@ public abstract class FlightResourceManager extends ResourceManager {
             Trace.info("RM::deleteFlight(" + tid + ", " + flightNum + ") succeeded (staged)");
             return true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in deleteFlight xid=" + tid, e);
         }
     }
@@ -78,21 +78,13 @@ public abstract class FlightResourceManager extends ResourceManager {
     public int queryFlight(int tid, String flightNum) throws RemoteException {
         String key = Flight.getKey(flightNum);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock failed in queryFlight tid=" + tid);
-            }
-
-            Flight curObj = (Flight) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Flight) readData(key);
-            }
+            Flight curObj = (Flight) queryData(tid, key, LockManager.LockType.READ);
 
             int value = (curObj == null) ? 0 : curObj.getCount();
             Trace.info("RM::queryFlight(" + tid + ", " + flightNum + ") returns count=" + value);
             return value;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryFlight xid=" + tid, e);
         }
     }
@@ -100,21 +92,14 @@ public abstract class FlightResourceManager extends ResourceManager {
     public int queryFlightPrice(int tid, String flightNum) throws RemoteException {
         String key = Flight.getKey(flightNum);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock failed in queryFlightPrice tid=" + tid);
-            }
-
-            Flight curObj = (Flight) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Flight) readData(key);
-            }
+            // if key is locked already, escrow never changes the price, so a reservation keeps its lock mode
+            Flight curObj = (Flight) queryData(tid, key, LockManager.LockType.ESCROW);
 
             int value = (curObj == null) ? 0 : curObj.getPrice();
             Trace.info("RM::queryFlightPrice(" + tid + ", " + flightNum + ") returns cost=$" + value);
             return value;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryFlightPrice xid=" + tid, e);
         }
     }
@@ -122,34 +107,22 @@ public abstract class FlightResourceManager extends ResourceManager {
     public boolean reserveFlight(int tid, int customerID, String flightNum) throws RemoteException {
         String key = Flight.getKey(flightNum);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            // seats are taken in escrow: concurrent buyers of this flight share the lock
+            if (!lock(tid, key, LockManager.LockType.ESCROW)) {
                 //abort(tid);
                 throw new RemoteException("Lock failed in reserveFlight tid=" + tid);
             }
 
-            // read from transactionData first, then fallback to m_data
-            Flight flight = (Flight) readTransactionData(tid, key);
-            if (flight == null) {
-                flight = (Flight) readData(key);
-            }
-
-            if (flight == null || flight.getCount() == 0) {
+            if (!escrowReserve(tid, key, 1)) {
                 Trace.warn("RM::reserveFlight(" + tid + ", " + customerID + ", " + flightNum + ") failed -- no seats");
                 return false;
             }
 
-            // decrement available seat count
-            flight.setCount(flight.getCount() - 1);
-            flight.setReserved(flight.getReserved() + 1);
-
-            // stage the change in transactionData (not m_data)
-            writeTransactionData(tid, key, flight);
-
             Trace.info("RM::reserveFlight(" + tid + ", " + customerID + ", " + flightNum + ") succeeded (staged)");
             return true;
 
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in reserveFlight xid=" + tid, e);
         }
     }
@@ -157,18 +130,10 @@ public abstract class FlightResourceManager extends ResourceManager {
     public boolean flightExists(int tid, String flightNum) throws RemoteException{
         String key = Flight.getKey(flightNum);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock failed in querying Flight tid=" + tid);
-            }
-
-            Flight curObj = (Flight) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Flight) readData(key);
-            }
+            Flight curObj = (Flight) queryData(tid, key, LockManager.LockType.READ);
             return (curObj == null) ? false : true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in checking Flight xid=" + tid, e);
         }
     }
@@ -178,7 +143,7 @@ public abstract class FlightResourceManager extends ResourceManager {
     public boolean cancelFlightReservation(int tid, int customerID, String flightNum) throws RemoteException {
         String key = Flight.getKey(flightNum);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 abort(tid);
                 throw new RemoteException("Lock failed in cancelFlightReservation tid=" + tid);
             }
@@ -0,0 +1,82 @@
+package Server.Common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * ItemCodec
+ *
+ * Compact binary form of the RM items, for the redo log: a type tag followed by the item's
+ * fields. Much smaller and faster than Java serialization of the same objects.
+ * The store key is kept by the caller, next to the item, and handed back to read().
+ */
+public final class ItemCodec {
+
+    private static final byte NONE = 0; // null: a deleted key
+    private static final byte FLIGHT = 1;
+    private static final byte CAR = 2;
+    private static final byte ROOM = 3;
+    private static final byte CUSTOMER = 4;
+
+    private ItemCodec() {
+    }
+
+    public static void write(DataOutput out, RMItem item) throws IOException {
+        if (item == null) {
+            out.writeByte(NONE);
+        } else if (item instanceof ReservableItem) {
+            ReservableItem r = (ReservableItem) item;
+            out.writeByte(item instanceof Flight ? FLIGHT : item instanceof Car ? CAR : ROOM);
+            out.writeInt(r.getCount());
+            out.writeInt(r.getPrice());
+            out.writeInt(r.getReserved());
+        } else if (item instanceof Customer) {
+            Customer c = (Customer) item;
+            Map<String, ReservedItem> reservations = c.getReservations();
+            out.writeByte(CUSTOMER);
+            out.writeInt(c.getID());
+            out.writeInt(reservations.size());
+            for (Map.Entry<String, ReservedItem> entry : reservations.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().getCount());
+                out.writeInt(entry.getValue().getPrice());
+            }
+        } else {
+            throw new IOException("can't encode " + item.getClass().getName());
+        }
+    }
+
+    /** @param key the store key the item was written under */
+    public static RMItem read(DataInput in, String key) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NONE:
+                return null;
+            case FLIGHT:
+            case CAR:
+            case ROOM: {
+                int count = in.readInt();
+                int price = in.readInt();
+                int reserved = in.readInt();
+                // the item constructors put the "flight-"/"car-"/"room-" prefix back
+                String name = key.substring(key.indexOf('-') + 1);
+                ReservableItem item = (type == FLIGHT) ? new Flight(name, count, price)
+                        : (type == CAR) ? new Car(name, count, price) : new Room(name, count, price);
+                item.setReserved(reserved);
+                return item;
+            }
+            case CUSTOMER: {
+                Customer c = new Customer(in.readInt());
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    c.reserve(in.readUTF(), in.readInt(), in.readInt());
+                }
+                return c;
+            }
+            default:
+                throw new IOException("unknown item type " + type);
+        }
+    }
+}
@@ -2,85 +2,459 @@ package Server.Common;
 
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * LockManager: strict 2PL lock table for one RM.
+ * The table is split into stripes by resource key hash; each stripe has its own mutex,
+ * so non-conflicting requests on keys in different stripes are granted in parallel.
+ * A conflicting request parks in the resource's FIFO wait queue (upgrades go first)
+ * until it is granted or the wait timeout expires.
+ * ESCROW requests share a resource with each other, so concurrent buyers of one item don't queue.
+ * A background detector walks the waits-for graph every detection interval and breaks each
+ * cycle by throwing DeadlockException to its youngest (highest tid) waiter.
+ */
 public class LockManager {
-    public enum LockType { READ, WRITE }
+    /**
+     * READ and WRITE are the usual shared/exclusive modes.
+     * ESCROW covers commutative count updates (reserving units of an inventory item): it is
+     * compatible with other ESCROW holders only, so it also protects reads of attributes that
+     * escrow updates never change, such as the price. A transaction that combines ESCROW with
+     * READ or WRITE on the same key is upgraded to WRITE.
+     */
+    public enum LockType { READ, WRITE, ESCROW }
 
-    // resource -> (tid -> lockType)
-    private final Map<String, Map<Integer, LockType>> locks = new HashMap<>();
+    // number of stripes, rounded up to a power of two
+    private static final int DEFAULT_STRIPES = 64;
+    // how long a conflicting request waits before it is refused (ms), -Dlock.timeout=<ms>
+    private static final long DEFAULT_WAIT_TIMEOUT = Long.getLong("lock.timeout", 1000L);
+    // how often the waits-for graph is checked for cycles (ms), -Dlock.detectInterval=<ms>
+    private static final long DEFAULT_DETECT_INTERVAL = Long.getLong("lock.detectInterval", 50L);
+
+    private final Stripe[] stripes;
+    private final int mask;
+    private final long waitTimeoutNanos;
     // tid -> set of resources
-    private final Map<Integer, Set<String>> transactionLocks = new HashMap<>();
+    private final Map<Integer, Set<String>> transactionLocks = new ConcurrentHashMap<>();
+    // tid -> the request it is parked on (a transaction waits for one lock at a time)
+    private final Map<Integer, Waiter> waiting = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService detector;
+
+    // metrics
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder waits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder detectionNanos = new LongAdder();
+    private final AtomicLong maxDetectionNanos = new AtomicLong();
+
+    // one partition of the lock table, guarded by its own mutex
+    private static final class Stripe {
+        final ReentrantLock mutex = new ReentrantLock();
+        // resource -> holders and waiters
+        final Map<String, LockEntry> locks = new HashMap<>();
+    }
+
+    // lock state of one resource
+    private static final class LockEntry {
+        // tid -> lockType
+        final Map<Integer, LockType> holders = new HashMap<>(4);
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>(2);
+
+        boolean idle() {
+            return holders.isEmpty() && queue.isEmpty();
+        }
+    }
+
+    // a parked request
+    private static final class Waiter {
+        final int tid;
+        final LockType type;
+        final Condition cond;
+        final Stripe stripe;
+        final String resource;
+        final long since = System.nanoTime();
+        boolean victim; // guarded by the stripe mutex
+        boolean released; // tid's locks were released while it waited, guarded by the stripe mutex
+
+        Waiter(int tid, LockType type, Stripe stripe, String resource) {
+            this.tid = tid;
+            this.type = type;
+            this.cond = stripe.mutex.newCondition();
+            this.stripe = stripe;
+            this.resource = resource;
+        }
+    }
+
+    public LockManager() {
+        this(DEFAULT_STRIPES, DEFAULT_WAIT_TIMEOUT, DEFAULT_DETECT_INTERVAL);
+    }
+
+    public LockManager(int stripeCount, long waitTimeoutMs) {
+        this(stripeCount, waitTimeoutMs, DEFAULT_DETECT_INTERVAL);
+    }
+
+    /**
+     * @param stripeCount number of lock table partitions
+     * @param waitTimeoutMs how long a conflicting request may wait; 0 refuses immediately
+     * @param detectIntervalMs period of the deadlock detector; 0 disables it
+     */
+    public LockManager(int stripeCount, long waitTimeoutMs, long detectIntervalMs) {
+        int n = 1;
+        while (n < stripeCount) n <<= 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = n - 1;
+        waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitTimeoutMs));
+
+        if (waitTimeoutNanos > 0 && detectIntervalMs > 0) {
+            detector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "deadlock-detector");
+                t.setDaemon(true);
+                return t;
+            });
+            detector.scheduleWithFixedDelay(this::detectDeadlocks, detectIntervalMs, detectIntervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            detector = null;
+        }
+    }
+
+    private Stripe stripeFor(String resource) {
+        int h = resource.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
 
     /**
-     * Try to acquire a lock on a resource for a transaction.
+     * Acquire a lock on a resource for a transaction, waiting behind conflicting holders.
      * @param tid transaction id
      * @param resource resource key
      * @param type requested lock type
-     * @return true if lock granted, false if conflict
+     * @return true if lock granted, false if the wait timed out or tid's locks were released meanwhile
+     * @throws DeadlockException if the request was chosen as a deadlock victim
      */
-    public synchronized boolean lock(int tid, String resource, LockType type) throws DeadlockException {
-        locks.putIfAbsent(resource, new HashMap<>());
-        Map<Integer, LockType> holders = locks.get(resource);
+    public boolean lock(int tid, String resource, LockType type) throws DeadlockException {
+        requests.increment();
+        Stripe stripe = stripeFor(resource);
+        stripe.mutex.lock();
+        try {
+            LockEntry entry = stripe.locks.computeIfAbsent(resource, k -> new LockEntry());
 
-        LockType current = holders.get(tid);
+            LockType current = entry.holders.get(tid);
+            if (current == LockType.WRITE || current == type) {
+                return true; // already strongest, or already holds the same mode
+            }
+            boolean upgrade = current != null;
+            if (upgrade) {
+                type = LockType.WRITE; // READ and ESCROW combine into WRITE
+            }
 
-        if (current != null) {
-            // already holds a lock
-            if (current == LockType.WRITE) {
-                return true; // already strongest
+            // grant at once when nobody is queued ahead (an upgrade only yields to an earlier upgrade)
+            boolean queueClear = entry.queue.isEmpty() || (upgrade && !isUpgrade(entry, entry.queue.peekFirst()));
+            if (queueClear && compatible(entry, tid, type)) {
+                grant(entry, tid, resource, type);
+                return true;
             }
-            if (current == LockType.READ) {
-                if (type == LockType.READ) {
-                    return true; // still compatible
-                }
-                if (type == LockType.WRITE) {
-                    if (holders.size() == 1) { // upgrade
-                        holders.put(tid, LockType.WRITE);
+            if (waitTimeoutNanos == 0) {
+                cleanup(stripe, resource, entry);
+                return false;
+            }
+
+            // park in the wait queue; upgrades jump ahead of fresh requests
+            Waiter me = new Waiter(tid, type, stripe, resource);
+            if (upgrade) {
+                entry.queue.addFirst(me);
+            } else {
+                entry.queue.addLast(me);
+            }
+            waiting.put(tid, me);
+            waits.increment();
+
+            long remaining = waitTimeoutNanos;
+            try {
+                while (true) {
+                    if (me.victim) {
+                        throw new DeadlockException(tid, resource, "T" + tid + " aborted to break a deadlock on " + resource);
+                    }
+                    if (me.released) {
+                        Trace.warn("LockManager::lock(" + tid + ", " + resource + ", " + type + ") refused, T" + tid + " ended while it waited");
+                        return false;
+                    }
+                    if (entry.queue.peekFirst() == me && compatible(entry, tid, type)) {
+                        entry.queue.pollFirst();
+                        grant(entry, tid, resource, type);
+                        wakeHead(entry); // a following reader or escrow request may be compatible too
                         return true;
                     }
-                    return false;
+                    if (remaining <= 0) {
+                        timeouts.increment();
+                        Trace.warn("LockManager::lock(" + tid + ", " + resource + ", " + type + ") timed out");
+                        return false;
+                    }
+                    remaining = me.cond.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waiting.remove(tid, me);
+                if (entry.queue.remove(me)) { // refused: give the next waiter its turn
+                    wakeHead(entry);
+                    cleanup(stripe, resource, entry);
                 }
             }
-        } else {
-            // no existing lock, request new
-            if (type == LockType.READ) {
-                boolean hasWrite = holders.values().stream().anyMatch(t -> t == LockType.WRITE);
-                if (!hasWrite) {
-                    holders.put(tid, LockType.READ);
-                    transactionLocks.computeIfAbsent(tid, k -> new HashSet<>()).add(resource);
-                    return true;
+        } finally {
+            stripe.mutex.unlock();
+        }
+    }
+
+    // only two READs or two ESCROWs can share a resource
+    private static boolean conflicts(LockType held, LockType requested) {
+        return held != requested || held == LockType.WRITE;
+    }
+
+    private static boolean compatible(LockEntry entry, int tid, LockType type) {
+        for (Map.Entry<Integer, LockType> h : entry.holders.entrySet()) {
+            if (h.getKey() != tid && conflicts(h.getValue(), type)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isUpgrade(LockEntry entry, Waiter w) {
+        return w != null && entry.holders.containsKey(w.tid);
+    }
+
+    /**
+     * @return the mode tid currently holds on resource, or null
+     */
+    public LockType getLockType(int tid, String resource) {
+        Stripe stripe = stripeFor(resource);
+        stripe.mutex.lock();
+        try {
+            LockEntry entry = stripe.locks.get(resource);
+            return entry == null ? null : entry.holders.get(tid);
+        } finally {
+            stripe.mutex.unlock();
+        }
+    }
+
+    private void grant(LockEntry entry, int tid, String resource, LockType type) {
+        entry.holders.put(tid, type);
+        recordLock(tid, resource);
+    }
+
+    // caller holds the stripe mutex
+    private static void wakeHead(LockEntry entry) {
+        Waiter head = entry.queue.peekFirst();
+        if (head != null) {
+            head.cond.signal();
+        }
+    }
+
+    // caller holds the stripe mutex
+    private static void cleanup(Stripe stripe, String resource, LockEntry entry) {
+        if (entry.idle()) {
+            stripe.locks.remove(resource);
+        }
+    }
+
+    // ---------------------------------------- Deadlock detection ----------------------------------------
+
+    // Build the waits-for graph from the parked requests and pick one victim per cycle
+    private void detectDeadlocks() {
+        try {
+            Map<Integer, List<Integer>> graph = new HashMap<>();
+            for (Waiter w : waiting.values()) {
+                List<Integer> blockers = blockersOf(w);
+                if (!blockers.isEmpty()) {
+                    graph.put(w.tid, blockers);
                 }
-                return false;
             }
-            if (type == LockType.WRITE) {
-                boolean onlyThisTid = holders.isEmpty();
-                if (onlyThisTid) {
-                    holders.put(tid, LockType.WRITE);
-                    transactionLocks.computeIfAbsent(tid, k -> new HashSet<>()).add(resource);
-                    return true;
+            if (graph.isEmpty()) return;
+
+            List<Integer> cycle;
+            while ((cycle = findCycle(graph)) != null) {
+                int victim = Collections.max(cycle); // tids grow over time: the highest is the youngest
+                if (chooseVictim(victim, cycle)) {
+                    Trace.warn("LockManager::detectDeadlocks cycle " + cycle + ", aborting T" + victim);
                 }
-                return false;
+                graph.remove(victim);
             }
+        } catch (Exception e) {
+            Trace.error("LockManager::detectDeadlocks failed: " + e.getMessage());
         }
+    }
 
-        return false;
+    // tids w waits for: conflicting holders plus everything queued ahead of it
+    private List<Integer> blockersOf(Waiter w) {
+        List<Integer> blockers = new ArrayList<>(2);
+        w.stripe.mutex.lock();
+        try {
+            LockEntry entry = w.stripe.locks.get(w.resource);
+            if (entry == null || !entry.queue.contains(w)) return blockers;
+            for (Map.Entry<Integer, LockType> h : entry.holders.entrySet()) {
+                if (h.getKey() != w.tid && conflicts(h.getValue(), w.type)) {
+                    blockers.add(h.getKey());
+                }
+            }
+            for (Waiter ahead : entry.queue) {
+                if (ahead == w) break;
+                if (ahead.tid != w.tid) blockers.add(ahead.tid);
+            }
+        } finally {
+            w.stripe.mutex.unlock();
+        }
+        return blockers;
+    }
+
+    private static List<Integer> findCycle(Map<Integer, List<Integer>> graph) {
+        Set<Integer> done = new HashSet<>();
+        for (Integer start : graph.keySet()) {
+            if (done.contains(start)) continue;
+            // iterative DFS keeping the current path
+            Deque<Integer> path = new ArrayDeque<>();
+            Deque<Iterator<Integer>> edges = new ArrayDeque<>();
+            Set<Integer> onPath = new HashSet<>();
+            path.push(start);
+            onPath.add(start);
+            edges.push(graph.get(start).iterator());
+            while (!path.isEmpty()) {
+                Iterator<Integer> it = edges.peek();
+                if (!it.hasNext()) {
+                    done.add(path.peek());
+                    onPath.remove(path.pop());
+                    edges.pop();
+                    continue;
+                }
+                Integer next = it.next();
+                if (onPath.contains(next)) {
+                    List<Integer> cycle = new ArrayList<>();
+                    for (Integer t : path) { // path iterates from the top of the stack
+                        cycle.add(t);
+                        if (t.equals(next)) break;
+                    }
+                    return cycle;
+                }
+                List<Integer> out = graph.get(next);
+                if (out != null && !done.contains(next)) {
+                    path.push(next);
+                    onPath.add(next);
+                    edges.push(out.iterator());
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean chooseVictim(int victim, List<Integer> cycle) {
+        Waiter w = waiting.get(victim);
+        if (w == null) return false;
+        long youngestWait = w.since;
+        for (Integer t : cycle) {
+            Waiter other = waiting.get(t);
+            if (other != null) youngestWait = Math.max(youngestWait, other.since);
+        }
+        w.stripe.mutex.lock();
+        try {
+            if (w.victim || waiting.get(victim) != w) return false;
+            w.victim = true;
+            w.cond.signal();
+        } finally {
+            w.stripe.mutex.unlock();
+        }
+        long latency = System.nanoTime() - youngestWait; // the cycle closed when its last wait began
+        deadlocks.increment();
+        detectionNanos.add(latency);
+        maxDetectionNanos.accumulateAndGet(latency, Math::max);
+        return true;
+    }
+
+    // ---------------------------------------- Metrics ----------------------------------------
+
+    public long getRequestCount() { return requests.sum(); }
+    public long getWaitCount() { return waits.sum(); }
+    public long getTimeoutCount() { return timeouts.sum(); }
+    public long getDeadlockCount() { return deadlocks.sum(); }
+
+    /** Fraction of lock requests aborted as deadlock victims. */
+    public double getDeadlockAbortRate() {
+        long n = requests.sum();
+        return n == 0 ? 0.0 : (double) deadlocks.sum() / n;
+    }
+
+    /** Mean time from a cycle closing to its victim being chosen, in ms. */
+    public double getAvgDetectionLatencyMs() {
+        long n = deadlocks.sum();
+        return n == 0 ? 0.0 : detectionNanos.sum() / 1e6 / n;
+    }
+
+    public double getMaxDetectionLatencyMs() {
+        return maxDetectionNanos.get() / 1e6;
+    }
+
+    public String getStats() {
+        return String.format("requests=%d waits=%d timeouts=%d deadlocks=%d abortRate=%.5f detectAvgMs=%.2f detectMaxMs=%.2f",
+                getRequestCount(), getWaitCount(), getTimeoutCount(), getDeadlockCount(),
+                getDeadlockAbortRate(), getAvgDetectionLatencyMs(), getMaxDetectionLatencyMs());
+    }
+
+    private void recordLock(int tid, String resource) {
+        transactionLocks.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(resource);
     }
 
     /**
      * Release all locks held by a transaction.
+     * Only the resources recorded for this tid are visited; entries left idle are dropped,
+     * and the head of each wait queue is woken.
+     * A request of tid still parked (when it is aborted for idling, say) is refused first, so it
+     * can't be granted a lock nobody would release.
      */
-    public synchronized void releaseLocks(int tid) throws RemoteException {
+    public void releaseLocks(int tid) throws RemoteException {
         try {
-            // remove tid from all resources
-            for (Map<Integer, LockType> holders : locks.values()) {
-                holders.remove(tid);
+            refuseWaiter(tid);
+            // clear record of this transaction, then drop tid from each resource it holds
+            Set<String> held = transactionLocks.remove(tid);
+            if (held != null) {
+                for (String resource : held) {
+                    Stripe stripe = stripeFor(resource);
+                    stripe.mutex.lock();
+                    try {
+                        LockEntry entry = stripe.locks.get(resource);
+                        if (entry == null) continue;
+                        entry.holders.remove(tid);
+                        wakeHead(entry);
+                        cleanup(stripe, resource, entry);
+                    } finally {
+                        stripe.mutex.unlock();
+                    }
+                }
             }
-            // clear record of this transaction
-            transactionLocks.remove(tid);
             System.out.println("LockManager::releaseLocks released all locks for T" + tid);
         } catch (Exception e) {
             throw new RemoteException("LockManager::releaseLocks failed for T" + tid, e);
         }
     }
 
+    // wake tid's parked request, if any, to be refused; once this returns it can't be granted
+    private void refuseWaiter(int tid) {
+        Waiter w = waiting.get(tid);
+        if (w == null) return;
+        w.stripe.mutex.lock();
+        try {
+            if (waiting.get(tid) != w) return;
+            w.released = true;
+            w.cond.signal();
+        } finally {
+            w.stripe.mutex.unlock();
+        }
+    }
+
 }
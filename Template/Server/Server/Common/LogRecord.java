@@ -0,0 +1,92 @@
+package Server.Common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * LogRecord
+ *
+ * One entry of an RM's redo log.
+ *  - PREPARE: everything tid staged here (new values, null for deletes) and the units it holds in
+ *    escrow, forced before the RM votes yes, so a prepared transaction survives a crash.
+ *  - COMMIT: the values tid installed, as full after-images stamped with its commit timestamp.
+ *    Replaying keeps the newest timestamp per key, so replay order and repeats don't matter.
+ *  - ABORT: tid's prepared changes are void.
+ */
+public final class LogRecord {
+
+    public static final byte PREPARE = 1;
+    public static final byte COMMIT = 2;
+    public static final byte ABORT = 3;
+
+    public final byte type;
+    public final int tid;
+    public final long ts; // commit timestamp, COMMIT only
+    public final Map<String, RMItem> items;
+    public final Map<String, Integer> escrow; // PREPARE only
+
+    private LogRecord(byte type, int tid, long ts, Map<String, RMItem> items, Map<String, Integer> escrow) {
+        this.type = type;
+        this.tid = tid;
+        this.ts = ts;
+        this.items = items;
+        this.escrow = escrow;
+    }
+
+    public static LogRecord prepare(int tid, Map<String, RMItem> staged, Map<String, Integer> escrow) {
+        return new LogRecord(PREPARE, tid, 0, staged, escrow);
+    }
+
+    public static LogRecord commit(int tid, long ts, Map<String, RMItem> writes) {
+        return new LogRecord(COMMIT, tid, ts, writes, Collections.emptyMap());
+    }
+
+    public static LogRecord abort(int tid) {
+        return new LogRecord(ABORT, tid, 0, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeInt(tid);
+        out.writeLong(ts);
+        out.writeInt(items.size());
+        for (Map.Entry<String, RMItem> entry : items.entrySet()) {
+            out.writeUTF(entry.getKey());
+            ItemCodec.write(out, entry.getValue());
+        }
+        out.writeInt(escrow.size());
+        for (Map.Entry<String, Integer> entry : escrow.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static LogRecord decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        int tid = in.readInt();
+        long ts = in.readLong();
+        int n = in.readInt();
+        Map<String, RMItem> items = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            String key = in.readUTF();
+            items.put(key, ItemCodec.read(in, key));
+        }
+        int m = in.readInt();
+        Map<String, Integer> escrow = new HashMap<>(m * 2);
+        for (int i = 0; i < m; i++) {
+            escrow.put(in.readUTF(), in.readInt());
+        }
+        return new LogRecord(type, tid, ts, items, escrow);
+    }
+}
@@ -20,7 +20,9 @@ public class Middleware implements IMiddleware {
         this.carRM = car;
         this.roomRM = room;
         this.customerRM = customer;
-        this.TM = new TransactionManager();
+        this.TM = new TransactionManager("Middleware");
+        // a restarted middleware finishes what the RMs still hold prepared
+        TM.startResolver(Arrays.asList(flightRM, carRM, roomRM, customerRM));
     }
 
     @Override
@@ -34,39 +36,80 @@ public class Middleware implements IMiddleware {
         return TM.start();
     }
 
+    // 2PC only involves the RMs tid was routed to
     @Override
     public boolean commitTransaction(int tid) throws RemoteException {
-        List<IResourceManager> rms = Arrays.asList(flightRM, carRM, roomRM, customerRM);
-        return TM.commit(tid, rms);
+        return TM.commit(tid, TM.getParticipants(tid));
     }
 
     @Override
     public boolean abortTransaction(int tid) throws RemoteException {
-        List<IResourceManager> rms = Arrays.asList(flightRM, carRM, roomRM, customerRM);
-        return TM.abort(tid, rms);
+        return TM.abort(tid, TM.getParticipants(tid));
+    }
+
+    // route a call of tid to an RM, making the RM a participant of tid; the ...ForUpdate variants
+    // are for calls that change something there. Fails once tid is no longer active.
+    private IResourceManager flight(int tid) throws RemoteException {
+        TM.addParticipant(tid, flightRM, false);
+        return flightRM;
+    }
+
+    private IResourceManager flightForUpdate(int tid) throws RemoteException {
+        TM.addParticipant(tid, flightRM, true);
+        return flightRM;
+    }
+
+    private IResourceManager car(int tid) throws RemoteException {
+        TM.addParticipant(tid, carRM, false);
+        return carRM;
+    }
+
+    private IResourceManager carForUpdate(int tid) throws RemoteException {
+        TM.addParticipant(tid, carRM, true);
+        return carRM;
+    }
+
+    private IResourceManager room(int tid) throws RemoteException {
+        TM.addParticipant(tid, roomRM, false);
+        return roomRM;
+    }
+
+    private IResourceManager roomForUpdate(int tid) throws RemoteException {
+        TM.addParticipant(tid, roomRM, true);
+        return roomRM;
+    }
+
+    private IResourceManager customer(int tid) throws RemoteException {
+        TM.addParticipant(tid, customerRM, false);
+        return customerRM;
+    }
+
+    private IResourceManager customerForUpdate(int tid) throws RemoteException {
+        TM.addParticipant(tid, customerRM, true);
+        return customerRM;
     }
 
     // -------------------- FlightRM --------------------
     @Override
     public boolean addFlight(int tid, String flightNum, int flightSeats, int flightPrice) throws RemoteException {
-        return flightRM.addFlight(tid, flightNum, flightSeats, flightPrice);
+        return flightForUpdate(tid).addFlight(tid, flightNum, flightSeats, flightPrice);
     }
 
     @Override
     public boolean deleteFlight(int tid, String flightNum) throws RemoteException {
         try {
-            if (!flightRM.flightExists(tid, flightNum)) {
+            if (!flight(tid).flightExists(tid, flightNum)) {
                 Trace.warn("MW::deleteFlight(" + tid + ", " + flightNum + ") failed -- flight not found");
                 return false;
             }
             String fKey = Flight.getKey(flightNum);
-            int reserved = flightRM.queryReserved(tid, fKey);
+            int reserved = flight(tid).queryReserved(tid, fKey);
             if (reserved > 0) {
                 Trace.warn("MW::deleteFlight(" + tid + ", " + flightNum + ") failed -- flight has reservations");
                 return false;
             }
 
-            boolean deleted = flightRM.deleteFlight(tid, flightNum);
+            boolean deleted = flightForUpdate(tid).deleteFlight(tid, flightNum);
             if (deleted) {
                 Trace.info("MW::deleteFlight(" + tid + ", " + flightNum + ") succeeded");
             } else {
@@ -81,35 +124,35 @@ public class Middleware implements IMiddleware {
 
     @Override
     public int queryFlight(int tid, String flightNumber) throws RemoteException {
-        return flightRM.queryFlight(tid, flightNumber);
+        return flight(tid).queryFlight(tid, flightNumber);
     }
 
     @Override
     public int queryFlightPrice(int tid, String flightNumber) throws RemoteException {
-        return flightRM.queryFlightPrice(tid, flightNumber);
+        return flight(tid).queryFlightPrice(tid, flightNumber);
     }
 
     // -------------------- CarRM --------------------
     @Override
     public boolean addCars(int tid, String location, int count, int price) throws RemoteException {
-        return carRM.addCars(tid, location, count, price);
+        return carForUpdate(tid).addCars(tid, location, count, price);
     }
 
     @Override
     public boolean deleteCars(int tid, String location) throws RemoteException {
         try {
-            if (!carRM.carExists(tid, location)) {
+            if (!car(tid).carExists(tid, location)) {
                 Trace.warn("MW::deleteCars(" + tid + ", " + location + ") failed -- car location not found");
                 return false;
             }
             String cKey = Car.getKey(location);
-            int reserved = carRM.queryReserved(tid, cKey);
+            int reserved = car(tid).queryReserved(tid, cKey);
             if (reserved > 0) {
                 Trace.warn("MW::deleteCars(" + tid + ", " + location + ") failed -- cars at location have reservations");
                 return false;
             }
 
-            boolean deleted = carRM.deleteCars(tid, location);
+            boolean deleted = carForUpdate(tid).deleteCars(tid, location);
             if (deleted) {
                 Trace.info("MW::deleteCars(" + tid + ", " + location + ") succeeded");
             } else {
@@ -125,35 +168,35 @@ public class Middleware implements IMiddleware {
 
     @Override
     public int queryCars(int tid, String location) throws RemoteException {
-        return carRM.queryCars(tid, location);
+        return car(tid).queryCars(tid, location);
     }
 
     @Override
     public int queryCarsPrice(int tid, String location) throws RemoteException {
-        return carRM.queryCarsPrice(tid, location);
+        return car(tid).queryCarsPrice(tid, location);
     }
 
     // -------------------- RoomRM --------------------
     @Override
     public boolean addRooms(int tid, String location, int count, int price) throws RemoteException {
-        return roomRM.addRooms(tid, location, count, price);
+        return roomForUpdate(tid).addRooms(tid, location, count, price);
     }
 
     @Override
     public boolean deleteRooms(int tid, String location) throws RemoteException {
         try {
-            if (!roomRM.roomExists(tid, location)) {
+            if (!room(tid).roomExists(tid, location)) {
                 Trace.warn("MW::deleteRooms(" + tid + ", " + location + ") failed -- room location not found");
                 return false;
             }
             String rKey = Room.getKey(location);
-            int reserved = roomRM.queryReserved(tid, rKey);
+            int reserved = room(tid).queryReserved(tid, rKey);
             if (reserved > 0) {
                 Trace.warn("MW::deleteRooms(" + tid + ", " + location + ") failed -- rooms at location have reservations");
                 return false;
             }
 
-            boolean deleted = roomRM.deleteRooms(tid, location);
+            boolean deleted = roomForUpdate(tid).deleteRooms(tid, location);
             if (deleted) {
                 Trace.info("MW::deleteRooms(" + tid + ", " + location + ") succeeded");
             } else {
@@ -168,23 +211,23 @@ public class Middleware implements IMiddleware {
 
     @Override
     public int queryRooms(int tid, String location) throws RemoteException {
-        return roomRM.queryRooms(tid, location);
+        return room(tid).queryRooms(tid, location);
     }
 
     @Override
     public int queryRoomsPrice(int tid, String location) throws RemoteException {
-        return roomRM.queryRoomsPrice(tid, location);
+        return room(tid).queryRoomsPrice(tid, location);
     }
 
     // -------------------- CustomerM --------------------
     @Override
     public int newCustomer(int tid) throws RemoteException {
-        return customerRM.newCustomer(tid);
+        return customerForUpdate(tid).newCustomer(tid);
     }
 
     @Override
     public boolean newCustomerID(int tid, int cid) throws RemoteException {
-        return customerRM.newCustomerID(tid, cid);
+        return customerForUpdate(tid).newCustomerID(tid, cid);
     }
 
     @Override
@@ -193,18 +236,18 @@ public class Middleware implements IMiddleware {
 
         try {
             // Customer exists?
-            Customer cust = (Customer) customerRM.getItem(tid, cuKey);
+            Customer cust = (Customer) customer(tid).getItem(tid, cuKey);
             if (cust == null) {
                 Trace.warn("MW::deleteCustomer(" + tid + ", " + customerID + ") failed -- no such customer");
                 return false;
             }
 
             // Get all the reservations of this customer
-            RMHashMap reservations = cust.getReservations();
+            Map<String, ReservedItem> reservations = cust.getReservations();
 
             // rollback each reserved item based on its type and count
             for (String reservedKey : reservations.keySet()) {
-                ReservedItem item = (ReservedItem) reservations.get(reservedKey);
+                ReservedItem item = reservations.get(reservedKey);
                 int count = item.getCount();
 
                 if (count > 0) {
@@ -212,13 +255,13 @@ public class Middleware implements IMiddleware {
 
                     if (reservedKey.startsWith("flight-")) {
                         String flightKey = Flight.getKey(reservedKey.split("-")[1]);
-                        ok = flightRM.rollbackReserve(tid, customerID, flightKey, count);
+                        ok = flightForUpdate(tid).rollbackReserve(tid, customerID, flightKey, count);
                     } else if (reservedKey.startsWith("car-")) {
                         String carKey = Car.getKey(reservedKey.split("-")[1]);
-                        ok = carRM.rollbackReserve(tid, customerID, carKey, count);
+                        ok = carForUpdate(tid).rollbackReserve(tid, customerID, carKey, count);
                     } else if (reservedKey.startsWith("room-")) {
                         String roomKey = Room.getKey(reservedKey.split("-")[1]);
-                        ok = roomRM.rollbackReserve(tid, customerID, roomKey, count);
+                        ok = roomForUpdate(tid).rollbackReserve(tid, customerID, roomKey, count);
                     }
 
                     if (!ok) {
@@ -228,7 +271,7 @@ public class Middleware implements IMiddleware {
             }
 
             // Delete customer only after all rollbacks succeed
-            boolean deleted = customerRM.deleteCustomer(tid, customerID);
+            boolean deleted = customerForUpdate(tid).deleteCustomer(tid, customerID);
             if (deleted) {
                 Trace.info("MW::deleteCustomer(" + tid + ", " + customerID + ") succeeded");
             } else {
@@ -250,7 +293,7 @@ public class Middleware implements IMiddleware {
 
     @Override
     public String queryCustomerInfo(int tid, int customerID) throws RemoteException {
-        return customerRM.queryCustomerInfo(tid, customerID);
+        return customer(tid).queryCustomerInfo(tid, customerID);
     }
 
     //--------------------------------Reservation----------------------
@@ -260,28 +303,28 @@ public class Middleware implements IMiddleware {
 
         try {
             // 1. Check customer exists in CustomerRM
-            if (!customerRM.customerExists(tid, customerID)) {
+            if (!customer(tid).customerExists(tid, customerID)) {
                 Trace.warn("MW::reserveFlight(" + tid + ", " + customerID + ", " + flightNumber + ") failed -- customer doesn't exist");
                 return false;
             }
 
             // 2. Query price ( RemoteException)
-            int price = flightRM.queryFlightPrice(tid, flightNumber);
+            int price = flight(tid).queryFlightPrice(tid, flightNumber);
 
             // 3. Reserve seat in FlightRM
-            boolean reserved = flightRM.reserveFlight(tid, customerID, flightNumber);
+            boolean reserved = flightForUpdate(tid).reserveFlight(tid, customerID, flightNumber);
             if (!reserved) {
                 Trace.warn("MW::reserveFlight(" + tid + ", " + customerID + ", " + flightNumber + ") failed -- flight unavailable");
                 return false;
             }
 
             // 4. Update CustomerRM
-            boolean added = customerRM.customerReserve(tid, customerID, flightKey, 1, price);
+            boolean added = customerForUpdate(tid).customerReserve(tid, customerID, flightKey, 1, price);
             if (!added) {
                 Trace.warn("MW::reserveFlight(" + tid + ", " + customerID + ", " + flightNumber + ") failed -- could not update customer");
 
                 // rollback ONLY in FlightRM (not whole transaction)
-                flightRM.rollbackReserve(tid, customerID, flightKey, 1);
+                flightForUpdate(tid).rollbackReserve(tid, customerID, flightKey, 1);
                 return false;
             }
 
@@ -299,26 +342,26 @@ public class Middleware implements IMiddleware {
 
         try {
             // 1. Check customer exists
-            if (!customerRM.customerExists(tid, customerID)) {
+            if (!customer(tid).customerExists(tid, customerID)) {
                 Trace.warn("MW::reserveCar(" + tid + ", " + customerID + ", " + location + ") failed -- customer doesn't exist");
                 return false;
             }
 
             // 2. Query price
-            int price = carRM.queryCarsPrice(tid, location);
+            int price = car(tid).queryCarsPrice(tid, location);
 
             // 3. Try reserve car in CarRM
-            boolean reserved = carRM.reserveCar(tid, customerID, location);
+            boolean reserved = carForUpdate(tid).reserveCar(tid, customerID, location);
             if (!reserved) {
                 Trace.warn("MW::reserveCar(" + tid + ", " + customerID + ", " + location + ") failed -- no cars available");
                 return false;
             }
 
             // 4. Update customer reservations
-            boolean added = customerRM.customerReserve(tid, customerID, carKey, 1, price);
+            boolean added = customerForUpdate(tid).customerReserve(tid, customerID, carKey, 1, price);
             if (!added) {
                 Trace.warn("MW::reserveCar(" + tid + ", " + customerID + ", " + location + ") failed -- could not update customer");
-                carRM.rollbackReserve(tid, customerID, carKey, 1); // rollback staged car reservation
+                carForUpdate(tid).rollbackReserve(tid, customerID, carKey, 1); // rollback staged car reservation
                 return false;
             }
 
@@ -336,26 +379,26 @@ public class Middleware implements IMiddleware {
 
         try {
             // 1. Check customer exists
-            if (!customerRM.customerExists(tid, customerID)) {
+            if (!customer(tid).customerExists(tid, customerID)) {
                 Trace.warn("MW::reserveRoom(" + tid + ", " + customerID + ", " + location + ") failed -- customer doesn't exist");
                 return false;
             }
 
             // 2. Query price
-            int price = roomRM.queryRoomsPrice(tid, location);
+            int price = room(tid).queryRoomsPrice(tid, location);
 
             // 3. Try reserve room in RoomRM
-            boolean reserved = roomRM.reserveRoom(tid, customerID, location);
+            boolean reserved = roomForUpdate(tid).reserveRoom(tid, customerID, location);
             if (!reserved) {
                 Trace.warn("MW::reserveRoom(" + tid + ", " + customerID + ", " + location + ") failed -- no rooms available");
                 return false;
             }
 
             // 4. Update customer reservations
-            boolean added = customerRM.customerReserve(tid, customerID, roomKey, 1, price);
+            boolean added = customerForUpdate(tid).customerReserve(tid, customerID, roomKey, 1, price);
             if (!added) {
                 Trace.warn("MW::reserveRoom(" + tid + ", " + customerID + ", " + location + ") failed -- could not update customer");
-                roomRM.rollbackReserve(tid, customerID, roomKey, 1); // rollback staged room reservation
+                roomForUpdate(tid).rollbackReserve(tid, customerID, roomKey, 1); // rollback staged room reservation
                 return false;
             }
 
@@ -432,11 +475,11 @@ public class Middleware implements IMiddleware {
         for (Map.Entry<String, Integer> entry : reservedFlights.entrySet()) {
             String flightKey = Flight.getKey(entry.getKey());
             int count = entry.getValue();
-            if (!flightRM.rollbackReserve(tid, customerID, flightKey, count)) {
+            if (!flightForUpdate(tid).rollbackReserve(tid, customerID, flightKey, count)) {
                 Trace.warn("MW::rollbackReservations(" + tid + ", cust=" + customerID + ") failed rollback for flight=" + entry.getKey());
                 success = false;
             }
-            if (!customerRM.rollbackReserve(tid, customerID, flightKey, count)) {
+            if (!customerForUpdate(tid).rollbackReserve(tid, customerID, flightKey, count)) {
                 Trace.warn("MW::rollbackReservations(" + tid + ", cust=" + customerID + ") failed rollback in CustomerRM for flight=" + entry.getKey());
                 success = false;
             }
@@ -446,11 +489,11 @@ public class Middleware implements IMiddleware {
         for (Map.Entry<String, Integer> entry : reservedCars.entrySet()) {
             String carKey = Car.getKey(entry.getKey());
             int count = entry.getValue();
-            if (!carRM.rollbackReserve(tid, customerID, carKey, count)) {
+            if (!carForUpdate(tid).rollbackReserve(tid, customerID, carKey, count)) {
                 Trace.warn("MW::rollbackReservations(" + tid + ", cust=" + customerID + ") failed rollback for car@" + entry.getKey());
                 success = false;
             }
-            if (!customerRM.rollbackReserve(tid, customerID, carKey, count)) {
+            if (!customerForUpdate(tid).rollbackReserve(tid, customerID, carKey, count)) {
                 Trace.warn("MW::rollbackReservations(" + tid + ", cust=" + customerID + ") failed rollback in CustomerRM for car@" + entry.getKey());
                 success = false;
             }
@@ -460,11 +503,11 @@ public class Middleware implements IMiddleware {
         for (Map.Entry<String, Integer> entry : reservedRooms.entrySet()) {
             String roomKey = Room.getKey(entry.getKey());
             int count = entry.getValue();
-            if (!roomRM.rollbackReserve(tid, customerID, roomKey, count)) {
+            if (!roomForUpdate(tid).rollbackReserve(tid, customerID, roomKey, count)) {
                 Trace.warn("MW::rollbackReservations(" + tid + ", cust=" + customerID + ") failed rollback for room@" + entry.getKey());
                 success = false;
             }
-            if (!customerRM.rollbackReserve(tid, customerID, roomKey, count)) {
+            if (!customerForUpdate(tid).rollbackReserve(tid, customerID, roomKey, count)) {
                 Trace.warn("MW::rollbackReservations(" + tid + ", cust=" + customerID + ") failed rollback in CustomerRM for room@" + entry.getKey());
                 success = false;
             }
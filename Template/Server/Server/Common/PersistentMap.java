@@ -0,0 +1,201 @@
+package Server.Common;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * PersistentMap
+ *
+ * Immutable sorted map. with() and without() return a new map that shares every node off the
+ * changed path with this one, so an update allocates O(log n) nodes and copying the map is free.
+ * Implemented as a treap whose priorities are derived from the key hash, so equal contents
+ * always give the same tree.
+ *
+ * The Map view is read-only: put, remove and clear throw UnsupportedOperationException.
+ */
+public final class PersistentMap<K extends Comparable<K>, V> extends AbstractMap<K, V> implements Serializable {
+
+    // the UIDs the JVM computed before they were declared, so maps already written stay readable
+    private static final long serialVersionUID = -4948383303961441718L;
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    private static final class Node<K, V> implements Serializable {
+        private static final long serialVersionUID = 6949155533146442292L;
+
+        final K key;
+        final V value;
+        final int priority;
+        final Node<K, V> left;
+        final Node<K, V> right;
+
+        Node(K key, V value, int priority, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+        }
+
+        Node<K, V> withChildren(Node<K, V> l, Node<K, V> r) {
+            return new Node<>(key, value, priority, l, r);
+        }
+    }
+
+    private final Node<K, V> root;
+    private final int size;
+
+    private PersistentMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<K>, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        Node<K, V> n = find((K) key);
+        return (n == null) ? null : n.value;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean containsKey(Object key) {
+        return find((K) key) != null;
+    }
+
+    /** @return a map with key mapped to value */
+    public PersistentMap<K, V> with(K key, V value) {
+        boolean present = find(key) != null;
+        return new PersistentMap<>(insert(root, key, value, priority(key)), present ? size : size + 1);
+    }
+
+    /** @return a map without key */
+    public PersistentMap<K, V> without(K key) {
+        if (find(key) == null) {
+            return this;
+        }
+        return new PersistentMap<>(delete(root, key), size - 1);
+    }
+
+    private Node<K, V> find(K key) {
+        Node<K, V> n = root;
+        while (n != null) {
+            int c = key.compareTo(n.key);
+            if (c == 0) {
+                return n;
+            }
+            n = (c < 0) ? n.left : n.right;
+        }
+        return null;
+    }
+
+    private static int priority(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static <K extends Comparable<K>, V> Node<K, V> insert(Node<K, V> n, K key, V value, int priority) {
+        if (n == null) {
+            return new Node<>(key, value, priority, null, null);
+        }
+        int c = key.compareTo(n.key);
+        if (c == 0) {
+            return new Node<>(key, value, n.priority, n.left, n.right);
+        }
+        if (c < 0) {
+            Node<K, V> l = insert(n.left, key, value, priority);
+            if (l.priority > n.priority) { // rotate right
+                return l.withChildren(l.left, n.withChildren(l.right, n.right));
+            }
+            return n.withChildren(l, n.right);
+        }
+        Node<K, V> r = insert(n.right, key, value, priority);
+        if (r.priority > n.priority) { // rotate left
+            return r.withChildren(n.withChildren(n.left, r.left), r.right);
+        }
+        return n.withChildren(n.left, r);
+    }
+
+    private static <K extends Comparable<K>, V> Node<K, V> delete(Node<K, V> n, K key) {
+        int c = key.compareTo(n.key);
+        if (c == 0) {
+            return merge(n.left, n.right);
+        }
+        return (c < 0) ? n.withChildren(delete(n.left, key), n.right) : n.withChildren(n.left, delete(n.right, key));
+    }
+
+    // join two treaps whose keys are all smaller in a than in b
+    private static <K, V> Node<K, V> merge(Node<K, V> a, Node<K, V> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            return a.withChildren(a.left, merge(a.right, b));
+        }
+        return b.withChildren(merge(a, b.left), b.right);
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator<>(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    // in-order walk
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final ArrayDeque<Node<K, V>> path = new ArrayDeque<>();
+
+        EntryIterator(Node<K, V> root) {
+            descend(root);
+        }
+
+        private void descend(Node<K, V> n) {
+            for (; n != null; n = n.left) {
+                path.push(n);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (path.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node<K, V> n = path.pop();
+            descend(n.right);
+            return new AbstractMap.SimpleImmutableEntry<>(n.key, n.value);
+        }
+    }
+}
@@ -0,0 +1,411 @@
+package Server.Common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * RedoLog
+ *
+ * Append-only write-ahead log of one resource manager, with group commit.
+ * append() only copies a record into the in-memory tail and returns its LSN (the file offset just
+ * past it). force(lsn) blocks until the log is durable up to lsn. A single flusher thread writes
+ * the tail and fsyncs it for every committer waiting at that moment: once a force request arrives
+ * it lingers a little for others to join, and goes as soon as batchSize committers are waiting.
+ * It only lingers when the previous flush was shared, so a single client never pays for it.
+ *
+ * Each record is framed as [length][crc32][payload]. A torn or corrupt record at the end of the
+ * file (a crash in the middle of a write) ends the log and is cut off when it is reopened.
+ *
+ * The log is a chain of segment files: the first is file itself, each later one is named after
+ * file and the LSN it starts at (Flights.log.4096), and LSNs count bytes across the whole chain.
+ * roll() starts a new segment and discardBefore() deletes the ones a checkpoint made unnecessary,
+ * so the log doesn't grow without limit. A log that is never rolled is the single file.
+ */
+public class RedoLog {
+
+    // committers that trigger a flush without waiting out the linger, -Drm.log.batch=<n>
+    public static final int DEFAULT_BATCH = Integer.getInteger("rm.log.batch", 32);
+    // how long the flusher waits for more committers to join a flush (us), -Drm.log.lingerMicros=<us>
+    public static final long DEFAULT_LINGER_MICROS = Long.getLong("rm.log.lingerMicros", 200L);
+
+    private final Path file;
+    private final TreeMap<Long, Path> segments = new TreeMap<>(); // start LSN -> segment file, guarded by mutex
+    private FileChannel channel; // the last segment, guarded by mutex
+    private long channelStart; // LSN the last segment starts at
+    private final int batchSize;
+    private final long lingerNanos;
+
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final Condition flushNeeded = mutex.newCondition();
+    private final Condition flushed = mutex.newCondition();
+    private ByteBuffer tail = ByteBuffer.allocate(64 * 1024); // appended, not yet written
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long appendedLsn; // end of the last appended record
+    private long durableLsn; // everything before this is on disk
+    private long requestedLsn; // highest LSN a committer is waiting for
+    private int joined; // committers that asked for a flush since the last one started
+    private long firstJoined; // when the first of them asked
+    private int lastJoined; // committers the previous flush was started for
+    private IOException failure;
+    private boolean closed;
+    private final Thread flusher;
+    private long flushes;
+
+    /** Receives the payload of each record during replay */
+    public interface Handler {
+        void accept(byte[] payload) throws IOException;
+    }
+
+    /**
+     * Open (or create) the log at file. Call replay() before appending: it also cuts off a torn tail.
+     */
+    public RedoLog(Path file, int batchSize, long lingerMicros) throws IOException {
+        this.file = file;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, lingerMicros));
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        findSegments();
+        channelStart = segments.lastKey();
+        this.channel = FileChannel.open(segments.get(channelStart), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        long end = channelStart + channel.size();
+        appendedLsn = end;
+        durableLsn = end;
+
+        flusher = new Thread(this::flushLoop, "redo-flusher-" + file.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public RedoLog(Path file) throws IOException {
+        this(file, DEFAULT_BATCH, DEFAULT_LINGER_MICROS);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Hand every record from offset from onwards to consumer, in log order. A torn or corrupt
+     * record ends the log: it and anything after it are cut off, and appends go on from there.
+     * Only the last segment can end that way; the ones before it were complete when it was started.
+     * @return number of records read
+     */
+    public int replay(long from, Handler consumer) throws IOException {
+        if (from > appendedLsn) {
+            throw new IOException("redo log " + file + " ends at " + appendedLsn + ", before offset " + from);
+        }
+        if (from < segments.firstKey()) {
+            throw new IOException("redo log " + file + " starts at " + segments.firstKey() + ", after offset " + from);
+        }
+        int n = 0;
+        long end = from;
+        for (long start = segments.floorKey(from); ; ) {
+            try (DataInputStream in = openAt(segments.get(start), end - start)) {
+                byte[] payload;
+                while ((payload = next(in)) != null) {
+                    consumer.accept(payload);
+                    end += 8 + payload.length;
+                    n++;
+                }
+            }
+            Long next = segments.higherKey(start);
+            if (next == null) {
+                break;
+            }
+            if (end != next) {
+                throw new IOException("redo log " + segments.get(start) + " ends at " + end + ", before the next segment at " + next);
+            }
+            start = next;
+        }
+        if (end < appendedLsn) {
+            Trace.warn("RedoLog::replay(" + file + ") cut " + (appendedLsn - end) + " bytes of torn tail");
+            mutex.lock();
+            try {
+                channel.truncate(end - channelStart);
+                channel.force(true);
+                channel.position(end - channelStart);
+                appendedLsn = end;
+                durableLsn = end;
+            } finally {
+                mutex.unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Make everything appended durable and start a new segment at the end of the log, so the
+     * records before it can be deleted once nothing replays them. Nothing may be appended meanwhile.
+     * @return the LSN the new segment starts at
+     */
+    public long roll() throws IOException {
+        long end = getEnd();
+        force(end);
+        mutex.lock();
+        try {
+            if (appendedLsn != end) {
+                throw new IOException("redo log " + file + " was appended to while rolling");
+            }
+            if (end == channelStart) {
+                return end; // the last segment is still empty
+            }
+            Path next = segmentFile(end);
+            FileChannel fresh = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            channel.close();
+            channel = fresh;
+            channelStart = end;
+            segments.put(end, next);
+            return end;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Delete the segments that end at or before lsn; replay() can't start before lsn afterwards.
+     * @return number of segments deleted
+     */
+    public int discardBefore(long lsn) throws IOException {
+        mutex.lock();
+        try {
+            int n = 0;
+            while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= lsn) {
+                Files.deleteIfExists(segments.pollFirstEntry().getValue());
+                n++;
+            }
+            return n;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Add a record to the tail of the log. It is durable once force(lsn) returns.
+     * @return the record's LSN
+     */
+    public long append(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        mutex.lock();
+        try {
+            if (failure != null) {
+                throw new IOException("redo log " + file + " failed earlier", failure);
+            }
+            if (closed) {
+                throw new IOException("redo log " + file + " is closed");
+            }
+            int size = 8 + payload.length;
+            if (tail.remaining() < size) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(tail.capacity() * 2, tail.position() + size));
+                tail.flip();
+                bigger.put(tail);
+                tail = bigger;
+            }
+            tail.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+            appendedLsn += size;
+            return appendedLsn;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /** Block until the log is durable up to lsn */
+    public void force(long lsn) throws IOException {
+        mutex.lock();
+        try {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            requestedLsn = Math.max(requestedLsn, lsn);
+            if (joined++ == 0) {
+                firstJoined = System.nanoTime();
+            }
+            flushNeeded.signal();
+            while (durableLsn < lsn && failure == null) {
+                flushed.awaitUninterruptibly();
+            }
+            if (durableLsn < lsn) {
+                throw new IOException("redo log " + file + " failed", failure);
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /** Append a record and wait until it is durable */
+    public long appendAndForce(byte[] payload) throws IOException {
+        long lsn = append(payload);
+        force(lsn);
+        return lsn;
+    }
+
+    /** @return LSN of the last appended record */
+    public long getEnd() {
+        mutex.lock();
+        try {
+            return appendedLsn;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /** @return number of fsyncs so far */
+    public long getFlushCount() {
+        mutex.lock();
+        try {
+            return flushes;
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    /** Flush what is left and stop the flusher */
+    public void close() throws IOException {
+        force(getEnd());
+        mutex.lock();
+        try {
+            closed = true;
+            flushNeeded.signal();
+        } finally {
+            mutex.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer batch;
+            long end;
+            FileChannel out;
+            mutex.lock();
+            try {
+                // sleep until someone forces, then linger for more committers unless the batch is full
+                while (!closed) {
+                    if (requestedLsn <= durableLsn) {
+                        joined = 0; // whoever joined was covered by the last flush
+                        flushNeeded.awaitUninterruptibly();
+                        continue;
+                    }
+                    // a lone committer last time: nobody is likely to join, so don't make it wait
+                    long lingered = System.nanoTime() - firstJoined;
+                    if (joined >= batchSize || lingered >= lingerNanos || lastJoined <= 1) {
+                        break;
+                    }
+                    try {
+                        flushNeeded.awaitNanos(lingerNanos - lingered);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                batch = tail;
+                tail = spare;
+                spare = null;
+                end = appendedLsn;
+                out = channel;
+                lastJoined = joined;
+                joined = 0;
+            } finally {
+                mutex.unlock();
+            }
+
+            IOException error = null;
+            try {
+                batch.flip();
+                while (batch.hasRemaining()) {
+                    out.write(batch);
+                }
+                out.force(false);
+            } catch (IOException e) {
+                error = e;
+                Trace.error("RedoLog::flush(" + file + ") failed: " + e.getMessage());
+            }
+
+            mutex.lock();
+            try {
+                batch.clear();
+                spare = batch;
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableLsn = end;
+                    flushes++;
+                }
+                flushed.signalAll();
+            } finally {
+                mutex.unlock();
+            }
+        }
+    }
+
+    private Path segmentFile(long start) {
+        return (start == 0) ? file : file.resolveSibling(file.getFileName() + "." + start);
+    }
+
+    // the segments on disk; file itself, empty, for a new log
+    private void findSegments() throws IOException {
+        String prefix = file.getFileName() + ".";
+        Path dir = (file.getParent() != null) ? file.getParent() : file.toAbsolutePath().getParent();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(f -> {
+                String name = f.getFileName().toString();
+                if (name.startsWith(prefix) && name.length() > prefix.length()
+                        && name.substring(prefix.length()).chars().allMatch(Character::isDigit)) {
+                    segments.put(Long.parseLong(name.substring(prefix.length())), f);
+                }
+            });
+        }
+        if (Files.exists(file) || segments.isEmpty()) {
+            segments.put(0L, file);
+        }
+    }
+
+    private static DataInputStream openAt(Path segment, long offset) throws IOException {
+        InputStream raw = Channels.newInputStream(FileChannel.open(segment, StandardOpenOption.READ).position(offset));
+        return new DataInputStream(new BufferedInputStream(raw, 64 * 1024));
+    }
+
+    // next intact record, or null at the end of the log
+    private static byte[] next(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > (64 << 20)) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return ((int) crc.getValue() == checksum) ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+}
@@ -5,41 +5,189 @@
 
 package Server.Common;
 import Server.Interface.IResourceManager;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public abstract class ResourceManager implements IResourceManager
 {
+	// where the redo logs go, -Drm.logdir=<dir>; -Drm.log=false keeps the RM in memory only
+	private static final String LOG_DIR = System.getProperty("rm.logdir", "logs");
+	private static final boolean LOGGING = Boolean.parseBoolean(System.getProperty("rm.log", "true"));
+	// seconds between fuzzy checkpoints, -Drm.checkpoint.seconds=<s>, 0 turns them off
+	private static final int CHECKPOINT_SECONDS = Integer.getInteger("rm.checkpoint.seconds", 60);
+	// seconds a transaction may go without a call here before it is aborted, -Drm.idleTimeoutSeconds=<s>,
+	// 0 turns it off. Longer than the middleware's, which normally aborts abandoned transactions first.
+	private static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("rm.idleTimeoutSeconds", 120);
+	// outcomes kept for a TM that asks again, -Drm.outcomes=<n> (or -Drm.onePhaseOutcomes=<n>): the latest
+	// one-phase commits and transactions aborted here, as deadlock victims or for idling
+	private static final int OUTCOMES = Integer.getInteger("rm.outcomes", Integer.getInteger("rm.onePhaseOutcomes", 1 << 16));
+
     protected String m_name = "";
-    protected RMHashMap m_data; // Global storage
+    protected VersionedStore m_data; // Global storage, one version per commit
     protected LockManager LM;  // Lock manager
-	protected Map<Integer, Map<String, RMItem>> transactionData;// Transaction workspace
+	protected Map<Integer, Workspace> workspaces = new ConcurrentHashMap<>(); // Transaction workspace, tid -> staged changes
+	protected Map<String, Integer> escrowHeld = new ConcurrentHashMap<>(); // key -> units held by uncommitted escrows, updated under the key's m_data lock
+	protected Map<Integer, Long> snapshots = new ConcurrentHashMap<>(); // tid -> snapshot its queries read
+	protected Map<Integer, Map<String, LockManager.LockType>> snapshotReads = new ConcurrentHashMap<>(); // tid -> keys it read from that snapshot, in the mode its queries asked for
+	protected RedoLog log; // null when logging is off
+	protected Map<Integer, byte[]> prepared = new ConcurrentHashMap<>(); // tid -> its PREPARE record, until the decision is logged
+	private static final byte[] NOT_LOGGED = new byte[0]; // PREPARE record of a tid prepared with logging off
+	// held shared while a record is appended and prepared or the store updated with it, exclusively to pick a checkpoint's start
+	protected ReentrantReadWriteLock logGate = new ReentrantReadWriteLock();
+	private long checkpointLsn = -1; // log offset the last checkpoint replays from
+	private Thread checkpointer;
+	private final TimeWheel idle; // null when idle transactions are never aborted
+	private final Map<Integer, Boolean> outcomes = new HashMap<>(); // tid -> committed here in one phase, or aborted here; the latest OUTCOMES
+	private final ArrayDeque<Integer> outcomeOrder = new ArrayDeque<>(); // tids in outcomes, oldest first
     public ResourceManager(String name) {
         m_name = name;
-		transactionData = new HashMap<>();
-		m_data = new RMHashMap();
+		m_data = new VersionedStore();
 		LM = new LockManager();
-		LockManager LM = new LockManager();
+		if (LOGGING) {
+			openLog();
+		}
+		idle = (IDLE_TIMEOUT_SECONDS > 0) ? new TimeWheel(name + "-idle", IDLE_TIMEOUT_SECONDS * 1000L, this::expire) : null;
     }
     public String getName() throws RemoteException {
         return m_name;
     }
+	@Override
+	public String getLockStats() throws RemoteException {
+		return LM.getStats() + " expired=" + ((idle == null) ? 0 : idle.getExpiredCount());
+	}
+	@Override
+	public int[] getInDoubt() throws RemoteException {
+		return prepared.keySet().stream().mapToInt(Integer::intValue).toArray();
+	}
 
 	//-------------------------------------------------Common Usages--------------------------------
+	// Committed versions are shared by every reader: never modify the result, use copyData to change it
 	protected RMItem readData(String key) {
-		synchronized(m_data) {
-			RMItem item = m_data.get(key);
-			if (item != null) {
-				return (RMItem)item.clone();
-			}
-			return null;
+		return m_data.get(key);
+	}
+	// Private copy of the committed value of key, to modify and stage
+	protected RMItem copyData(String key) {
+		RMItem item = m_data.get(key);
+		if (item != null) {
+			return (RMItem)item.clone();
 		}
+		return null;
 	}
 	// Writes a data item
 	protected void writeData(String key, RMItem value) {
-		synchronized(m_data) {
-			m_data.put(key, value);
+		m_data.put(key, value);
+	}
+
+	// Committed value of key in tid's snapshot, taken at its first lock-free read here, for a query
+	// that would lock it in mode. Not a copy.
+	protected RMItem readSnapshot(int tid, String key, LockManager.LockType mode) {
+		touch(tid);
+		long ts = snapshots.computeIfAbsent(tid, k -> m_data.openSnapshot());
+		snapshotReads.computeIfAbsent(tid, k -> new ConcurrentHashMap<>())
+				.merge(key, mode, (a, b) -> a == b ? a : LockManager.LockType.READ);
+		return m_data.get(key, ts);
+	}
+
+	/**
+	 * Read key for a query. As long as tid hasn't written at this RM, it reads its snapshot and
+	 * takes no lock, so searches never block or abort writers, and it keeps seeing the same values.
+	 * Once it has written here, it reads under a mode lock as before, its own changes included.
+	 * The returned item must not be modified.
+	 */
+	protected RMItem queryData(int tid, String key, LockManager.LockType mode) throws RemoteException, DeadlockException {
+		if (!workspaces.containsKey(tid)) {
+			return readSnapshot(tid, key, mode);
+		}
+		if (!lock(tid, key, mode)) {
+			throw new RemoteException("Lock failed in query tid=" + tid + " key=" + key);
+		}
+		RMItem item = readTransactionData(tid, key);
+		return (item != null) ? item : readData(key);
+	}
+
+	// Lock key for tid; every operation of tid goes through here or readSnapshot
+	protected boolean lock(int tid, String key, LockManager.LockType mode) throws RemoteException, DeadlockException {
+		touch(tid);
+		if (mode != LockManager.LockType.READ && !workspaces.containsKey(tid) && !lockSnapshotReads(tid)) {
+			return false;
+		}
+		return LM.lock(tid, key, mode);
+	}
+
+	/**
+	 * tid is about to write here for the first time, and what it writes may depend on what it read:
+	 * lock every key its snapshot saw, in the mode its query asked for, and check none has changed
+	 * since, as if it had read them under locks all along. Then it leaves its snapshot and reads
+	 * under locks from here on. A price read under ESCROW stays ESCROW, so a reservation that
+	 * follows it keeps sharing the key with other buyers.
+	 * @return false if a lock wasn't granted, or if a key changed, in which case tid is aborted here
+	 */
+	private boolean lockSnapshotReads(int tid) throws RemoteException, DeadlockException {
+		Long ts = snapshots.get(tid);
+		if (ts != null) {
+			for (Map.Entry<String, LockManager.LockType> read : snapshotReads.getOrDefault(tid, Map.of()).entrySet()) {
+				String key = read.getKey();
+				if (!LM.lock(tid, key, read.getValue())) {
+					return false;
+				}
+				if (!unchanged(m_data.get(key, ts), m_data.get(key), read.getValue())) {
+					Trace.warn("RM::lock(" + tid + ") " + key + " changed after tid read it, aborting it");
+					abortVictim(tid);
+					return false;
+				}
+			}
+			closeSnapshot(tid);
+		}
+		workspaceFor(tid);
+		return true;
+	}
+
+	// what a read in mode saw of then is still so in now; under ESCROW, only what escrow never changes counts
+	private static boolean unchanged(RMItem then, RMItem now, LockManager.LockType mode) {
+		if (then == now) {
+			return true;
+		}
+		return mode == LockManager.LockType.ESCROW && then instanceof ReservableItem && now instanceof ReservableItem
+				&& ((ReservableItem) then).getPrice() == ((ReservableItem) now).getPrice();
+	}
+
+	// tid is in use here: restart its idle timeout
+	private void touch(int tid) {
+		if (idle != null) {
+			idle.touch(tid);
+		}
+	}
+
+	// false if tid's idle timeout fired, in which case it is being or has been aborted
+	private boolean stopIdleTimeout(int tid) {
+		return idle == null || idle.cancel(tid);
+	}
+
+	// tid made no call here for IDLE_TIMEOUT_SECONDS, its client is likely gone: free what it holds
+	private void expire(int tid) {
+		Trace.warn("RM::expire(" + tid + ") idle for " + IDLE_TIMEOUT_SECONDS + " s, aborting it");
+		try {
+			abortVictim(tid);
+		} catch (RemoteException e) {
+			Trace.error("RM::expire(" + tid + ") failed: " + e.getMessage());
+		}
+	}
+
+	private void closeSnapshot(int tid) {
+		snapshotReads.remove(tid);
+		Long ts = snapshots.remove(tid);
+		if (ts != null) {
+			m_data.closeSnapshot(ts);
 		}
 	}
 //	// Remove the item out of storage
@@ -149,20 +297,14 @@ public abstract class ResourceManager implements IResourceManager
 	@Override
 	public int queryReserved(int tid, String key) throws RemoteException {
 		try {
-			if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-				throw new RemoteException("Lock failed in queryReserved tid=" + tid + " key=" + key);
-			}
-
-			ReservableItem item = (ReservableItem) readTransactionData(tid, key);
-			if (item == null) {
-				item = (ReservableItem) readData(key);
-			}
+			ReservableItem item = (ReservableItem) queryData(tid, key, LockManager.LockType.READ);
 
 			int reserved = (item == null) ? 0 : item.getReserved();
 			Trace.info("RM::queryReserved(" + tid + ", " + key + ") = " + reserved);
 			return reserved;
 
 		} catch (DeadlockException e) {
+			abortVictim(tid);
 			throw new RemoteException("Deadlock in queryReserved xid=" + tid, e);
 		}
 	}
@@ -197,30 +339,386 @@ public abstract class ResourceManager implements IResourceManager
 //    public abstract boolean deleteCustomer(int tid, int customerID) throws RemoteException;
 //    public abstract String queryCustomerInfo(int tid, int customerID) throws RemoteException;
 
+	//---------------------------------------------------Escrow----------------------------------------
+	/**
+	 * Reserve units of a ReservableItem. Caller holds an ESCROW (or WRITE) lock on key.
+	 * Under a WRITE lock the staged copy is updated as before; otherwise the units are taken
+	 * from the item's free quantity (count minus units held by other open escrows) and only
+	 * the delta is recorded, so concurrent buyers of the same item don't conflict.
+	 * @return false if the item doesn't exist or has fewer than count free units
+	 */
+	protected boolean escrowReserve(int tid, String key, int count) {
+		readTransactionData(tid, key); // folds our own delta first if we already hold key exclusively
+		Workspace workspace = workspaces.get(tid);
+		if (workspace != null && workspace.isStaged(tid, key)) {
+			ReservableItem staged = (ReservableItem) workspace.get(tid, key);
+			if (staged == null || staged.getCount() < count) {
+				return false; // staged delete, or sold out
+			}
+			staged.setCount(staged.getCount() - count);
+			staged.setReserved(staged.getReserved() + count);
+			return true;
+		}
+
+		m_data.lock(key);
+		try {
+			ReservableItem item = (ReservableItem) m_data.get(key);
+			int held = escrowHeld.getOrDefault(key, 0);
+			if (item == null || item.getCount() - held < count) {
+				return false;
+			}
+			escrowHeld.put(key, held + count);
+		} finally {
+			m_data.unlock(key);
+		}
+		workspaceFor(tid).addEscrow(tid, key, count);
+		return true;
+	}
+
+	// Give back units held by an escrow that is aborting, or that has been folded into a staged copy
+	private void releaseEscrow(String key, int units) {
+		m_data.lock(key);
+		try {
+			escrowHeld.computeIfPresent(key, (k, held) -> held > units ? held - units : null);
+		} finally {
+			m_data.unlock(key);
+		}
+	}
+
+	// Add a committed escrow to the write set; its held units go back once it is installed. Caller holds key's m_data lock.
+	private void applyEscrow(Map<String, RMItem> writes, String key, int units) {
+		ReservableItem item = (ReservableItem) copyData(key);
+		if (item != null) {
+			item.setCount(item.getCount() - units);
+			item.setReserved(item.getReserved() + units);
+			writes.put(key, item);
+		}
+	}
+
+	// tid now holds key exclusively: turn its escrow delta into an ordinary staged copy
+	private RMItem foldEscrow(int tid, String key, Workspace workspace) {
+		int units = workspace.takeEscrow(tid, key);
+		releaseEscrow(key, units);
+		ReservableItem item = (ReservableItem) copyData(key);
+		if (item != null) {
+			item.setCount(item.getCount() - units);
+			item.setReserved(item.getReserved() + units);
+		}
+		writeTransactionData(tid, key, item);
+		return item;
+	}
+
+	//---------------------------------------------------Recovery----------------------------------------
+	private void openLog() {
+		try {
+			log = new RedoLog(Paths.get(LOG_DIR, m_name + ".log"));
+			recover();
+		} catch (IOException e) {
+			Trace.error("RM::openLog(" + m_name + ") failed, running without a redo log: " + e.getMessage());
+			log = null;
+			return;
+		}
+		if (CHECKPOINT_SECONDS > 0) {
+			checkpointer = new Thread(this::checkpointLoop, "checkpointer-" + m_name);
+			checkpointer.setDaemon(true);
+			checkpointer.start();
+		}
+	}
+
+	private Path checkpointFile() {
+		return Paths.get(LOG_DIR, m_name + ".ckpt");
+	}
+
+	/**
+	 * Rebuild the committed state from the last checkpoint and the redo log after it, keeping the
+	 * newest after-image of each key. The checkpoint stays mapped under the store, which only
+	 * decodes its items as they are used. Transactions that prepared but never logged a decision are
+	 * staged again with their locks and escrows, so the TM can still commit or abort them.
+	 */
+	private void recover() throws IOException {
+		long start = System.nanoTime();
+		Map<String, RMItem> state = new HashMap<>();
+		Map<String, Long> stamps = new HashMap<>();
+		Map<Integer, LogRecord> inDoubt = new HashMap<>();
+		long from = 0;
+		long base = 0; // commits up to here are in the checkpoint already
+		Checkpoint checkpoint = Checkpoint.read(checkpointFile());
+		if (checkpoint != null) {
+			from = checkpoint.lsn;
+			base = checkpoint.ts;
+			for (byte[] payload : checkpoint.prepared) {
+				LogRecord rec = LogRecord.decode(payload);
+				inDoubt.put(rec.tid, rec);
+			}
+		}
+		long skip = base;
+		long[] last = {base};
+		int records = log.replay(from, payload -> {
+			LogRecord rec = LogRecord.decode(payload);
+			switch (rec.type) {
+				case LogRecord.PREPARE:
+					inDoubt.put(rec.tid, rec);
+					break;
+				case LogRecord.COMMIT:
+					inDoubt.remove(rec.tid);
+					remember(rec.tid, true);
+					if (rec.ts <= skip) {
+						break;
+					}
+					for (Map.Entry<String, RMItem> entry : rec.items.entrySet()) {
+						if (rec.ts >= stamps.getOrDefault(entry.getKey(), 0L)) {
+							state.put(entry.getKey(), entry.getValue());
+							stamps.put(entry.getKey(), rec.ts);
+						}
+					}
+					last[0] = Math.max(last[0], rec.ts);
+					break;
+				case LogRecord.ABORT:
+					inDoubt.remove(rec.tid);
+					break;
+			}
+		});
+		m_data.restore(checkpoint, base, state, last[0]);
+
+		for (LogRecord rec : inDoubt.values()) {
+			restage(rec);
+		}
+		checkpointLsn = from;
+		log.discardBefore(from); // left behind if the last run stopped between its checkpoint and discarding them
+		Trace.info("RM::recover(" + m_name + ") restarted in " + (System.nanoTime() - start) / 1000000 + " ms: "
+				+ (checkpoint == null ? "no checkpoint" : "checkpoint of " + checkpoint.size() + " items mapped") + ", "
+				+ records + " log records replayed, " + state.size() + " items changed since, " + inDoubt.size() + " in-doubt transactions");
+	}
+
+	/**
+	 * Write a fuzzy checkpoint: the committed state as of a snapshot, while commits go on.
+	 * Commits logged before the snapshot's start offset are all in the snapshot, and those after
+	 * it get replayed on top, so recovery no longer reads the log before it: the log is rolled to a
+	 * new segment there, and the segments before it are deleted once the checkpoint is on disk.
+	 * @return false if nothing was logged since the last checkpoint
+	 */
+	public synchronized boolean checkpoint() throws IOException {
+		if (log == null || log.getEnd() == checkpointLsn) {
+			return false;
+		}
+		long begin = System.nanoTime();
+		long lsn;
+		long ts;
+		List<byte[]> inDoubt;
+		// aborts are appended without a force: what the checkpoint stands for must be on disk first.
+		// Most of it is by now, so the roll under the gate has little left to wait for.
+		log.force(log.getEnd());
+		logGate.writeLock().lock();
+		try {
+			lsn = log.roll();
+			ts = m_data.openSnapshot();
+			inDoubt = new ArrayList<>(prepared.values());
+		} finally {
+			logGate.writeLock().unlock();
+		}
+		try {
+			int count = Checkpoint.write(checkpointFile(), ts, lsn, inDoubt, m_data);
+			checkpointLsn = lsn;
+			int discarded = log.discardBefore(lsn);
+			Trace.info("RM::checkpoint(" + m_name + ") " + count + " items at log offset " + lsn + " in "
+					+ (System.nanoTime() - begin) / 1000000 + " ms, " + discarded + " log segments deleted");
+		} finally {
+			m_data.closeSnapshot(ts);
+		}
+		return true;
+	}
+
+	private void checkpointLoop() {
+		while (true) {
+			try {
+				Thread.sleep(CHECKPOINT_SECONDS * 1000L);
+				checkpoint();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				Trace.error("RM::checkpoint(" + m_name + ") failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/** Stop checkpointing and close the redo log, e.g. before shutting down */
+	public void closeLog() throws IOException {
+		if (checkpointer != null) {
+			checkpointer.interrupt();
+		}
+		if (log != null) {
+			log.close();
+		}
+	}
+
+	// put a prepared transaction back the way it was when it voted yes
+	private void restage(LogRecord rec) throws IOException {
+		int tid = rec.tid;
+		try {
+			Workspace ws = workspaceFor(tid);
+			for (Map.Entry<String, RMItem> entry : rec.items.entrySet()) {
+				LM.lock(tid, entry.getKey(), LockManager.LockType.WRITE);
+				ws.stage(tid, entry.getKey(), entry.getValue());
+			}
+			for (Map.Entry<String, Integer> entry : rec.escrow.entrySet()) {
+				LM.lock(tid, entry.getKey(), LockManager.LockType.ESCROW);
+				ws.addEscrow(tid, entry.getKey(), entry.getValue());
+				escrowHeld.merge(entry.getKey(), entry.getValue(), Integer::sum);
+			}
+			prepared.put(tid, rec.encode());
+			Trace.info("RM::recover(" + m_name + ") T" + tid + " is in doubt, holding its locks until the TM decides");
+		} catch (DeadlockException e) {
+			Trace.error("RM::recover(" + m_name + ") could not re-lock T" + tid + ": " + e.getMessage());
+		}
+	}
+
 	//---------------------------------------------------Transaction----------------------------------------
 	@Override
 	public RMItem readTransactionData(int tid, String key){
-		Map<String, RMItem> workspace = transactionData.get(tid); //source
-		if(workspace != null && workspace.containsKey(key)){
-			return workspace.get(key);
+		Workspace workspace = workspaces.get(tid); //source
+		if (workspace == null) {
+			return null;
+		}
+		if (workspace.isStaged(tid, key)) {
+			return workspace.get(tid, key);
+		}
+		// an escrow delta becomes visible to its own transaction once the key is held exclusively
+		if (workspace.escrowOf(tid, key) > 0 && LM.getLockType(tid, key) == LockManager.LockType.WRITE) {
+			return foldEscrow(tid, key, workspace);
 		}
 		return null;
 	}
 	@Override
 	public boolean writeTransactionData(int tid, String key, RMItem item){
-		transactionData.computeIfAbsent(tid, k -> new HashMap<>()).put(key, item);
+		workspaceFor(tid).stage(tid, key, item);
 		return true;
 	}
+
+	// tid's workspace, taken from the pool on its first change here
+	private Workspace workspaceFor(int tid) {
+		return workspaces.computeIfAbsent(tid, Workspace::acquire);
+	}
 	@Override
-	public boolean prepare(int tid) throws RemoteException {
+	public Vote prepare(int tid) throws RemoteException {
 		Trace.info("RM::prepare(" + tid + ") called");
-		Map<String, RMItem> workspace = transactionData.get(tid);
-		if (workspace == null) {
-			Trace.info("RM::prepare(" + tid + ") no changes, auto-commit");
-			return true;
+		if (!stopIdleTimeout(tid) || Boolean.FALSE.equals(outcome(tid))) {
+			Trace.warn("RM::prepare(" + tid + ") failed, aborted earlier as a deadlock victim or for idling");
+			return Vote.NO;
+		}
+		Workspace ws = workspaces.get(tid);
+		if (ws == null || ws.isEmpty()) {
+			// nothing to make durable or to wait for: finish tid here, phase 2 skips this RM
+			finishReadOnly(tid);
+			Trace.info("RM::prepare(" + tid + ") no changes, read-only");
+			return Vote.READ_ONLY;
+		}
+		if (!validate(tid, ws)) {
+			return Vote.NO;
+		}
+
+		// the staged changes must survive a crash once we vote yes
+		if (log != null) {
+			try {
+				byte[] record = LogRecord.prepare(tid, ws.staged(), ws.escrow()).encode();
+				long lsn;
+				logGate.readLock().lock();
+				try {
+					prepared.put(tid, record);
+					lsn = log.append(record);
+				} finally {
+					logGate.readLock().unlock();
+				}
+				log.force(lsn);
+			} catch (IOException e) {
+				Trace.error("RM::prepare(" + tid + ") failed to log: " + e.getMessage());
+				abort(tid);
+				return Vote.NO;
+			}
+		} else {
+			prepared.put(tid, NOT_LOGGED);
+		}
+
+		Trace.info("RM::prepare(" + tid + ") OK");
+		return Vote.YES;
+	}
+
+	/**
+	 * Validate and commit tid at once, this being the only RM it changed something at. A TM that
+	 * lost the answer sends this again: it gets the answer the first call had, once that call is
+	 * done. A tid with nothing left here and no outcome kept gets no, as this RM holds no commit of
+	 * it: its changes were lost in a restart, or it was decided too long ago to tell.
+	 */
+	@Override
+	public boolean commitOnePhase(int tid) throws RemoteException {
+		Trace.info("RM::commitOnePhase(" + tid + ") called");
+		if (!stopIdleTimeout(tid) || Boolean.FALSE.equals(outcome(tid))) {
+			Trace.warn("RM::commitOnePhase(" + tid + ") failed, aborted here earlier");
+			return false;
 		}
+		Workspace ws = workspaces.get(tid);
+		if (ws == null) {
+			Boolean committed = outcome(tid);
+			Trace.info("RM::commitOnePhase(" + tid + ") already decided: "
+					+ (committed == null ? "unknown here" : committed ? "committed" : "not committed"));
+			return committed != null && committed;
+		}
+		synchronized (ws) { // a call sent again while this one runs waits for its outcome
+			if (workspaces.get(tid) != ws) {
+				return Boolean.TRUE.equals(outcome(tid));
+			}
+			boolean committed;
+			if (ws.isEmpty()) {
+				finishReadOnly(tid);
+				committed = true;
+			} else {
+				// no PREPARE record: the COMMIT record written by commit() is the only one tid needs
+				committed = validate(tid, ws) && commit(tid);
+			}
+			remember(tid, committed);
+			return committed;
+		}
+	}
 
-		for (Map.Entry<String, RMItem> entry : workspace.entrySet()) {
+	private void remember(int tid, boolean committed) {
+		synchronized (outcomes) {
+			if (outcomes.put(tid, committed) == null) {
+				outcomeOrder.add(tid);
+				if (outcomeOrder.size() > OUTCOMES) {
+					outcomes.remove(outcomeOrder.poll());
+				}
+			}
+		}
+	}
+
+	// true if tid committed here in one phase, false if it was aborted here, or null if that is not known
+	private Boolean outcome(int tid) {
+		synchronized (outcomes) {
+			return outcomes.get(tid);
+		}
+	}
+
+	// escrow bounds and counts of tid's changes; aborts tid if they don't hold
+	private boolean validate(int tid, Workspace ws) throws RemoteException {
+		// escrow bounds: committed quantity must still cover every open escrow on the key
+		Map<String, Integer> escrow = ws.escrow();
+		if (!escrow.isEmpty()) {
+			for (String key : escrow.keySet()) {
+				boolean inBounds;
+				m_data.lock(key);
+				try {
+					ReservableItem item = (ReservableItem) m_data.get(key);
+					inBounds = item != null && item.getCount() - escrowHeld.getOrDefault(key, 0) >= 0;
+				} finally {
+					m_data.unlock(key);
+				}
+				if (!inBounds) {
+					Trace.warn("RM::prepare(" + tid + ") failed, escrow out of bounds for " + key);
+					abort(tid);
+					return false;
+				}
+			}
+		}
+		for (Map.Entry<String, RMItem> entry : ws.staged().entrySet()) {
 			RMItem item = entry.getValue();
 			if (item instanceof ReservableItem) {
 				ReservableItem reservable = (ReservableItem) item;
@@ -231,38 +729,101 @@ public abstract class ResourceManager implements IResourceManager
 				}
 			}
 		}
-
-		Trace.info("RM::prepare(" + tid + ") OK");
 		return true;
 	}
+
+	// tid only read here: drop what it holds, a later commit or abort finds nothing to do
+	private void finishReadOnly(int tid) throws RemoteException {
+		Workspace ws = workspaces.remove(tid);
+		if (ws != null) {
+			ws.recycle();
+		}
+		LM.releaseLocks(tid);
+		closeSnapshot(tid);
+	}
+
 	@Override
 	public boolean commit(int tid) throws RemoteException {
 		Trace.info("RM::commit(" + tid + ") called");
-		Map<String, RMItem> workspace = transactionData.remove(tid);
-		if (workspace == null) {
+		stopIdleTimeout(tid);
+		closeSnapshot(tid);
+		Workspace ws = workspaces.get(tid);
+		if (ws == null || ws.isEmpty()) {
 			Trace.info("RM::commit(" + tid + ") nothing to commit");
+			if (ws != null) {
+				workspaces.remove(tid);
+				ws.recycle();
+			}
 			LM.releaseLocks(tid);
 			return true;
 		}
 
-		synchronized (m_data) {
-			for (Map.Entry<String, RMItem> entry : workspace.entrySet()) {
-				if (entry.getValue() == null) { //delete
-					// staged delete
-					m_data.remove(entry.getKey());
-					Trace.info("RM::commit(" + tid + ") removed key " + entry.getKey());
-				} else { //update
-					m_data.put(entry.getKey(), (RMItem) entry.getValue().clone());
-					Trace.info("RM::commit(" + tid + ") updated key " + entry.getKey());
-				}
+		// all of tid's changes become one version, stamped with its commit timestamp
+		Map<String, RMItem> writes = new HashMap<>();
+		for (Map.Entry<String, RMItem> entry : ws.staged().entrySet()) {
+			if (entry.getValue() == null) { //delete
+				// staged delete
+				writes.put(entry.getKey(), null);
+				Trace.info("RM::commit(" + tid + ") removed key " + entry.getKey());
+			} else { //update
+				// staged copies are private to tid and its workspace is dropped below: install them as they are
+				writes.put(entry.getKey(), entry.getValue());
+				Trace.info("RM::commit(" + tid + ") updated key " + entry.getKey());
 			}
 		}
-
+		// escrow deltas apply to the committed count, so read and install under the keys' locks
+		Map<String, Integer> escrow = ws.escrow();
+		List<String> keys = new ArrayList<>(writes.keySet());
+		keys.addAll(escrow.keySet());
+		m_data.lock(keys);
+		try {
+			for (Map.Entry<String, Integer> entry : escrow.entrySet()) {
+				applyEscrow(writes, entry.getKey(), entry.getValue());
+			}
+			// whatever fails before this point installs nothing: tid keeps its changes, escrows and
+			// locks, to be committed again or aborted
+			install(tid, writes);
+			escrow.forEach((key, units) -> escrowHeld.computeIfPresent(key, (k, held) -> held > units ? held - units : null));
+		} finally {
+			m_data.unlock(keys);
+		}
+		escrow.forEach((key, units) -> Trace.info("RM::commit(" + tid + ") reserved " + units + " of " + key));
+		workspaces.remove(tid);
+		ws.recycle();
 		LM.releaseLocks(tid);
 		Trace.info("RM::commit(" + tid + ") done");
 		return true;
 	}
 
+	/**
+	 * Install writes as tid's commit; the caller holds their keys' locks. The COMMIT record is
+	 * durable before anyone can read the new versions, and the two happen under the log gate, so a
+	 * checkpoint either has both or neither: it never saves the new versions with tid's PREPARE
+	 * record still live, which would apply its escrow deltas again after a restart.
+	 */
+	private void install(int tid, Map<String, RMItem> writes) throws RemoteException {
+		if (log == null) {
+			m_data.install(writes);
+			prepared.remove(tid);
+			return;
+		}
+		logGate.readLock().lock();
+		try {
+			long ts = m_data.stamp();
+			try {
+				log.force(log.append(LogRecord.commit(tid, ts, writes).encode())); // concurrent committers share the fsync
+			} catch (IOException e) {
+				m_data.cancel(ts);
+				Trace.error("RM::commit(" + tid + ") failed to log: " + e.getMessage());
+				throw new RemoteException("Commit of xid=" + tid + " is not durable", e);
+			}
+			m_data.install(writes, ts);
+			prepared.remove(tid);
+		} finally {
+			logGate.readLock().unlock();
+		}
+	}
+
 	/**
 	 * Called by MW.TM, when prepare fail
 	 * @param tid
@@ -272,24 +833,59 @@ public abstract class ResourceManager implements IResourceManager
 	@Override
 	public boolean abort(int tid) throws RemoteException {
 		Trace.info("RM::abort(" + tid + ") called");
-		transactionData.remove(tid);
-		LM.releaseLocks(tid); //
+		stopIdleTimeout(tid);
+		rollback(tid);
 		Trace.info("RM::abort(" + tid + ") rollback done");
 		return true;
 	}
 
+	// drop tid's changes, escrows, locks and snapshot, and log the abort of a prepared tid
+	private void rollback(int tid) throws RemoteException {
+		Workspace ws = workspaces.remove(tid);
+		if (ws != null) {
+			ws.escrow().forEach(this::releaseEscrow);
+			ws.recycle();
+		}
+		LM.releaseLocks(tid); //
+		closeSnapshot(tid);
+		if (log == null) {
+			prepared.remove(tid);
+		} else if (prepared.containsKey(tid)) {
+			logGate.readLock().lock();
+			try {
+				prepared.remove(tid);
+				log.append(LogRecord.abort(tid).encode()); // not forced: if it is lost, the TM tells us again
+			} catch (IOException e) {
+				Trace.error("RM::abort(" + tid + ") failed to log: " + e.getMessage());
+			} finally {
+				logGate.readLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Called when tid lost a deadlock or idled too long: drop its workspace and locks right away,
+	 * and keep voting no for it while its outcome is among the latest kept here.
+	 * @param tid
+	 * @throws RemoteException
+	 */
+	protected void abortVictim(int tid) throws RemoteException {
+		remember(tid, false); // before the rollback, so prepare can't find tid empty and vote read-only
+		rollback(tid);
+	}
+
 	@Override
 	public boolean rollbackReserve(int tid, int cid, String key, int count) throws RemoteException {
 		Trace.info("RM::rollbackReserve(" + tid + ", cust=" + cid + ", key=" + key + ", count=" + count + ") called");
 
 		try {
-			if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+			if (!lock(tid, key, LockManager.LockType.WRITE)) {
 				throw new RemoteException("Lock denied in rollbackReserve xid=" + tid + " for key=" + key);
 			}
 
 			ReservableItem item = (ReservableItem) readTransactionData(tid, key);
 			if (item == null) {
-				item = (ReservableItem) readData(key);
+				item = (ReservableItem) copyData(key);
 			}
 
 			if (item == null) {
@@ -311,7 +907,7 @@ public abstract class ResourceManager implements IResourceManager
 			return true;
 
 		} catch (DeadlockException e) {
-			abort(tid);
+			abortVictim(tid);
 			throw new RemoteException("Deadlock in rollbackReserve xid=" + tid + ", key=" + key, e);
 		}
 	}
@@ -15,14 +15,14 @@ public abstract class RoomResourceManager extends ResourceManager {
     public boolean addRooms(int tid, String location, int count, int price) throws RemoteException {
         String key = Room.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock denied in addRooms xid=" + tid);
             }
 
             Room curObj = (Room) readTransactionData(tid, key);
             if (curObj == null) {
-                curObj = (Room) readData(key);
+                curObj = (Room) copyData(key);
             }
 
             if (curObj == null) {
@@ -37,7 +37,7 @@ public abstract class RoomResourceManager extends ResourceManager {
             }
             return true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in addRooms xid=" + tid, e);
         }
     }
@@ -45,7 +45,7 @@ public abstract class RoomResourceManager extends ResourceManager {
     public boolean deleteRooms(int tid, String location) throws RemoteException {
         String key = Room.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            if (!lock(tid, key, LockManager.LockType.WRITE)) {
                 //abort(tid);
                 throw new RemoteException("Lock denied in deleteRooms xid=" + tid);
             }
@@ -68,7 +68,7 @@ public abstract class RoomResourceManager extends ResourceManager {
             Trace.info("RM::deleteRooms(" + tid + ", " + location + ") staged delete");
             return true;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in deleteRooms xid=" + tid, e);
         }
     }
@@ -76,21 +76,13 @@ public abstract class RoomResourceManager extends ResourceManager {
     public int queryRooms(int tid, String location) throws RemoteException {
         String key = Room.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock denied in queryRooms xid=" + tid);
-            }
-
-            Room curObj = (Room) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Room) readData(key);
-            }
+            Room curObj = (Room) queryData(tid, key, LockManager.LockType.READ);
 
             int value = (curObj == null) ? 0 : curObj.getCount();
             Trace.info("RM::queryRooms(" + tid + ", " + location + ") returns " + value);
             return value;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryRooms xid=" + tid, e);
         }
     }
@@ -98,21 +90,14 @@ public abstract class RoomResourceManager extends ResourceManager {
     public int queryRoomsPrice(int tid, String location) throws RemoteException {
         String key = Room.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                //abort(tid);
-                throw new RemoteException("Lock denied in queryRoomsPrice xid=" + tid);
-            }
-
-            Room curObj = (Room) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Room) readData(key);
-            }
+            // if key is locked already, escrow never changes the price, so a reservation keeps its lock mode
+            Room curObj = (Room) queryData(tid, key, LockManager.LockType.ESCROW);
 
             int value = (curObj == null) ? 0 : curObj.getPrice();
             Trace.info("RM::queryRoomsPrice(" + tid + ", " + location + ") returns $" + value);
             return value;
         } catch (DeadlockException e) {
-            //abort(tid);
+            abortVictim(tid);
             throw new RemoteException("Deadlock in queryRoomsPrice xid=" + tid, e);
         }
     }
@@ -120,37 +105,21 @@ public abstract class RoomResourceManager extends ResourceManager {
     public boolean reserveRoom(int tid, int customerID, String location) throws RemoteException {
         String key = Room.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+            // rooms are taken in escrow: concurrent bookings of this location share the lock
+            if (!lock(tid, key, LockManager.LockType.ESCROW)) {
                 throw new RemoteException("Lock denied in reserveRoom xid=" + tid);
             }
 
-            Room room = (Room) readTransactionData(tid, key);
-            if (room == null) {
-                room = (Room) readData(key);
-                if (room != null) {
-                    writeTransactionData(tid, key, (RMItem) room.clone());
-                }
-            }
-
-            if (room == null) {
-                Trace.warn("RoomRM::reserveRoom(" + tid + ", " + customerID + ", " + location + ") failed -- no such location");
-                return false;
-            }
-
-            if (room.getCount() == 0) {
+            if (!escrowReserve(tid, key, 1)) {
                 Trace.warn("RoomRM::reserveRoom(" + tid + ", " + customerID + ", " + location + ") failed -- no rooms available");
                 return false;
             }
 
-            room.setCount(room.getCount() - 1);
-            room.setReserved(room.getReserved() + 1);
-
-            writeTransactionData(tid, key, room);
-
             Trace.info("RoomRM::reserveRoom(" + tid + ", " + customerID + ", " + location + ") succeeded");
             return true;
 
         } catch (DeadlockException e) {
+            abortVictim(tid);
             throw new RemoteException("Deadlock in reserveRoom xid=" + tid, e);
         }
     }
@@ -158,16 +127,10 @@ public abstract class RoomResourceManager extends ResourceManager {
     public boolean roomExists(int tid, String location) throws RemoteException {
         String key = Room.getKey(location);
         try {
-            if (!LM.lock(tid, key, LockManager.LockType.READ)) {
-                throw new RemoteException("Lock failed in querying Room tid=" + tid);
-            }
-
-            Room curObj = (Room) readTransactionData(tid, key);
-            if (curObj == null) {
-                curObj = (Room) readData(key);
-            }
+            Room curObj = (Room) queryData(tid, key, LockManager.LockType.READ);
             return (curObj != null);
         } catch (DeadlockException e) {
+            abortVictim(tid);
             throw new RemoteException("Deadlock in checking Room xid=" + tid, e);
         }
     }
@@ -176,7 +139,7 @@ public abstract class RoomResourceManager extends ResourceManager {
 //    public boolean cancelRoomReservation(int tid, int customerID, String location) throws RemoteException {
 //        String key = Room.getKey(location);
 //        try {
-//            if (!LM.lock(tid, key, LockManager.LockType.WRITE)) {
+//            if (!lock(tid, key, LockManager.LockType.WRITE)) {
 //                abort(tid);
 //                throw new RemoteException("Lock failed in cancelRoomReservation tid=" + tid);
 //            }
@@ -0,0 +1,58 @@
+package Server.Common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Threads
+ *
+ * Which threads the servers run their blocking work on. By default that is pools of platform
+ * threads, as sized where they are made. With -Dthreads.virtual=true, the middleware's client
+ * handlers and workers, the fan-out of 2PC and the RMs' request workers get a new virtual thread
+ * per task instead. A virtual thread blocked on a socket or a lock doesn't hold a platform thread,
+ * so the number of them stops being a limit.
+ *
+ * Virtual threads came with Java 21, and this code builds for 17, so they are made through
+ * reflection. On an older JVM, asking for them prints a warning and leaves the platform threads.
+ */
+public final class Threads {
+
+    /** true if virtual threads were asked for and this JVM has them */
+    public static final boolean VIRTUAL = Boolean.getBoolean("threads.virtual") && supported();
+
+    private Threads() {
+    }
+
+    /**
+     * An executor that runs each task on a new virtual thread named "name-n". Only call it if
+     * VIRTUAL is true.
+     */
+    public static ExecutorService perTask(String name) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory(name));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("virtual threads: " + e, e);
+        }
+    }
+
+    // Thread.ofVirtual().name(name + "-", 1).factory()
+    private static ThreadFactory factory(String name) throws ReflectiveOperationException {
+        Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+        Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+        builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+        return (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+    }
+
+    private static boolean supported() {
+        try {
+            factory("probe").newThread(() -> {});
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("[Threads] no virtual threads in Java " + System.getProperty("java.version")
+                    + " (they need 21), running on platform threads");
+            return false;
+        }
+    }
+}
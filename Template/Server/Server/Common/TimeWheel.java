@@ -0,0 +1,128 @@
+package Server.Common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * TimeWheel
+ *
+ * Idle timeouts for transactions: an id expires once nobody has touched it for the timeout, and
+ * a reaper thread then hands it to onExpire.
+ *
+ * A touch only records the time. Each id sits in one slot of a wheel of SLOTS ticks, a tick
+ * being a sixteenth of the timeout; when its slot comes round, the reaper either expires it or
+ * moves it to the slot of its new deadline. A busy id costs the reaper one visit per timeout,
+ * however often it is touched.
+ *
+ * An id is marked expired before it goes to onExpire, and cancel() reports it until onExpire
+ * returns. That closes the race between the reaper and whoever finishes the transaction: exactly
+ * one of them wins. After that the id is forgotten, so onExpire must leave the transaction aborted
+ * wherever the callers of cancel() look next.
+ */
+public final class TimeWheel {
+
+    private static final int SLOTS = 64;
+    private static final long EXPIRED = Long.MIN_VALUE;
+
+    private final long timeoutMillis;
+    private final long tickMillis;
+    private final IntConsumer onExpire;
+    private final Map<Integer, Long> lastUsed = new ConcurrentHashMap<>(); // id -> last touch (ms), or EXPIRED
+    private final List<Set<Integer>> wheel = new ArrayList<>(SLOTS);
+    private final AtomicLong expired = new AtomicLong();
+    private volatile long tick; // next tick the reaper looks at
+
+    /**
+     * @param name names the reaper thread
+     * @param onExpire called on the reaper thread with each id that expires
+     */
+    public TimeWheel(String name, long timeoutMillis, IntConsumer onExpire) {
+        this.timeoutMillis = timeoutMillis;
+        this.tickMillis = Math.max(10, timeoutMillis / 16);
+        this.onExpire = onExpire;
+        for (int i = 0; i < SLOTS; i++) {
+            wheel.add(ConcurrentHashMap.newKeySet());
+        }
+        tick = now() / tickMillis;
+        Thread reaper = new Thread(this::reap, name + "-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /** Start id's timeout, or restart it; an id being expired stays expired */
+    public void touch(int id) {
+        long now = now();
+        Long last = lastUsed.putIfAbsent(id, now);
+        if (last == null) {
+            schedule(id, now + timeoutMillis);
+        } else if (last != EXPIRED) {
+            lastUsed.replace(id, last, now); // lost to a concurrent touch or to the reaper: either is fine
+        }
+    }
+
+    /**
+     * Stop watching id.
+     * @return false if id is being expired, which the caller must treat as aborted; true otherwise,
+     *         including for ids never touched or already forgotten
+     */
+    public boolean cancel(int id) {
+        Long last = lastUsed.remove(id);
+        return last == null || last != EXPIRED;
+    }
+
+    /** @return number of ids expired so far */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    private void schedule(int id, long deadline) {
+        long at = Math.max(deadline / tickMillis, tick + 1);
+        wheel.get((int) (at % SLOTS)).add(id);
+    }
+
+    private void reap() {
+        while (true) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = now();
+            for (long upTo = now / tickMillis; tick <= upTo; tick++) {
+                Iterator<Integer> slot = wheel.get((int) (tick % SLOTS)).iterator();
+                while (slot.hasNext()) {
+                    int id = slot.next();
+                    slot.remove();
+                    Long last = lastUsed.get(id);
+                    if (last == null || last == EXPIRED) {
+                        continue; // cancelled, or already handed out
+                    }
+                    if (now - last < timeoutMillis) {
+                        schedule(id, last + timeoutMillis);
+                    } else if (lastUsed.replace(id, last, EXPIRED)) {
+                        expired.incrementAndGet();
+                        try {
+                            onExpire.accept(id);
+                            lastUsed.remove(id, EXPIRED); // it is aborted where its owner looks now
+                        } catch (RuntimeException e) {
+                            Trace.error("TimeWheel: expiring " + id + " failed: " + e);
+                        }
+                    } else {
+                        schedule(id, now + timeoutMillis); // touched just now
+                    }
+                }
+            }
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -1,15 +1,37 @@
 package Server.Common;
 
 import Server.Interface.IResourceManager;
+import Server.Interface.IResourceManager.Vote;
 
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class TransactionManager {
 
+    // where the decision log goes, -Dtm.logdir=<dir>; -Dtm.log=false keeps decisions in memory only
+    private static final String LOG_DIR = System.getProperty("tm.logdir", "logs");
+    private static final boolean LOGGING = Boolean.parseBoolean(System.getProperty("tm.log", "true"));
+    // tids reserved by each forced write of the high-water mark, -Dtm.tidBlock=<n>
+    private static final int TID_BLOCK = Integer.getInteger("tm.tidBlock", 1000);
+    // seconds between sweeps of the RMs for in-doubt transactions, -Dtm.resolveSeconds=<s>
+    private static final int RESOLVE_SECONDS = Integer.getInteger("tm.resolveSeconds", 30);
+    // how long each 2PC phase waits for its slowest participant (ms), -Dtm.prepareTimeoutMs / -Dtm.commitTimeoutMs
+    private static final long PREPARE_TIMEOUT = Long.getLong("tm.prepareTimeoutMs", 5000L);
+    private static final long COMMIT_TIMEOUT = Long.getLong("tm.commitTimeoutMs", 5000L);
+    // seconds a transaction may go without a call before it is aborted, -Dtm.idleTimeoutSeconds=<s>, 0 turns it off
+    private static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("tm.idleTimeoutSeconds", 60);
+    // recent tids whose status is kept exactly, -Dtm.statusSlots=<n>; older ones read as aborted unless still running or undelivered
+    private static final int STATUS_SLOTS = Integer.getInteger("tm.statusSlots", 1 << 16);
+
     public enum TransactionStatus {
         ACTIVE, //ongoing
         PREPARED, //all RMs are ready
@@ -19,83 +41,369 @@ public class TransactionManager {
     }
 
     private AtomicInteger nextTid = new AtomicInteger(1);
-    private Map<Integer, TransactionStatus> transactions = new ConcurrentHashMap<>();
+    private final TransactionTable<TransactionStatus> transactions = new TransactionTable<>(STATUS_SLOTS,
+            TransactionStatus.values(), TransactionStatus.UNKNOWN, TransactionStatus.COMMITTED, TransactionStatus.ABORTED);
+    private Map<Integer, Map<IResourceManager, Boolean>> participants = new ConcurrentHashMap<>(); // tid -> RMs it used (true if it wrote there), until it ends
+    private final Map<Integer, IResourceManager> onePhaseInDoubt = new ConcurrentHashMap<>(); // tid -> RM whose one-phase answer never came
+    // -Dtm.plain2pc=true: every participant gets prepare and commit, without the read-only and one-phase shortcuts
+    private final boolean plain2pc = Boolean.getBoolean("tm.plain2pc");
+    private DecisionLog log; // null when logging is off
+    private volatile int reservedTid = Integer.MAX_VALUE; // tids up to here are covered by the log
+    private final TimeWheel idle; // null when idle transactions are never aborted
+
+    public TransactionManager() {
+        this("TM");
+    }
+
+    /**
+     * @param name names the decision log: a TM restarted under the same name picks up its
+     *             commit decisions and hands out tids above any it used before
+     */
+    public TransactionManager(String name) {
+        idle = (IDLE_TIMEOUT_SECONDS > 0) ? new TimeWheel(name + "-idle", IDLE_TIMEOUT_SECONDS * 1000L, this::expire) : null;
+        if (!LOGGING) {
+            return;
+        }
+        try {
+            log = new DecisionLog(Paths.get(LOG_DIR, name + ".decisions"));
+        } catch (IOException e) {
+            System.err.println("[TM] Can't open the decision log, running without one: " + e.getMessage());
+            return;
+        }
+        reservedTid = log.getHighWater();
+        nextTid.set(log.getHighWater() + 1);
+        for (int tid : log.getCommitted()) {
+            transactions.pin(tid);
+        }
+        System.out.println("[TM] Recovered " + log.getCommitted().size() + " commit decisions, next tid " + nextTid.get());
+    }
 
     public TransactionStatus getStatus(int tid) {
-        return transactions.getOrDefault(tid, TransactionStatus.UNKNOWN);
+        return transactions.get(tid);
+    }
+
+    /**
+     * @param writes tid changes something at rm; an RM that only ever answered queries for tid
+     *               is asked to vote first, so the one RM with changes can commit in one phase
+     */
+    public void addParticipant(int tid, IResourceManager rm, boolean writes) throws RemoteException {
+        TransactionStatus status = getStatus(tid);
+        if (status != TransactionStatus.ACTIVE) {
+            throw new RemoteException("Transaction " + tid + " is not active: " + status);
+        }
+        if (idle != null) {
+            idle.touch(tid);
+        }
+        participants.computeIfAbsent(tid, k -> new ConcurrentHashMap<>()).merge(rm, writes, Boolean::logicalOr);
+    }
+
+    /** @return the RMs tid used so far */
+    public List<IResourceManager> getParticipants(int tid) {
+        Map<IResourceManager, Boolean> rms = participants.get(tid);
+        return (rms == null) ? Collections.emptyList() : new ArrayList<>(rms.keySet());
     }
 
-    public int start() {
+    public int start() throws RemoteException {
         int tid = nextTid.getAndIncrement();
+        if (tid > reservedTid) {
+            reserveThrough(tid);
+        }
         transactions.put(tid, TransactionStatus.ACTIVE);
+        if (idle != null) {
+            idle.touch(tid);
+        }
         return tid;
     }
 
-    public boolean commit(int tid, List<IResourceManager> rms) {
-        System.out.println("[TM] Commit request for T" + tid);
+    /** @return number of transactions aborted for going idle */
+    public long getExpiredCount() {
+        return (idle == null) ? 0 : idle.getExpiredCount();
+    }
+
+    // tid made no call for IDLE_TIMEOUT_SECONDS, its client is likely gone: abort it at its RMs
+    private void expire(int tid) {
+        System.out.println("[TM] T" + tid + " idle for " + IDLE_TIMEOUT_SECONDS + " s, aborting it ("
+                + idle.getExpiredCount() + " expired so far)");
+        abort(tid, getParticipants(tid));
+    }
 
-        boolean allPrepared = true;
+    // make tid durable as handed out, with the rest of its block
+    private synchronized void reserveThrough(int tid) throws RemoteException {
+        if (tid <= reservedTid) {
+            return;
+        }
+        try {
+            int upTo = Math.max(reservedTid, tid - 1) + TID_BLOCK;
+            log.reserveTids(upTo);
+            reservedTid = upTo;
+        } catch (IOException e) {
+            throw new RemoteException("Can't log the tid high-water mark", e);
+        }
+    }
+
+    // durable commit decision, before any participant hears of it
+    private boolean logCommit(int tid) {
+        if (log == null) {
+            return true;
+        }
+        try {
+            log.commit(tid);
+            return true;
+        } catch (IOException e) {
+            System.err.println("[TM] Can't log the commit of T" + tid + ", aborting it: " + e.getMessage());
+            return false;
+        }
+    }
 
-        // --- Phase 1: Prepare ---
+    /**
+     * Finish the transactions the RMs prepared and are still waiting on: commit those with a commit
+     * decision, abort the rest (presumed abort). Transactions still running here are left alone.
+     * Also asks again for the one-phase commits whose answer never came.
+     * @return true if every RM was reached
+     */
+    public boolean resolveInDoubt(List<IResourceManager> rms) {
+        Set<Integer> undelivered = transactions.getPinned();
+        boolean reachedAll = resolveOnePhase();
         for (IResourceManager rm : rms) {
             try {
-                boolean ok = rm.prepare(tid);
-                if (!ok) {
-                    allPrepared = false;
-                    break;
+                for (int tid : rm.getInDoubt()) {
+                    TransactionStatus status = getStatus(tid);
+                    if (status == TransactionStatus.ACTIVE || status == TransactionStatus.PREPARED) {
+                        continue;
+                    }
+                    if (status == TransactionStatus.COMMITTED) {
+                        rm.commit(tid);
+                    } else {
+                        rm.abort(tid);
+                    }
+                    System.out.println("[TM] Resolved in-doubt T" + tid + ": "
+                            + (status == TransactionStatus.COMMITTED ? "COMMITTED" : "ABORTED"));
                 }
             } catch (RemoteException e) {
-                System.err.println("[TM] RemoteException in prepare, T" + tid + ": " + e.getMessage());
-                allPrepared = false;
-                break;
+                System.err.println("[TM] Can't resolve in-doubt transactions at " + rm + ": " + e.getMessage());
+                reachedAll = false;
             }
         }
+        if (reachedAll) {
+            // whatever was committed before this sweep has now reached every RM
+            transactions.unpin(undelivered);
+        }
+        return reachedAll;
+    }
 
-        // --- Phase 2: Commit or Abort ---
-        if (allPrepared) {
-            transactions.put(tid, TransactionStatus.PREPARED);
-            for (IResourceManager rm : rms) {
+    // the writer of each one-phase commit in doubt decides it, as it would have the first time
+    private boolean resolveOnePhase() {
+        boolean reachedAll = true;
+        for (Map.Entry<Integer, IResourceManager> doubt : onePhaseInDoubt.entrySet()) {
+            int tid = doubt.getKey();
+            IResourceManager rm = doubt.getValue();
+            try {
+                boolean committed = rm.commitOnePhase(tid);
+                if (!committed) {
+                    rm.abort(tid);
+                }
+                transactions.put(tid, committed ? TransactionStatus.COMMITTED : TransactionStatus.ABORTED);
+                onePhaseInDoubt.remove(tid);
+                System.out.println("[TM] Resolved one-phase T" + tid + ": " + (committed ? "COMMITTED" : "ABORTED"));
+            } catch (RemoteException e) {
+                System.err.println("[TM] Can't resolve one-phase T" + tid + " at " + rm + ": " + e.getMessage());
+                reachedAll = false;
+            }
+        }
+        return reachedAll;
+    }
+
+    /**
+     * Resolve what the RMs hold in doubt now, then again every RESOLVE_SECONDS, which also covers
+     * RMs that restart later. Once every RM has been reached the recovered decisions are dropped
+     * from the log.
+     */
+    public void startResolver(List<IResourceManager> rms) {
+        if (resolveInDoubt(rms) && log != null && !log.getCommitted().isEmpty()) {
+            try {
+                log.compact();
+            } catch (IOException e) {
+                System.err.println("[TM] Can't compact the decision log: " + e.getMessage());
+            }
+        }
+        if (RESOLVE_SECONDS <= 0) {
+            return;
+        }
+        Thread resolver = new Thread(() -> {
+            while (true) {
                 try {
-                    rm.commit(tid);
-                } catch (RemoteException e) {
-                    System.err.println("[TM] RemoteException in commit, T" + tid + ": " + e.getMessage());
+                    Thread.sleep(RESOLVE_SECONDS * 1000L);
+                } catch (InterruptedException e) {
+                    return;
                 }
+                resolveInDoubt(rms);
             }
-            transactions.put(tid, TransactionStatus.COMMITTED);
-            System.out.println("[TM] Transaction " + tid + " COMMITTED");
-        } else {
-            for (IResourceManager rm : rms) {
+        }, "tm-resolver");
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    /**
+     * Two-phase commit of tid at rms, with two shortcuts:
+     *  - an RM that votes READ_ONLY has already finished tid and is left out of phase 2; when
+     *    every RM does, nothing is logged and there is no phase 2 at all
+     *  - when one RM has changes and the others only read, the readers vote first and the writer
+     *    then validates and commits in a single call, with no decision to log
+     * RMs not registered through addParticipant are taken to have changes.
+     * @throws RemoteException if the writer's one-phase answer didn't come: tid is in doubt until the
+     *                         resolver asks it again
+     */
+    public boolean commit(int tid, List<IResourceManager> rms) throws RemoteException {
+        System.out.println("[TM] Commit request for T" + tid);
+        // only an active tid commits, and from here on neither the reaper nor an abort takes it
+        if (!transactions.replace(tid, TransactionStatus.ACTIVE, TransactionStatus.PREPARED)) {
+            System.out.println("[TM] Transaction " + tid + " can't commit, it is " + getStatus(tid));
+            participants.remove(tid);
+            return false;
+        }
+        if (idle != null) {
+            idle.cancel(tid);
+        }
+        Map<IResourceManager, Boolean> writes = participants.getOrDefault(tid, Collections.emptyMap());
+        List<IResourceManager> writers = new ArrayList<>();
+        List<IResourceManager> readers = new ArrayList<>();
+        for (IResourceManager rm : rms) {
+            (writes.getOrDefault(rm, true) ? writers : readers).add(rm);
+        }
+        Map<IResourceManager, Vote> votes = new ConcurrentHashMap<>();
+
+        try {
+            if (!plain2pc && writers.size() == 1) {
+                return prepare(tid, readers, votes) && !votes.containsValue(Vote.YES)
+                        ? commitOnePhase(tid, writers.get(0))
+                        // a no vote, or a reader that had changes after all: regular two-phase
+                        : twoPhase(tid, rms, votes);
+            }
+            return twoPhase(tid, rms, votes);
+        } finally {
+            participants.remove(tid);
+        }
+    }
+
+    // --- Phase 1: Prepare, at every RM that has not voted yet, at once; one no vote or a missed deadline aborts ---
+    private boolean prepare(int tid, List<IResourceManager> rms, Map<IResourceManager, Vote> votes) {
+        List<Callable<Boolean>> prepares = new ArrayList<>(rms.size());
+        for (IResourceManager rm : rms) {
+            if (votes.containsKey(rm)) {
+                continue;
+            }
+            prepares.add(() -> {
                 try {
-                    rm.abort(tid);
+                    Vote vote = rm.prepare(tid);
+                    votes.put(rm, vote);
+                    return vote != Vote.NO;
                 } catch (RemoteException e) {
-                    System.err.println("[TM] RemoteException in abort, T" + tid + ": " + e.getMessage());
+                    System.err.println("[TM] RemoteException in prepare, T" + tid + ": " + e.getMessage());
+                    return false;
                 }
+            });
+        }
+        return prepares.isEmpty() || FanOut.allTrue(prepares, PREPARE_TIMEOUT);
+    }
+
+    private boolean twoPhase(int tid, List<IResourceManager> rms, Map<IResourceManager, Vote> votes) {
+        boolean allPrepared = !votes.containsValue(Vote.NO) && prepare(tid, rms, votes);
+
+        // --- Phase 2: Commit or Abort, at the RMs that did not finish with their vote ---
+        List<IResourceManager> pending = new ArrayList<>();
+        for (IResourceManager rm : rms) {
+            if (plain2pc || votes.get(rm) != Vote.READ_ONLY) {
+                pending.add(rm);
             }
+        }
+        if (allPrepared && !pending.isEmpty()) {
+            transactions.put(tid, TransactionStatus.PREPARED);
+            allPrepared = logCommit(tid);
+        }
+        if (allPrepared) {
+            transactions.pin(tid); // until every participant has it
+            transactions.put(tid, TransactionStatus.COMMITTED);
+            // whoever misses the deadline here is committed later by the resolver
+            int reached = FanOut.all(calls(pending, rm -> rm.commit(tid), "commit", tid), COMMIT_TIMEOUT);
+            if (reached < pending.size()) {
+                System.err.println("[TM] T" + tid + " commit reached " + reached + " of " + pending.size() + " RMs in time");
+            } else {
+                transactions.unpin(Collections.singleton(tid));
+            }
+            System.out.println("[TM] Transaction " + tid + " COMMITTED");
+        } else {
+            FanOut.all(calls(pending, rm -> rm.abort(tid), "abort", tid), COMMIT_TIMEOUT);
             transactions.put(tid, TransactionStatus.ABORTED);
             System.out.println("[TM] Transaction " + tid + " ABORTED");
         }
         return allPrepared;
     }
 
+    // the writer decides: a no answer means it aborted tid itself
+    private boolean commitOnePhase(int tid, IResourceManager rm) throws RemoteException {
+        Boolean committed = FanOut.one(() -> {
+            try {
+                return rm.commitOnePhase(tid);
+            } catch (RemoteException e) {
+                System.err.println("[TM] RemoteException in one-phase commit, T" + tid + ": " + e.getMessage());
+                throw e;
+            }
+        }, COMMIT_TIMEOUT);
+        if (committed == null) {
+            // the RM may have committed tid or not: it stays PREPARED, out of reach of aborts, until the RM says
+            onePhaseInDoubt.put(tid, rm);
+            System.err.println("[TM] Transaction " + tid + " IN DOUBT, no one-phase answer in time; the resolver asks again");
+            throw new RemoteException("Outcome of transaction " + tid + " is in doubt: its commit got no answer in time");
+        }
+        if (committed) {
+            transactions.put(tid, TransactionStatus.COMMITTED);
+            System.out.println("[TM] Transaction " + tid + " COMMITTED in one phase");
+        } else {
+            // let the RM drop what it keeps for a refused tid
+            FanOut.all(calls(Collections.singletonList(rm), r -> r.abort(tid), "abort", tid), COMMIT_TIMEOUT);
+            transactions.put(tid, TransactionStatus.ABORTED);
+            System.out.println("[TM] Transaction " + tid + " ABORTED");
+        }
+        return committed;
+    }
+
+    private interface RMCall {
+        void call(IResourceManager rm) throws RemoteException;
+    }
+
+    // one task per RM, logging its RemoteException
+    private static List<Callable<Void>> calls(List<IResourceManager> rms, RMCall call, String what, int tid) {
+        List<Callable<Void>> calls = new ArrayList<>(rms.size());
+        for (IResourceManager rm : rms) {
+            calls.add(() -> {
+                try {
+                    call.call(rm);
+                } catch (RemoteException e) {
+                    System.err.println("[TM] RemoteException in " + what + ", T" + tid + " at " + rm + ": " + e.getMessage());
+                    throw e;
+                }
+                return null;
+            });
+        }
+        return calls;
+    }
+
     public boolean abort(int tid, List<IResourceManager> rms) {
         System.out.println("[TM] Abort request for T" + tid);
 
-        TransactionStatus status = transactions.get(tid);
-        if (status == TransactionStatus.ABORTED || status == TransactionStatus.COMMITTED) {
-            System.out.println("[TM] Transaction " + tid + " already finished with status " + status);
+        // a commit under way keeps tid; the reaper and the client may both get here, one of them wins
+        if (!transactions.replace(tid, TransactionStatus.ACTIVE, TransactionStatus.ABORTED)) {
+            System.out.println("[TM] Transaction " + tid + " already finished or finishing with status " + getStatus(tid));
             return true;
         }
+        if (idle != null) {
+            idle.cancel(tid);
+        }
 
         // notify all RM to abort
-        for (IResourceManager rm : rms) {
-            try {
-                rm.abort(tid);
-            } catch (RemoteException e) {
-                System.err.println("[TM] RemoteException in abort, T" + tid + " at " + rm + ": " + e.getMessage());
-            }
-        }
+        FanOut.all(calls(rms, rm -> rm.abort(tid), "abort", tid), COMMIT_TIMEOUT);
 
-        transactions.put(tid, TransactionStatus.ABORTED);
+        participants.remove(tid);
         System.out.println("[TM] Transaction " + tid + " marked as ABORTED");
         return true;
     }
@@ -0,0 +1,124 @@
+package Server.Common;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TransactionTable
+ *
+ * Status of every transaction a TM handed out, in bounded memory. Tids are handed out in order,
+ * so the status of tid lives in slot tid % slots of a ring, tagged with the tid: [tid][status] in
+ * one long, nothing boxed. Starting a tid evicts the one a ring's length before it, and a tid
+ * older than its slot's occupant has left the window. What is kept past that point:
+ *  - tids still running (any status but committed, aborted and unknown) move to a small overflow
+ *    map until they finish
+ *  - pinned tids read as committed: commits some participant may not have heard of yet, which
+ *    the TM has to be able to tell it later
+ * Any other tid that left the window reads as aborted; by presumed abort, that is also the answer
+ * for a participant that asks. Tids never handed out read as unknown.
+ *
+ * Memory stays at the ring plus the transactions running or waiting for a participant, however
+ * many have gone through.
+ */
+public final class TransactionTable<S extends Enum<S>> {
+
+    private static final long EMPTY = -1L; // slot never used: its "tid" is -1, older than any
+
+    private final long[] ring;
+    private final int mask;
+    private final S[] values;
+    private final S unknown;
+    private final S committed;
+    private final S aborted;
+    private final Map<Integer, S> overflow = new HashMap<>(); // running tids that left the window
+    private final Set<Integer> pinned = new HashSet<>();
+
+    /**
+     * @param slots ring size, rounded up to a power of two: how many recent tids are known exactly
+     * @param values all statuses, S.values()
+     */
+    public TransactionTable(int slots, S[] values, S unknown, S committed, S aborted) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.ring = new long[size];
+        this.mask = size - 1;
+        this.values = values;
+        this.unknown = unknown;
+        this.committed = committed;
+        this.aborted = aborted;
+        Arrays.fill(ring, EMPTY);
+    }
+
+    public synchronized S get(int tid) {
+        long entry = ring[tid & mask];
+        int occupant = (int) (entry >> 8);
+        if (occupant == tid) {
+            return values[(int) (entry & 0xff)];
+        }
+        S running = overflow.get(tid);
+        if (running != null) {
+            return running;
+        }
+        if (pinned.contains(tid)) {
+            return committed;
+        }
+        return (occupant > tid) ? aborted : unknown;
+    }
+
+    public synchronized void put(int tid, S status) {
+        int slot = tid & mask;
+        long entry = ring[slot];
+        int occupant = (int) (entry >> 8);
+        if (occupant > tid) {
+            // tid left the window while it ran
+            if (isRunning(status)) {
+                overflow.put(tid, status);
+            } else {
+                overflow.remove(tid);
+            }
+            return;
+        }
+        if (occupant != tid && entry != EMPTY) {
+            S evicted = values[(int) (entry & 0xff)];
+            if (isRunning(evicted)) {
+                overflow.put(occupant, evicted);
+            }
+        }
+        ring[slot] = ((long) tid << 8) | status.ordinal();
+    }
+
+    /** Set tid's status to update if it is expect, atomically */
+    public synchronized boolean replace(int tid, S expect, S update) {
+        if (get(tid) != expect) {
+            return false;
+        }
+        put(tid, update);
+        return true;
+    }
+
+    /** Keep tid known as committed after it leaves the window, until it is unpinned */
+    public synchronized void pin(int tid) {
+        pinned.add(tid);
+    }
+
+    public synchronized void unpin(Collection<Integer> tids) {
+        pinned.removeAll(tids);
+    }
+
+    /** @return a copy of the pinned tids */
+    public synchronized Set<Integer> getPinned() {
+        return new HashSet<>(pinned);
+    }
+
+    /** @return number of tids kept outside the ring, running or pinned */
+    public synchronized int getRetained() {
+        return overflow.size() + pinned.size();
+    }
+
+    private boolean isRunning(S status) {
+        return status != committed && status != aborted && status != unknown;
+    }
+}
@@ -0,0 +1,376 @@
+package Server.Common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * VersionedStore
+ *
+ * Committed state of one resource manager, kept as a chain of versions per key (newest first).
+ * Every commit is stamped with the next timestamp, so timestamps follow commit order. A snapshot
+ * taken at timestamp ts sees, for each key, the newest version stamped at or before ts: readers
+ * get a consistent state without locks while writers keep committing.
+ * Versions no open snapshot can see any more are dropped.
+ *
+ * Chains live in a ConcurrentHashMap and reads never lock. Writers lock the stripes of the keys
+ * they install (in stripe order), so commits of disjoint keys run in parallel. A commit becomes
+ * visible all at once: readers only look at versions up to the visible timestamp, which moves
+ * past a commit once it and every earlier commit are fully installed.
+ *
+ * Stored items are shared between readers and must not be modified; commit installs copies.
+ *
+ * After a restart the store can sit on top of a Base, the recovered state read straight from a
+ * checkpoint file: a key's base value becomes its oldest version the first time the key is used.
+ */
+public class VersionedStore {
+
+    // number of install lock stripes, rounded up to a power of two
+    private static final int DEFAULT_STRIPES = 64;
+
+    // one committed value of a key; item == null records a delete
+    private static final class Version {
+        final long ts;
+        final RMItem item;
+        volatile Version older;
+        volatile boolean trimmed; // older versions were dropped, not absent
+
+        Version(long ts, RMItem item, Version older) {
+            this.ts = ts;
+            this.item = item;
+            this.older = older;
+        }
+    }
+
+    private final Map<String, Version> chains = new ConcurrentHashMap<>();
+    private final ReentrantLock[] stripes;
+    private final int mask;
+    private final AtomicLong clock = new AtomicLong(); // last timestamp handed out
+    private final AtomicLong visible = new AtomicLong(); // every commit up to here is installed
+    private final Object publishing = new Object(); // committers waiting for the ones stamped before them
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>(); // open snapshot ts -> readers
+    private final Set<String> stale = ConcurrentHashMap.newKeySet(); // keys still holding versions older than their newest
+    private Base base; // values not materialized yet, stamped baseTs
+    private long baseTs;
+
+    /** Read-only committed state to materialize keys from on first use */
+    public interface Base {
+        /** @return value of key, or null if key is not in the base */
+        RMItem get(String key);
+
+        boolean contains(String key);
+
+        /** Hand every key and its value to consumer */
+        void forEach(BiConsumer<String, RMItem> consumer);
+    }
+
+    public VersionedStore() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public VersionedStore(int stripeCount) {
+        int n = 1;
+        while (n < stripeCount) n <<= 1;
+        stripes = new ReentrantLock[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        mask = n - 1;
+    }
+
+    /** @return latest committed value of key, or null */
+    public RMItem get(String key) {
+        while (true) {
+            long ts = visible.get();
+            Version v = chain(key);
+            boolean cut = false;
+            while (v != null && v.ts > ts) {
+                cut |= v.trimmed;
+                v = v.older;
+            }
+            if (v != null || !cut) {
+                return (v == null) ? null : v.item;
+            }
+            // the version we wanted was trimmed after a newer one became visible: look again
+        }
+    }
+
+    /** @return value of key as of snapshot ts, or null */
+    public RMItem get(String key, long ts) {
+        Version v = chain(key);
+        while (v != null && v.ts > ts) {
+            v = v.older;
+        }
+        return (v == null) ? null : v.item;
+    }
+
+    /**
+     * Start a snapshot of everything committed so far. Its versions are kept until closeSnapshot.
+     * @return the snapshot timestamp
+     */
+    public long openSnapshot() {
+        synchronized (snapshots) {
+            long ts = visible.get();
+            snapshots.merge(ts, 1, Integer::sum);
+            return ts;
+        }
+    }
+
+    public void closeSnapshot(long ts) {
+        synchronized (snapshots) {
+            Integer readers = snapshots.get(ts);
+            if (readers == null) {
+                return;
+            }
+            if (readers > 1) {
+                snapshots.put(ts, readers - 1);
+                return;
+            }
+            snapshots.remove(ts);
+            if (!snapshots.isEmpty() && snapshots.firstKey() < ts) {
+                return; // an older snapshot still holds everything this one did
+            }
+        }
+        // the oldest snapshot is gone: drop what only it could see
+        for (String key : new ArrayList<>(stale)) {
+            ReentrantLock stripe = stripeFor(key);
+            stripe.lock();
+            try {
+                trim(key, horizon());
+            } finally {
+                stripe.unlock();
+            }
+        }
+    }
+
+    /**
+     * Install writes as one new version per key, all stamped with the same timestamp.
+     * A null value deletes the key.
+     * @return the commit timestamp
+     */
+    public long commit(Map<String, RMItem> writes) {
+        Collection<String> keys = writes.keySet();
+        lock(keys);
+        try {
+            return install(writes);
+        } finally {
+            unlock(keys);
+        }
+    }
+
+    /** Commit a single key */
+    public long put(String key, RMItem item) {
+        return commit(Collections.singletonMap(key, item));
+    }
+
+    /**
+     * Install writes as one commit. The caller holds the locks of all keys in writes, which is
+     * how it makes a read-modify-write of committed values atomic with the install.
+     * @return the commit timestamp
+     */
+    public long install(Map<String, RMItem> writes) {
+        // materialize base values first: that can fail, and nothing is stamped yet
+        for (String key : writes.keySet()) {
+            chain(key);
+        }
+        // stamped only once every key is locked: an earlier timestamp never waits for a lock we hold
+        return install(writes, clock.incrementAndGet());
+    }
+
+    /**
+     * Take the timestamp of the next commit ahead of installing it, e.g. to log the commit first.
+     * The caller holds the locks of the keys it will install, and must hand ts to install or
+     * cancel without waiting on other commits: every commit stamped later waits for it.
+     */
+    public long stamp() {
+        return clock.incrementAndGet();
+    }
+
+    /** Install writes as the commit stamped ts (see stamp) */
+    public long install(Map<String, RMItem> writes, long ts) {
+        try {
+            for (Map.Entry<String, RMItem> entry : writes.entrySet()) {
+                String key = entry.getKey();
+                chains.put(key, new Version(ts, entry.getValue(), chain(key)));
+            }
+        } finally {
+            publish(ts); // whatever happened, or every later commit would wait for ts forever
+        }
+
+        long horizon = horizon();
+        for (String key : writes.keySet()) {
+            trim(key, horizon);
+        }
+        return ts;
+    }
+
+    /** Give up the commit stamped ts (see stamp): nothing is installed under it */
+    public void cancel(long ts) {
+        publish(ts);
+    }
+
+    // make ts visible once every earlier timestamp is, in timestamp order
+    private void publish(long ts) {
+        synchronized (publishing) {
+            boolean interrupted = false;
+            while (visible.get() != ts - 1) {
+                try {
+                    publishing.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true; // ts still has to be published
+                }
+            }
+            visible.set(ts);
+            publishing.notifyAll();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hand every key and its value as of snapshot ts to consumer, in no particular order.
+     * Commits can go on meanwhile; the caller keeps ts open until it is done.
+     */
+    public void forEach(long ts, BiConsumer<String, RMItem> consumer) {
+        if (base != null) {
+            // a base key nobody used since the restart still has its base value
+            base.forEach((key, item) -> {
+                RMItem value = chains.containsKey(key) ? get(key, ts) : item;
+                if (value != null) {
+                    consumer.accept(key, value);
+                }
+            });
+        }
+        for (String key : chains.keySet()) {
+            if (base != null && base.contains(key)) {
+                continue;
+            }
+            RMItem item = get(key, ts);
+            if (item != null) {
+                consumer.accept(key, item);
+            }
+        }
+    }
+
+    /**
+     * Load recovered state into the empty store: every item becomes a version stamped ts,
+     * and later commits are stamped after it.
+     */
+    public void restore(Map<String, RMItem> items, long ts) {
+        restore(null, 0, items, ts);
+    }
+
+    /**
+     * Load recovered state into the empty store: the values in base, stamped baseTs, are
+     * materialized as they are used; items (null for deleted keys) override them at ts.
+     */
+    public void restore(Base base, long baseTs, Map<String, RMItem> items, long ts) {
+        if (!chains.isEmpty() || clock.get() != 0) {
+            throw new IllegalStateException("restore into a store that is in use");
+        }
+        this.base = base;
+        this.baseTs = baseTs;
+        for (Map.Entry<String, RMItem> entry : items.entrySet()) {
+            String key = entry.getKey();
+            if (entry.getValue() != null || (base != null && base.contains(key))) {
+                chains.put(key, new Version(ts, entry.getValue(), null));
+            }
+        }
+        clock.set(ts);
+        visible.set(ts);
+    }
+
+    /** Lock keys against concurrent installs, in stripe order */
+    public void lock(Collection<String> keys) {
+        for (ReentrantLock stripe : stripesFor(keys)) {
+            stripe.lock();
+        }
+    }
+
+    public void unlock(Collection<String> keys) {
+        for (ReentrantLock stripe : stripesFor(keys)) {
+            stripe.unlock();
+        }
+    }
+
+    public void lock(String key) {
+        stripeFor(key).lock();
+    }
+
+    public void unlock(String key) {
+        stripeFor(key).unlock();
+    }
+
+    /** @return timestamp of the newest visible commit */
+    public long getLastCommit() {
+        return visible.get();
+    }
+
+    // newest version of key, materializing its base value on first use
+    private Version chain(String key) {
+        Version v = chains.get(key);
+        if (v == null && base != null) {
+            RMItem item = base.get(key);
+            if (item != null) {
+                v = chains.computeIfAbsent(key, k -> new Version(baseTs, item, null));
+            }
+        }
+        return v;
+    }
+
+    private ReentrantLock stripeFor(String key) {
+        int h = key.hashCode();
+        return stripes[(h ^ (h >>> 16)) & mask];
+    }
+
+    // distinct stripes of keys, by stripe index
+    private Collection<ReentrantLock> stripesFor(Collection<String> keys) {
+        TreeMap<Integer, ReentrantLock> ordered = new TreeMap<>();
+        for (String key : keys) {
+            int h = key.hashCode();
+            int i = (h ^ (h >>> 16)) & mask;
+            ordered.put(i, stripes[i]);
+        }
+        return ordered.values();
+    }
+
+    // oldest timestamp a reader can still ask for
+    private long horizon() {
+        synchronized (snapshots) {
+            return snapshots.isEmpty() ? visible.get() : snapshots.firstKey();
+        }
+    }
+
+    // keep the versions of key newer than horizon plus the one visible at horizon; caller holds its stripe
+    private void trim(String key, long horizon) {
+        Version head = chains.get(key);
+        if (head == null) {
+            stale.remove(key);
+            return;
+        }
+        Version v = head;
+        while (v.ts > horizon && v.older != null) {
+            v = v.older;
+        }
+        if (v.older != null) {
+            v.older = null;
+            v.trimmed = true;
+        }
+        if (head.older != null) {
+            stale.add(key);
+            return;
+        }
+        stale.remove(key);
+        if (head.item == null && (base == null || !base.contains(key))) {
+            chains.remove(key); // deleted, and no snapshot can see it any more
+        }
+    }
+}
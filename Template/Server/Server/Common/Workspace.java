@@ -0,0 +1,116 @@
+package Server.Common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Workspace
+ *
+ * Changes one transaction has staged at a resource manager: new values of the keys it holds
+ * WRITE locks on (null stages a delete), and the units it holds in escrow per key.
+ * Each workspace belongs to one tid at a time; its methods are synchronized, so operations of
+ * different transactions never share a lock and concurrent operations of one transaction are safe.
+ *
+ * Workspaces are pooled: commit and abort hand them back cleared, keeping their table capacity,
+ * and the next transaction reuses one instead of allocating. A workspace used by a closed
+ * transaction rejects further calls rather than leak into its next owner.
+ */
+final class Workspace {
+
+    // how many cleared workspaces are kept for reuse, -Drm.workspacePool=<n>
+    private static final int POOL_SIZE = Integer.getInteger("rm.workspacePool", 256);
+    // workspaces that grew past this many entries go to the GC instead of back to the pool
+    private static final int MAX_POOLED_ENTRIES = 64;
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    private static final Queue<Workspace> pool = new ArrayBlockingQueue<>(Math.max(1, POOL_SIZE));
+
+    private final Map<String, RMItem> staged = new HashMap<>();
+    private final Map<String, Integer> escrow = new HashMap<>(); // key -> units reserved
+    private int tid = CLOSED;
+
+    private Workspace() {
+    }
+
+    /** @return an empty workspace owned by tid */
+    static Workspace acquire(int tid) {
+        Workspace ws = pool.poll();
+        if (ws == null) {
+            ws = new Workspace();
+        }
+        synchronized (ws) {
+            ws.tid = tid;
+        }
+        return ws;
+    }
+
+    /** Clear the workspace and return it to the pool. Its owner can't use it any more. */
+    void recycle() {
+        synchronized (this) {
+            boolean grown = staged.size() > MAX_POOLED_ENTRIES || escrow.size() > MAX_POOLED_ENTRIES;
+            staged.clear();
+            escrow.clear();
+            tid = CLOSED;
+            if (grown) {
+                return;
+            }
+        }
+        pool.offer(this);
+    }
+
+    synchronized boolean isStaged(int tid, String key) {
+        check(tid);
+        return staged.containsKey(key);
+    }
+
+    /** @return the staged value of key, or null if it is staged as deleted or not staged */
+    synchronized RMItem get(int tid, String key) {
+        check(tid);
+        return staged.get(key);
+    }
+
+    synchronized void stage(int tid, String key, RMItem item) {
+        check(tid);
+        staged.put(key, item);
+    }
+
+    /** @return units tid holds in escrow on key, or 0 */
+    synchronized int escrowOf(int tid, String key) {
+        check(tid);
+        return escrow.getOrDefault(key, 0);
+    }
+
+    synchronized void addEscrow(int tid, String key, int units) {
+        check(tid);
+        escrow.merge(key, units, Integer::sum);
+    }
+
+    /** Forget tid's escrow on key, which is being folded into a staged copy. @return its units */
+    synchronized int takeEscrow(int tid, String key) {
+        check(tid);
+        Integer units = escrow.remove(key);
+        return (units == null) ? 0 : units;
+    }
+
+    synchronized boolean isEmpty() {
+        return staged.isEmpty() && escrow.isEmpty();
+    }
+
+    // The maps themselves, for prepare and commit once the transaction has stopped issuing operations
+
+    synchronized Map<String, RMItem> staged() {
+        return staged;
+    }
+
+    synchronized Map<String, Integer> escrow() {
+        return escrow;
+    }
+
+    private void check(int tid) {
+        if (this.tid != tid) {
+            throw new IllegalStateException("T" + tid + " has already committed or aborted here");
+        }
+    }
+}
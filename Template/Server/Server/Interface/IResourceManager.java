@@ -33,6 +33,23 @@ public interface IResourceManager extends Remote
     public String getName()
             throws RemoteException;
 
+    /**
+     * Lock manager metrics: requests, waits, timeouts, deadlocks, abort rate and detection latency.
+     *
+     * @return one-line summary
+     */
+    public String getLockStats()
+            throws RemoteException;
+
+    /**
+     * Transactions that voted yes here and are still waiting for the commit or abort decision.
+     * A recovering transaction manager resolves them.
+     *
+     * @return their ids
+     */
+    public int[] getInDoubt()
+            throws RemoteException;
+
     /**
      * get an item
      * @return
@@ -318,15 +335,32 @@ public interface IResourceManager extends Remote
 
     //---------------------------------------------------------Transaction-----------------------------------------------
 
+    /** An RM's answer to prepare */
+    enum Vote {
+        YES, // changes are logged and held until commit or abort
+        NO, // the RM aborted its part
+        READ_ONLY // nothing changed here: locks are already released and phase 2 can skip this RM
+    }
+
     /**
      * Check the resource locked status & availability.
      * If these two are ok, then write the modification into log, return yes.
-     * Else return false.
+     * A transaction that changed nothing here is finished by its READ_ONLY vote.
      * @param transactionalID
      * @return
      * @throws RemoteException
      */
-    public boolean prepare(int transactionalID)
+    public Vote prepare(int transactionalID)
+        throws RemoteException;
+
+    /**
+     * Validate and commit in one call, for the only participant with changes. Nothing is logged
+     * for the prepared state and the RM alone knows the outcome; sent again, it answers the same.
+     * @param transactionalID
+     * @return false if the transaction was aborted instead
+     * @throws RemoteException
+     */
+    public boolean commitOnePhase(int transactionalID)
         throws RemoteException;
 
     /**
@@ -0,0 +1,305 @@
+package Server.TCP;
+
+import Server.TCPHelper.RMFrames;
+import Server.TCPHelper.RMRequest;
+import Server.TCPHelper.WireFormat;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * MiddlewareConnection
+ *
+ * RM side of one connection from the middleware (see RMConnection), driven by an RMServer I/O
+ * loop: the loop reads into a buffer, takes the complete requests off it, and hands them to the
+ * workers; a worker writes its reply straight to the socket, or leaves what doesn't fit for the
+ * loop to write once the socket takes more.
+ *
+ * A line tagged "#<id>," is a request that may be in flight alongside others on the same
+ * connection: its reply goes back tagged the same as soon as it is ready, so a request waiting on
+ * a lock doesn't hold up the ones behind it. An untagged line is answered in order: nothing more
+ * is read until its reply is out, as before.
+ *
+ * A request "<tid>,Batch,<msg>␞<msg>..." is a frame of several messages for tid (see RMFrames):
+ * they run in order and their replies come back together, in one line. Once one fails, the rest
+ * answer "FAIL,SKIPPED" without running.
+ *
+ * If the first line is WireFormat.HELLO, the connection switches to binary frames instead of
+ * lines (see WireFormat); every binary request runs alongside the others like a tagged line.
+ */
+class MiddlewareConnection {
+    private static final int BUFFER_SIZE = 1024; // to start with; grows for a longer line or frame
+    private static final int MAX_BUFFER = 128 << 20; // a frame may be up to 64 MB (see WireFormat)
+    private static final Charset TEXT = Charset.defaultCharset(); // what the middleware writes lines in
+    // each worker encodes its replies into its own
+    private static final ThreadLocal<ByteBuffer> REPLY_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(WireFormat.BUFFER_SIZE));
+
+    private enum Protocol { UNKNOWN, TEXT, BINARY }
+
+    private final String name;
+    private final SocketChannel channel;
+    private final Function<RMRequest, String> handler;
+    private final ExecutorService workers;
+    private final Selector selector;
+    private final Executor loop;
+    private SelectionKey key;
+
+    // I/O loop only
+    private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+    private Protocol protocol = Protocol.UNKNOWN;
+    private boolean paused; // an untagged line is running
+
+    // guarded by this
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    private boolean closed;
+
+    /**
+     * @param handler turns a request into its reply
+     * @param workers run the requests
+     * @param loop runs the I/O for selector
+     */
+    MiddlewareConnection(String name, SocketChannel channel, Function<RMRequest, String> handler,
+                         ExecutorService workers, Selector selector, Executor loop) {
+        this.name = name;
+        this.channel = channel;
+        this.handler = handler;
+        this.workers = workers;
+        this.selector = selector;
+        this.loop = loop;
+    }
+
+    // on the I/O loop
+    void register() {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            System.out.println(name + " connected: " + channel.getRemoteAddress());
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    // on the I/O loop, when the socket can be read or written
+    void ready() {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void read() throws IOException {
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_BUFFER) throw new ProtocolException("no end of line in " + in.capacity() + " bytes");
+            in = ByteBuffer.allocate(in.capacity() * 2).put(in.flip());
+        }
+        if (channel.read(in) < 0) {
+            close(null);
+            return;
+        }
+        process();
+    }
+
+    // take the complete requests off in, unless an untagged line is running
+    private void process() throws IOException {
+        in.flip();
+        try {
+            while (!paused) {
+                if (protocol == Protocol.BINARY) {
+                    ByteBuffer frame = WireFormat.nextFrame(in);
+                    if (frame == null) break;
+                    binaryRequest(frame);
+                } else {
+                    String line = nextLine();
+                    if (line == null) break;
+                    if (protocol == Protocol.UNKNOWN) {
+                        firstLine(line);
+                    } else {
+                        textRequest(line);
+                    }
+                }
+            }
+        } finally {
+            in.compact();
+        }
+        if (in.position() == 0 && in.capacity() > BUFFER_SIZE) {
+            in = ByteBuffer.allocate(BUFFER_SIZE); // back to small once a big one is done
+        }
+    }
+
+    private String nextLine() {
+        int start = in.position();
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n') {
+                in.position(i + 1);
+                return new String(in.array(), in.arrayOffset() + start, i - start, TEXT);
+            }
+        }
+        return null;
+    }
+
+    private void firstLine(String line) {
+        if (line.trim().equals(WireFormat.HELLO)) {
+            protocol = Protocol.BINARY;
+            send(ByteBuffer.wrap((WireFormat.HELLO_OK + "\n").getBytes(StandardCharsets.UTF_8)));
+            System.out.println(name + " speaks binary with " + channel.socket().getRemoteSocketAddress());
+        } else {
+            protocol = Protocol.TEXT;
+            textRequest(line);
+        }
+    }
+
+    private void textRequest(String line) {
+        line = line.trim();
+        if (line.isEmpty()) return;
+        int comma = line.indexOf(',');
+        if (line.charAt(0) != '#' || comma < 0) {
+            String request = line;
+            paused = true;
+            key.interestOpsAnd(~SelectionKey.OP_READ);
+            run(() -> {
+                sendLine(handle(request));
+                loop.execute(this::resume);
+            }, () -> {
+                paused = false;
+                key.interestOpsOr(SelectionKey.OP_READ);
+                sendLine("FAIL,BUSY");
+            });
+            return;
+        }
+        String tag = line.substring(0, comma + 1);
+        String request = line.substring(comma + 1);
+        run(() -> sendLine(tag + handle(request)), () -> sendLine(tag + "FAIL,BUSY"));
+    }
+
+    // on the I/O loop, once the untagged line's reply is out
+    private void resume() {
+        paused = false;
+        if (!key.isValid()) return;
+        key.interestOpsOr(SelectionKey.OP_READ);
+        try {
+            process();
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void binaryRequest(ByteBuffer frame) throws ProtocolException {
+        long id = WireFormat.getVarlong(frame);
+        RMRequest request;
+        try {
+            request = WireFormat.readRequest(frame);
+        } catch (IllegalArgumentException e) {
+            sendReplies(id, new String[]{"FAIL," + e.getMessage()}, false);
+            return;
+        }
+        run(() -> sendReplies(id, handle(request), request.getBatch() != null),
+                () -> sendReplies(id, new String[]{"FAIL,BUSY"}, false));
+    }
+
+    private void run(Runnable request, Runnable busy) {
+        try {
+            workers.execute(request);
+        } catch (RejectedExecutionException e) {
+            busy.run();
+        }
+    }
+
+    private String handle(String line) {
+        RMRequest request;
+        try {
+            request = RMRequest.parse(line);
+        } catch (IllegalArgumentException e) {
+            return "FAIL," + e.getMessage();
+        }
+        return String.join(RMFrames.SEPARATOR, handle(request));
+    }
+
+    // the reply to request, or to each message of a frame
+    private String[] handle(RMRequest request) {
+        RMRequest[] batch = request.getBatch();
+        if (batch == null) {
+            return new String[]{handleOne(request)};
+        }
+        String[] replies = new String[batch.length];
+        boolean failed = false;
+        for (int i = 0; i < batch.length; i++) {
+            replies[i] = failed ? "FAIL,SKIPPED" : handleOne(batch[i]);
+            failed = failed || replies[i].startsWith("FAIL") || replies[i].startsWith("ERROR");
+        }
+        return replies;
+    }
+
+    // every request gets a reply, or the middleware waits on it until it times out
+    private String handleOne(RMRequest request) {
+        try {
+            return handler.apply(request);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return "FAIL," + e.getMessage();
+        }
+    }
+
+    private void sendLine(String reply) {
+        send(ByteBuffer.wrap((reply + "\n").getBytes(TEXT)));
+    }
+
+    private void sendReplies(long id, String[] replies, boolean batch) {
+        ByteBuffer buf = WireFormat.writeReply(REPLY_BUFFER.get(), id, replies, batch);
+        REPLY_BUFFER.set(buf);
+        send(buf);
+    }
+
+    // write data now if nothing is waiting before it; what the socket doesn't take waits for the loop
+    private synchronized void send(ByteBuffer data) {
+        if (closed) return;
+        try {
+            if (out.isEmpty()) {
+                channel.write(data);
+                if (!data.hasRemaining()) return;
+            }
+            out.add(ByteBuffer.allocate(data.remaining()).put(data).flip()); // data may be reused
+            key.interestOpsOr(SelectionKey.OP_WRITE);
+            selector.wakeup();
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    // on the I/O loop
+    private synchronized void flush() throws IOException {
+        while (!out.isEmpty()) {
+            ByteBuffer data = out.peek();
+            channel.write(data);
+            if (data.hasRemaining()) return;
+            out.poll();
+        }
+        key.interestOpsAnd(~SelectionKey.OP_WRITE);
+    }
+
+    private synchronized void close(IOException cause) {
+        if (closed) return;
+        closed = true;
+        out.clear();
+        if (cause != null) {
+            System.err.println(name + " connection error: " + cause.getMessage());
+        }
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+}
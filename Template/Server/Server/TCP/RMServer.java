@@ -0,0 +1,163 @@
+package Server.TCP;
+
+import Server.Common.Threads;
+import Server.TCPHelper.RMRequest;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * RMServer
+ *
+ * Non-blocking server core shared by the TCP RMs. A few I/O threads, each with its own Selector,
+ * read what the middleware sends, split it into requests (see MiddlewareConnection) and write the
+ * replies back; the requests themselves run on a bounded pool of workers. A connection costs its
+ * buffers rather than a thread, so an RM holds thousands of them with flat memory.
+ *
+ * The first I/O loop accepts connections too, and deals them out to the loops in turn. A request
+ * that finds every worker busy and the queue full is answered "FAIL,BUSY" at once. With virtual
+ * threads (see Threads), every request gets one of its own instead, and none is turned away.
+ */
+public class RMServer {
+
+    // I/O threads, -Drm.ioThreads=<n>
+    private static final int IO_THREADS = Integer.getInteger("rm.ioThreads",
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+    // threads running requests, and requests waiting for one; requests can wait on locks
+    // (-Dlock.timeout), so keep enough workers for the commits behind them, -Drm.workers=<n>, -Drm.workQueue=<n>
+    private static final int WORKERS = Integer.getInteger("rm.workers", 64);
+    private static final int WORK_QUEUE = Integer.getInteger("rm.workQueue", 10000);
+
+    private final String name;
+    private final ServerSocketChannel server;
+    private final Function<RMRequest, String> handler;
+    private final ExecutorService workers;
+    private final Loop[] loops;
+    private int nextLoop; // accepting loop only
+
+    /** Listen on port; nothing is accepted until start() */
+    public RMServer(String name, int port, Function<RMRequest, String> handler) throws IOException {
+        this.name = name;
+        this.handler = handler;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        if (Threads.VIRTUAL) {
+            workers = Threads.perTask(name + "-worker");
+        } else {
+            AtomicInteger workerIds = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKERS, WORKERS, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(WORK_QUEUE), r -> {
+                Thread t = new Thread(r, name + "-worker-" + workerIds.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            workers = pool;
+        }
+        loops = new Loop[Math.max(1, IO_THREADS)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Loop(Selector.open());
+        }
+    }
+
+    /** Serve until the server socket fails; the first I/O loop runs in the calling thread */
+    public void start() {
+        for (int i = 1; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], name + "-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        loops[0].run();
+        workers.shutdown();
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // replies go out as soon as they are ready
+                Loop loop = loops[nextLoop++ % loops.length];
+                MiddlewareConnection connection =
+                        new MiddlewareConnection(name, channel, handler, workers, loop.selector, loop);
+                loop.execute(connection::register);
+            }
+        } catch (IOException e) {
+            System.err.println(name + " accept failed: " + e.getMessage()); // the rest wait for the next select
+        }
+    }
+
+    // one selector and the thread that runs it; other threads hand it work through execute()
+    private final class Loop implements Runnable, Executor {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (server.isOpen()) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (CancelledKeyException e) {
+                        // its connection was closed meanwhile
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            ((MiddlewareConnection) key.attachment()).ready();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // closed by a worker that failed to write to it
+                    }
+                }
+            }
+        }
+    }
+}
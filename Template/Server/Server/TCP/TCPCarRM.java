@@ -1,84 +1,44 @@
 package Server.TCP;
 
 import Server.Common.CarResourceManager;
+import Server.TCPHelper.RMRequest;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.rmi.RemoteException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.stream.Collectors;
 
 public class TCPCarRM extends CarResourceManager {
     private final int port;
     private final String name;
-    private final ServerSocket serverSocket;
+    private final RMServer server;
 
     public TCPCarRM(String name, int port) throws IOException {
         super(name);
         this.name = name;
         this.port = port;
-        this.serverSocket = new ServerSocket(port);
+        this.server = new RMServer(name, port, this::handle);
         System.out.println(name + " listening on port " + port);
     }
 
     public void start() {
-        ExecutorService pool = Executors.newCachedThreadPool();
-        while (true) {
-            try {
-                Socket s = serverSocket.accept();
-                pool.submit(new Handler(s));
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-        }
-        pool.shutdown();
-    }
-
-    private class Handler implements Runnable {
-        private final Socket socket;
-        Handler(Socket socket) { this.socket = socket; }
-
-        @Override
-        public void run() {
-            String client = socket.getRemoteSocketAddress().toString();
-            System.out.println(name + " connected: " + client);
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
-                    String resp = handleLine(line);
-                    out.println(resp);
-                }
-            } catch (IOException e) {
-                System.err.println(name + " connection error: " + e.getMessage());
-            }
-        }
+        server.start();
     }
 
-    private String handleLine(String line) {
-        System.out.println("CarRM is handling: " + line);
-        String[] parts = line.split(",", -1);
-        if (parts.length < 2) return "FAIL,EMPTY";
-
-        int tid;
-        try { tid = Integer.parseInt(parts[0].trim()); }
-        catch (NumberFormatException e) { return "FAIL,BAD_TID"; }
+    private String handle(RMRequest request) {
+        System.out.println("CarRM is handling: " + request);
+        int tid = request.getTid();
 
         // --- PREPARE/COMMIT/ABORT ---
-        String first = parts[1].trim().toUpperCase();
-        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "ABORT".equals(first)) {
+        String first = request.getCommand().toUpperCase();
+        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "COMMITONEPHASE".equals(first)
+                || "ABORT".equals(first)) {
 
             switch (first) {
                 case "PREPARE":
                     try {
-                        return prepare(tid) ? "OK" : "FAIL,PREPARE_FAILED";
+                        Vote vote = prepare(tid);
+                        return (vote == Vote.NO) ? "FAIL,PREPARE_FAILED" : (vote == Vote.READ_ONLY) ? "OK,READ_ONLY" : "OK";
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
@@ -88,6 +48,12 @@ public class TCPCarRM extends CarResourceManager {
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
+                case "COMMITONEPHASE":
+                    try {
+                        return commitOnePhase(tid) ? "OK" : "FAIL,COMMIT_FAILED";
+                    } catch (RemoteException e) {
+                        throw new RuntimeException(e);
+                    }
                 case "ABORT":
                     try {
                         return abort(tid) ? "OK" : "FAIL,ABORT_FAILED";
@@ -98,33 +64,39 @@ public class TCPCarRM extends CarResourceManager {
         }
 
         // --- Normal ops ---
-        String cmd = parts[1].trim();
+        String cmd = request.getCommand();
 
         try {
             switch (cmd) {
                 case "AddCars":
-                    if (parts.length < 5) return "FAIL,BAD_ARGS";
-                    return addCars(tid, parts[2].trim(), Integer.parseInt(parts[3].trim()), Integer.parseInt(parts[4].trim())) ? "OK" : "FAIL,ADD_FAILED";
+                    if (request.size() < 3) return "FAIL,BAD_ARGS";
+                    return addCars(tid, request.getString(0), request.getInt(1), request.getInt(2)) ? "OK" : "FAIL,ADD_FAILED";
                 case "DeleteCars":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return deleteCars(tid, parts[2].trim()) ? "OK" : "FAIL,DELETE_FAILED";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return deleteCars(tid, request.getString(0)) ? "OK" : "FAIL,DELETE_FAILED";
                 case "QueryCars":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return "OK," + queryCars(tid, parts[2].trim());
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return "OK," + queryCars(tid, request.getString(0));
                 case "QueryCarsPrice":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return "OK," + queryCarsPrice(tid, parts[2].trim());
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return "OK," + queryCarsPrice(tid, request.getString(0));
                 case "ReserveCar":
-                    if (parts.length < 4) return "FAIL,BAD_ARGS";
-                    int cust = Integer.parseInt(parts[2].trim());
-                    String loc = parts[3].trim();
+                    if (request.size() < 2) return "FAIL,BAD_ARGS";
+                    int cust = request.getInt(0);
+                    String loc = request.getString(1);
                     return reserveCar(tid, cust, loc) ? "OK" : "FAIL,NO_CAR";
+                case "Ping":
+                    return "OK";
+                case "LockStats":
+                    return "OK," + getLockStats();
+                case "InDoubt":
+                    return "OK" + Arrays.stream(getInDoubt()).mapToObj(t -> "," + t).collect(Collectors.joining());
                 case "QueryReserved":
-                    if(parts.length < 3) return "FAIL, BAD_ARGS";
-                    return String.valueOf(queryReserved(tid, parts[2].trim()));
+                    if(request.size() < 1) return "FAIL, BAD_ARGS";
+                    return String.valueOf(queryReserved(tid, request.getString(0)));
                 case "rollbackReserve":
-                    if(parts.length < 5) return "FAIL,BAD_ARGS";
-                    return rollbackReserve(tid, Integer.parseInt(parts[2].trim()), parts[3].trim().toLowerCase(), Integer.parseInt(parts[4].trim())) ? "OK" : "FAIL IN ROLLING-BACK";
+                    if(request.size() < 3) return "FAIL,BAD_ARGS";
+                    return rollbackReserve(tid, request.getInt(0), request.getString(1).toLowerCase(), request.getInt(2)) ? "OK" : "FAIL IN ROLLING-BACK";
                 default:
                     return "FAIL,UNKNOWN_CMD";
             }
@@ -3,100 +3,65 @@ package Server.TCP;
 
 import Server.Common.Customer;
 import Server.Common.CustomerManager;
-import Server.Common.RMHashMap;
 import Server.Common.ReservedItem;
+import Server.TCPHelper.RMRequest;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.rmi.RemoteException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * TCPCustomerRM
  *
  * In-memory Customer Resource Manager with transaction staging and 2PC protocol.
  * Supported messages:
- *   PREPARE,tid
+ *   PREPARE,tid          (OK,READ_ONLY when tid changed nothing here)
  *   COMMIT,tid
+ *   COMMITONEPHASE,tid   (validate and commit, for the only participant with changes)
  *   ABORT,tid
  *   <tid>,NewCustomer
  *   <tid>,NewCustomerID,<cid>
  *   <tid>,DeleteCustomer,<cid>
  *   <tid>,QueryCustomerInfo,<cid>
  *   <tid>,CustomerExists,<cid>
+ *   <tid>,LockStats
+ *   <tid>,Ping           (liveness check from the middleware)
+ *   <tid>,InDoubt
+ *   <tid>,Batch,<msg>␞<msg>... (several of the above in one frame, see MiddlewareConnection)
  */
 public class TCPCustomerRM extends CustomerManager {
     private final int port;
-    private final ServerSocket serverSocket;
+    private final RMServer server;
     private final String name;
 
     public TCPCustomerRM(String name, int port) throws IOException {
         super(name);
         this.port = port;
         this.name = name;
-        this.serverSocket = new ServerSocket(port);
+        this.server = new RMServer(name, port, this::handle);
         System.out.println(name + " listening on port " + port);
     }
 
     public void start() {
-        ExecutorService pool = Executors.newCachedThreadPool();
-        while (true) {
-            try {
-                Socket s = serverSocket.accept();
-                pool.submit(new Handler(s));
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-        }
-        pool.shutdown();
-    }
-
-    private class Handler implements Runnable {
-        private final Socket socket;
-        Handler(Socket socket) { this.socket = socket; }
-
-        @Override
-        public void run() {
-            String client = socket.getRemoteSocketAddress().toString();
-            System.out.println(name + " connected: " + client);
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
-                    String resp = handleLine(line);
-                    out.println(resp);
-                }
-            } catch (IOException e) {
-                System.err.println(name + " connection error: " + e.getMessage());
-            }
-        }
+        server.start();
     }
 
-    private String handleLine(String line) {
-        System.out.println("CustomerRM is handling: " + line);
-        String[] parts = line.split(",", -1);
-        if (parts.length < 2) return "FAIL,EMPTY";
-
-        int tid;
-        try { tid = Integer.parseInt(parts[0].trim()); }
-        catch (NumberFormatException e) { return "FAIL,BAD_TID"; }
+    private String handle(RMRequest request) {
+        System.out.println("CustomerRM is handling: " + request);
+        int tid = request.getTid();
 
         // --- PREPARE/COMMIT/ABORT ---
-        String first = parts[1].trim().toUpperCase();
-        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "ABORT".equals(first)) {
+        String first = request.getCommand().toUpperCase();
+        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "COMMITONEPHASE".equals(first)
+                || "ABORT".equals(first)) {
 
             switch (first) {
                 case "PREPARE":
                     try {
-                        return prepare(tid) ? "OK" : "FAIL,PREPARE_FAILED";
+                        Vote vote = prepare(tid);
+                        return (vote == Vote.NO) ? "FAIL,PREPARE_FAILED" : (vote == Vote.READ_ONLY) ? "OK,READ_ONLY" : "OK";
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
@@ -106,6 +71,12 @@ public class TCPCustomerRM extends CustomerManager {
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
+                case "COMMITONEPHASE":
+                    try {
+                        return commitOnePhase(tid) ? "OK" : "FAIL,COMMIT_FAILED";
+                    } catch (RemoteException e) {
+                        throw new RuntimeException(e);
+                    }
                 case "ABORT":
                     try {
                         return abort(tid) ? "OK" : "FAIL,ABORT_FAILED";
@@ -116,50 +87,56 @@ public class TCPCustomerRM extends CustomerManager {
         }
 
         // --- Normal ops ---
-        String cmd = parts[1].trim();
+        String cmd = request.getCommand();
 
         try {
             switch (cmd) {
                 case "AddCustomer":
                     return "OK, new ID: " + newCustomer(tid);
                 case "AddCustomerID":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return newCustomerID(tid, Integer.parseInt(parts[2].trim())) ? "OK" : "FAIL,NEW_FAILED";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return newCustomerID(tid, request.getInt(0)) ? "OK" : "FAIL,NEW_FAILED";
                 case "DeleteCustomer":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return deleteCustomer(tid, Integer.parseInt(parts[2].trim())) ? "OK" : "FAIL,DELETE_FAILED";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return deleteCustomer(tid, request.getInt(0)) ? "OK" : "FAIL,DELETE_FAILED";
                 case "QueryCustomer":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return "OK," + queryCustomerInfo(tid, Integer.parseInt(parts[2].trim()));
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return "OK," + queryCustomerInfo(tid, request.getInt(0));
                 case "CustomerExists":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return customerExists(tid, Integer.parseInt(parts[2].trim())) ? "OK" : "FAIL,NOT_FOUND";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return customerExists(tid, request.getInt(0)) ? "OK" : "FAIL,NOT_FOUND";
                 case "CustomerReserve": { // tid ,"CustomerReserve," + customerID + ",flight-" + flightNum + ",1," + price
-                    if (parts.length < 6) return "FAIL,BAD_ARGS";
-                    int cid = Integer.parseInt(parts[2].trim());
-                    String key = parts[3].trim();
-                    int count = Integer.parseInt(parts[4].trim());
-                    int price = Integer.parseInt(parts[5].trim());
+                    if (request.size() < 4) return "FAIL,BAD_ARGS";
+                    int cid = request.getInt(0);
+                    String key = request.getString(1);
+                    int count = request.getInt(2);
+                    int price = request.getInt(3);
                     boolean ok = customerReserve(tid, cid, key, count, price);
                     return ok ? "OK" : "FAIL";
                 }
+                case "Ping":
+                    return "OK";
+                case "LockStats":
+                    return "OK," + getLockStats();
+                case "InDoubt":
+                    return "OK" + Arrays.stream(getInDoubt()).mapToObj(t -> "," + t).collect(Collectors.joining());
                 case "QueryReserved":
-                    if(parts.length < 3) return "FAIL, BAD_ARGS";
-                    return String.valueOf(queryReserved(tid, parts[2].trim()));
+                    if(request.size() < 1) return "FAIL, BAD_ARGS";
+                    return String.valueOf(queryReserved(tid, request.getString(0)));
                 case "getItem": {
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
 
-                    Customer cust = (Customer) getItem(tid, parts[2]);
+                    Customer cust = (Customer) getItem(tid, request.getString(0));
                     if (cust == null) {
                         return "FAIL,NO_SUCH_CUSTOMER";
                     }
 
                     StringBuilder sb = new StringBuilder("OK, ");
-                    RMHashMap reservations = cust.getReservations();
+                    Map<String, ReservedItem> reservations = cust.getReservations();
 
                     boolean label = true;
                     for (String reservedKey : reservations.keySet()) {
-                        ReservedItem item = (ReservedItem) reservations.get(reservedKey);
+                        ReservedItem item = reservations.get(reservedKey);
                         if (!label) sb.append("; ");
                         sb.append(reservedKey).append(":").append(item.getCount());
                         label = false;
@@ -169,10 +146,10 @@ public class TCPCustomerRM extends CustomerManager {
                 }
 
                 case "rollbackReserve": {
-                    if (parts.length < 5) return "FAIL,BAD_ARGS"; // tid, RM, customerID, key, count
-                    int customerID = Integer.parseInt(parts[2].trim());
-                    String key = parts[3].trim();
-                    int count = Integer.parseInt(parts[4].trim());
+                    if (request.size() < 3) return "FAIL,BAD_ARGS"; // tid, RM, customerID, key, count
+                    int customerID = request.getInt(0);
+                    String key = request.getString(1);
+                    int count = request.getInt(2);
                     return rollbackReserve(tid, customerID, key, count) ? "OK" : "FAIL,ROLLBACK_FAILED";
                 }
 
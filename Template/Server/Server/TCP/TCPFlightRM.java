@@ -1,29 +1,27 @@
 package Server.TCP;
 
 import Server.Common.FlightResourceManager;
+import Server.TCPHelper.RMRequest;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.rmi.RemoteException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.stream.Collectors;
 
 /**
  * TCPFlightRM
  *
  * Simple in-memory Flight RM that supports transaction staging and 2PC commands:
  *  - Operation messages are staged per-tid (not applied to global state).
- *  - PREPARE,tid -> validate staged changes for tid (return OK or FAIL)
+ *  - PREPARE,tid -> validate staged changes for tid (return OK or FAIL; OK,READ_ONLY if there are none)
  *  - COMMIT,tid  -> apply staged changes to global state and clear stage
+ *  - COMMITONEPHASE,tid -> PREPARE and COMMIT in one step, for the only participant with changes
  *  - ABORT,tid   -> discard staged changes
  *
  * Message formats (single-line, CSV):
  *  - PREPARE,<tid>
  *  - COMMIT,<tid>
+ *  - COMMITONEPHASE,<tid>
  *  - ABORT,<tid>
  *  - <tid>,AddFlight,<flightNum>,<seats>,<price>
  *  - <tid>,DeleteFlight,<flightNum>
@@ -31,90 +29,57 @@ import java.util.concurrent.Executors;
  *  - <tid>,QueryFlightPrice,<flightNum>
  *  - <tid>,ReserveFlight,<customerID>,<flightNum>
  *  - <tid>,FlightExists,<flightNum>
+ *  - <tid>,LockStats
+ *  - <tid>,Ping (liveness check from the middleware)
+ *  - <tid>,InDoubt
+ *  - <tid>,Batch,<msg>␞<msg>... (several of the above in one frame, see MiddlewareConnection)
  *
  * Replies:
  *  - OK
  *  - OK,<value> (for queries)
  *  - FAIL,<reason>
+ *
+ * The middleware may switch a connection to binary frames carrying the same (see WireFormat).
  */
 public class TCPFlightRM extends FlightResourceManager {
 
     private final int port;
 
     private final String name;
-    private final ServerSocket serverSocket;
+    private final RMServer server;
 
     // simple constructor
     public TCPFlightRM(String name, int port) throws IOException {
         super(name);
         this.port = port;
         this.name = name;
-        this.serverSocket = new ServerSocket(port);
+        this.server = new RMServer(name, port, this::handle);
         System.out.println(name + " listening on port " + port);
     }
 
 
     // Start server
     public void start() {
-        ExecutorService pool = Executors.newCachedThreadPool();
-        while (true) {
-            try {
-                Socket s = serverSocket.accept();
-                pool.submit(new Handler(s));
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-        }
-        pool.shutdown();
+        server.start();
     }
 
 
-    // Handler for each middleware connection (long-lived)
-    private class Handler implements Runnable {
-        private final Socket socket;
-        Handler(Socket socket) { this.socket = socket; }
-
-        @Override
-        public void run() {
-            String client = socket.getRemoteSocketAddress().toString();
-            System.out.println(name + " connected: " + client);
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-
-                String line;
-                while ((line = in.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
-                    String resp = handleLine(line);
-                    out.println(resp);
-                }
-
-            } catch (IOException e) {
-                System.err.println(name + " connection error: " + e.getMessage());
-            }
-        }
-    }
-
-    // Parse line and dispatch
+    // Dispatch a request, parsed from a line or decoded from a binary frame (see MiddlewareConnection)
     // line: "1, PREPARE"
     //"2, AddFlight, 222, 001"
-    private String handleLine(String line) {
-        // support both "PREPARE,tid" and "tid,Command,..." forms
-        System.out.println("FlightRM is handling: " + line);
-        String[] parts = line.split(",", -1);
-        if (parts.length < 2 ) return "FAIL,EMPTY";
-
-        int tid;
-        try { tid = Integer.parseInt(parts[0].trim()); } catch (NumberFormatException e) { return "FAIL,BAD_TID"; }
+    private String handle(RMRequest request) {
+        System.out.println("FlightRM is handling: " + request);
+        int tid = request.getTid();
 
-        String first = parts[1].trim().toUpperCase();
-        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "ABORT".equals(first)) {
+        String first = request.getCommand().toUpperCase();
+        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "COMMITONEPHASE".equals(first)
+                || "ABORT".equals(first)) {
 
             switch (first) {
                 case "PREPARE":
                     try {
-                        return prepare(tid) ? "OK" : "FAIL,PREPARE_FAILED";
+                        Vote vote = prepare(tid);
+                        return (vote == Vote.NO) ? "FAIL,PREPARE_FAILED" : (vote == Vote.READ_ONLY) ? "OK,READ_ONLY" : "OK";
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
@@ -124,6 +89,12 @@ public class TCPFlightRM extends FlightResourceManager {
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
+                case "COMMITONEPHASE":
+                    try {
+                        return commitOnePhase(tid) ? "OK" : "FAIL,COMMIT_FAILED";
+                    } catch (RemoteException e) {
+                        throw new RuntimeException(e);
+                    }
                 case "ABORT":
                     try {
                         return abort(tid) ? "OK" : "FAIL,ABORT_FAILED";
@@ -134,36 +105,42 @@ public class TCPFlightRM extends FlightResourceManager {
         }
 
         // else assume form "<tid>,Command,..."
-        String cmd = parts[1].trim();
+        String cmd = request.getCommand();
         // ---------- operations that stage changes (thread-safe) in FlightResourceManager ----------
         try {
             switch (cmd) {
                 case "AddFlight":
-                    if (parts.length < 5) return "FAIL,BAD_ARGS";
-                    return addFlight(tid, parts[2].trim(), Integer.parseInt(parts[3].trim()), Integer.parseInt(parts[4].trim())) ? "OK" : "FAIL,ADD_FAILED";
+                    if (request.size() < 3) return "FAIL,BAD_ARGS";
+                    return addFlight(tid, request.getString(0), request.getInt(1), request.getInt(2)) ? "OK" : "FAIL,ADD_FAILED";
                 case "DeleteFlight":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return deleteFlight(tid, parts[2].trim()) ? "OK" : "FAIL,DELETE_FAILED";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return deleteFlight(tid, request.getString(0)) ? "OK" : "FAIL,DELETE_FAILED";
                 case "QueryFlight":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return "OK," + queryFlight(tid, parts[2].trim());
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return "OK," + queryFlight(tid, request.getString(0));
                 case "QueryFlightPrice":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return "OK," + queryFlightPrice(tid, parts[2].trim());
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return "OK," + queryFlightPrice(tid, request.getString(0));
                 case "ReserveFlight":
-                    if (parts.length < 4) return "FAIL,BAD_ARGS";
-                    int cust = Integer.parseInt(parts[2].trim());
-                    String fnum = parts[3].trim();
+                    if (request.size() < 2) return "FAIL,BAD_ARGS";
+                    int cust = request.getInt(0);
+                    String fnum = request.getString(1);
                     return reserveFlight(tid, cust, fnum) ? "OK" : "FAIL,NO_SEAT";
                 case "FlightExists":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return flightExists(tid, parts[2].trim()) ? "OK" : "FAIL,NOT_FOUND";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return flightExists(tid, request.getString(0)) ? "OK" : "FAIL,NOT_FOUND";
+                case "Ping":
+                    return "OK";
+                case "LockStats":
+                    return "OK," + getLockStats();
+                case "InDoubt":
+                    return "OK" + Arrays.stream(getInDoubt()).mapToObj(t -> "," + t).collect(Collectors.joining());
                 case "QueryReserved":
-                    if(parts.length < 3) return "FAIL, BAD_ARGS";
-                    return String.valueOf(queryReserved(tid, parts[2].trim()));
+                    if(request.size() < 1) return "FAIL, BAD_ARGS";
+                    return String.valueOf(queryReserved(tid, request.getString(0)));
                 case "rollbackReserve":
-                    if(parts.length < 5) return "FAIL,BAD_ARGS";
-                    return rollbackReserve(tid, Integer.parseInt(parts[2].trim()), parts[3].trim(), Integer.parseInt(parts[4].trim())) ? "OK" : "FAIL IN ROLLINGBACK";
+                    if(request.size() < 3) return "FAIL,BAD_ARGS";
+                    return rollbackReserve(tid, request.getInt(0), request.getString(1), request.getInt(2)) ? "OK" : "FAIL IN ROLLINGBACK";
                 default:
                     return "FAIL,UNKNOWN_CMD";
             }
@@ -1,6 +1,7 @@
 package Server.TCP;
 
-import Server.TCPHelper.RMConnection;
+import Server.Common.Threads;
+import Server.TCPHelper.RMConnectionPool;
 import Server.TCPHelper.Request;
 import Server.TCPHelper.TCPTransactionManager;
 import Server.TCPHelper.Worker;
@@ -23,23 +24,37 @@ import java.util.concurrent.*;
  * logic in Middleware.java
  * 4. Workers collect all responses from RMs, assemble them to a result to one Request. Then send the result to Client by mapping
  * <requestId, clientSocket>
+ * 5. Resolving the transactions RMs hold prepared without a decision (after a restart of either side):
+ * commit those the TM logged a commit for, abort the others.
+ * With -Dthreads.virtual=true (see Threads), client handlers run on virtual threads, and so does each
+ * Request, on one of its own: the worker count no longer applies.
  */
 public class TCPMiddleware {
 
+    // seconds between sweeps of the RMs for in-doubt transactions, -Dtm.resolveSeconds=<s>
+    private static final int RESOLVE_SECONDS = Integer.getInteger("tm.resolveSeconds", 30);
+    // connections kept open to each RM, -Dtm.rmPoolSize=<n>; size it against the workers with PoolStats
+    private static final int RM_POOL_SIZE = Integer.getInteger("tm.rmPoolSize", 2);
+    // clients waiting to be accepted; past the default 50, a burst of them sees its SYNs dropped and retried a second later
+    private static final int ACCEPT_BACKLOG = 1024;
+
     // config: RM endpoints
     private final Map<String, InetSocketAddress> rmAddrs;
 
-    // persistent connections to RMs
-    private final Map<String, RMConnection> rmConnections;
+    // persistent connections to RMs, a pool per RM
+    private final Map<String, RMConnectionPool> rmConnections;
 
     // transaction queue (MQ)
     private final BlockingQueue<Request> txQueue = new LinkedBlockingQueue<>();
 
     // thread pool for client handlers
-    private final ExecutorService clientAcceptPool = Executors.newCachedThreadPool();
+    private final ExecutorService clientAcceptPool =
+            Threads.VIRTUAL ? Threads.perTask("client") : Executors.newCachedThreadPool();
 
-    // worker pool for processing transactions
+    // worker pool for processing transactions; with virtual threads, a thread per transaction instead of the MQ
     private final ExecutorService workerPool;
+    private final int workerCount;
+    private Worker worker;
 
     private final TCPTransactionManager tm = new TCPTransactionManager();
 
@@ -48,7 +63,8 @@ public class TCPMiddleware {
 
     public TCPMiddleware(int listenPort, int workerCount) {
         this.listenPort = listenPort; //3035
-        this.workerPool = Executors.newFixedThreadPool(workerCount);
+        this.workerCount = workerCount;
+        this.workerPool = Threads.VIRTUAL ? Threads.perTask("worker") : Executors.newFixedThreadPool(workerCount);
 
         String flightHost = "tr-open-01.cs.mcgill.ca";
         String carHost    = "tr-open-02.cs.mcgill.ca";
@@ -62,27 +78,132 @@ public class TCPMiddleware {
         rmAddrs.put("RoomRM", new InetSocketAddress(Host, 5003));
         rmAddrs.put("CustomerRM", new InetSocketAddress(Host, 5004));
 
-        // create RMConnection placeholders
+        // create the RM connection pools; they connect in the background
         rmConnections = new ConcurrentHashMap<>();
-        rmAddrs.forEach((k, v) -> rmConnections.put(k, new RMConnection(k, v.getHostString(), v.getPort())));
+        rmAddrs.forEach((k, v) -> rmConnections.put(k, new RMConnectionPool(k, v.getHostString(), v.getPort(), RM_POOL_SIZE)));
     }
 
     public void start() throws IOException {
         System.out.println("Starting TCPMiddleware listening on port " + listenPort);
-        serverSocket = new ServerSocket(listenPort);
+        serverSocket = new ServerSocket(listenPort, ACCEPT_BACKLOG);
+
+        // finish what the RMs still hold prepared from before a restart, then keep an eye on them
+        if (resolveInDoubt()) {
+            tm.compactLog();
+        }
+        if (RESOLVE_SECONDS > 0) {
+            Thread resolver = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(RESOLVE_SECONDS * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    resolveInDoubt();
+                }
+            }, "tm-resolver");
+            resolver.setDaemon(true);
+            resolver.start();
+        }
 
         // start worker threads
-        for (int i = 0; i < ((ThreadPoolExecutor) workerPool).getCorePoolSize(); i++) {
-            workerPool.submit(new Worker(txQueue, rmConnections, tm));
+        worker = new Worker(txQueue, rmConnections, tm);
+        if (!Threads.VIRTUAL) {
+            for (int i = 0; i < workerCount; i++) {
+                workerPool.submit(new Worker(txQueue, rmConnections, tm));
+            }
         }
 
         // listening clients persistently
         while (true) {
             Socket clientSocket = serverSocket.accept();
+            clientSocket.setTcpNoDelay(true); // results go out a line at a time
             clientAcceptPool.submit(new ClientHandler(clientSocket));
         }
     }
 
+    /**
+     * Ask every RM for the transactions it prepared and is still waiting on, and tell it the
+     * decision: commit if the TM logged one, abort otherwise. Transactions in progress are skipped.
+     * Also asks again for the one-phase commits whose answer never came.
+     * @return true if every RM answered
+     */
+    public boolean resolveInDoubt() {
+        Set<Integer> undelivered = tm.getUndelivered();
+        boolean reachedAll = resolveOnePhase();
+        for (Map.Entry<String, RMConnectionPool> rm : rmConnections.entrySet()) {
+            String resp = rm.getValue().send("InDoubt", 0);
+            if (resp == null || !resp.startsWith("OK")) {
+                System.err.println("[TM] Can't resolve in-doubt transactions at " + rm.getKey() + ": " + resp);
+                reachedAll = false;
+                continue;
+            }
+            String[] tids = resp.split(",");
+            for (int i = 1; i < tids.length; i++) {
+                int tid = Integer.parseInt(tids[i].trim());
+                TCPTransactionManager.TransactionStatus status = tm.getStatus(tid);
+                if (status == TCPTransactionManager.TransactionStatus.ACTIVE
+                        || status == TCPTransactionManager.TransactionStatus.PREPARED) {
+                    continue;
+                }
+                boolean commit = status == TCPTransactionManager.TransactionStatus.COMMITTED;
+                String told = rm.getValue().send(commit ? "Commit" : "Abort", tid);
+                if (told == null || !told.startsWith("OK")) {
+                    reachedAll = false;
+                    continue;
+                }
+                System.out.println("[TM] Resolved in-doubt T" + tid + " at " + rm.getKey() + ": "
+                        + (commit ? "COMMITTED" : "ABORTED"));
+            }
+        }
+        if (reachedAll) {
+            // whatever was committed before this sweep has now reached every RM
+            tm.delivered(undelivered);
+        }
+        return reachedAll;
+    }
+
+    // the writer of each one-phase commit in doubt decides it, as it would have the first time
+    private boolean resolveOnePhase() {
+        boolean reachedAll = true;
+        for (Map.Entry<Integer, String> doubt : tm.getHandedOff().entrySet()) {
+            int tid = doubt.getKey();
+            RMConnectionPool rm = rmConnections.get(doubt.getValue());
+            String resp = rm.send("CommitOnePhase", tid);
+            if (resp == null || !(resp.startsWith("OK") || resp.equals("FAIL,COMMIT_FAILED"))) {
+                System.err.println("[TM] Can't resolve one-phase T" + tid + " at " + doubt.getValue() + ": " + resp);
+                reachedAll = false;
+                continue;
+            }
+            boolean committed = resp.startsWith("OK");
+            tm.onePhaseOutcome(tid, committed);
+            if (!committed) {
+                rm.send("Abort", tid);
+            }
+            System.out.println("[TM] Resolved one-phase T" + tid + " at " + doubt.getValue() + ": "
+                    + (committed ? "COMMITTED" : "ABORTED"));
+        }
+        return reachedAll;
+    }
+
+    // to the MQ for the workers, or straight onto a virtual thread of its own
+    private void dispatch(Request tx) throws InterruptedException {
+        if (Threads.VIRTUAL) {
+            workerPool.execute(() -> worker.handle(tx));
+        } else {
+            txQueue.put(tx);
+        }
+    }
+
+    /** @return the stats of every RM connection pool, separated by "; " (see RMConnectionPool.getStats) */
+    public String getPoolStats() {
+        StringJoiner stats = new StringJoiner("; ");
+        for (RMConnectionPool pool : rmConnections.values()) {
+            stats.add(pool.getStats());
+        }
+        return stats.toString();
+    }
+
     public class ClientHandler implements Runnable {
         private final Socket socket;
 
@@ -94,14 +215,14 @@ public class TCPMiddleware {
         public void run() {
             PrintWriter out;
             BufferedReader in;
+            boolean inTxn = false;
+            int clientTid = -1;
             try {
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 out = new PrintWriter(socket.getOutputStream(), true);
 
                 String line;
                 List<String> batchLines = new ArrayList<>();
-                boolean inTxn = false;
-                int clientTid = -1;
 
                 while (true) {
                     line = in.readLine();
@@ -121,6 +242,10 @@ public class TCPMiddleware {
                         System.out.println("[TM] START T" + clientTid);
                     }
 
+                    else if (line.equalsIgnoreCase("PoolStats")) {
+                        out.println("POOLS," + getPoolStats());
+                    }
+
                     else if (line.equalsIgnoreCase("Quit")) {
                         System.out.println("[ClientHandler] Client requested quit: " + socket.getRemoteSocketAddress());
                         break;
@@ -140,7 +265,7 @@ public class TCPMiddleware {
                                 socket,
                                 abortFlag
                         );
-                        txQueue.put(tx); //worker will get immediately
+                        dispatch(tx); //worker will get immediately
 
                         inTxn = false;
                         batchLines.clear();
@@ -153,6 +278,7 @@ public class TCPMiddleware {
                             out.println("ERROR,NO_ACTIVE_TRANSACTION");
                             continue;
                         }
+                        tm.touch(clientTid);
                         batchLines.add(line);
                     }
                 }
@@ -161,6 +287,11 @@ public class TCPMiddleware {
                 System.err.println("[ClientHandler] Exception: " + e.getMessage());
                 e.printStackTrace();
             } finally {
+                if (inTxn) {
+                    // the client left mid-transaction; nothing of it reached the RMs, so just forget it
+                    tm.abort(clientTid);
+                    tm.end(clientTid);
+                }
                 try {
                     if (!socket.isClosed()) socket.close();
                 } catch (IOException ignored) {}
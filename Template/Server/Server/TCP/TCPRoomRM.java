@@ -1,24 +1,21 @@
 package Server.TCP;
 
 import Server.Common.RoomResourceManager;
+import Server.TCPHelper.RMRequest;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.rmi.RemoteException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Arrays;
+import java.util.stream.Collectors;
 
 /**
  * TCPRoomRM
  *
  * In-memory Room Resource Manager with transaction staging and 2PC protocol.
  * Supported messages:
- *   PREPARE,tid
+ *   PREPARE,tid          (OK,READ_ONLY when tid changed nothing here)
  *   COMMIT,tid
+ *   COMMITONEPHASE,tid   (validate and commit, for the only participant with changes)
  *   ABORT,tid
  *   <tid>,AddRoom,<location>,<numRooms>,<price>
  *   <tid>,DeleteRoom,<location>
@@ -26,74 +23,42 @@ import java.util.concurrent.Executors;
  *   <tid>,QueryRoomPrice,<location>
  *   <tid>,ReserveRoom,<customerID>,<location>
  *   <tid>,RoomExists,<location>
+ *   <tid>,LockStats
+ *   <tid>,Ping           (liveness check from the middleware)
+ *   <tid>,InDoubt
+ *   <tid>,Batch,<msg>␞<msg>... (several of the above in one frame, see MiddlewareConnection)
  */
 public class TCPRoomRM extends RoomResourceManager {
     private final int port;
-    private final ServerSocket serverSocket;
+    private final RMServer server;
     private final String name;
 
     public TCPRoomRM(String name, int port) throws IOException {
         super(name);
         this.port = port;
         this.name = name;
-        this.serverSocket = new ServerSocket(port);
+        this.server = new RMServer(name, port, this::handle);
         System.out.println(name + " listening on port " + port);
     }
 
     public void start() {
-        ExecutorService pool = Executors.newCachedThreadPool();
-        while (true) {
-            try {
-                Socket s = serverSocket.accept();
-                pool.submit(new Handler(s));
-            } catch (IOException e) {
-                e.printStackTrace();
-                break;
-            }
-        }
-        pool.shutdown();
-    }
-
-    private class Handler implements Runnable {
-        private final Socket socket;
-        Handler(Socket socket) { this.socket = socket; }
-
-        @Override
-        public void run() {
-            String client = socket.getRemoteSocketAddress().toString();
-            System.out.println(name + " connected: " + client);
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    line = line.trim();
-                    if (line.isEmpty()) continue;
-                    String resp = handleLine(line);
-                    out.println(resp);
-                }
-            } catch (IOException e) {
-                System.err.println(name + " connection error: " + e.getMessage());
-            }
-        }
+        server.start();
     }
 
-    private String handleLine(String line) {
-        System.out.println("RoomRM is handling: " + line);
-        String[] parts = line.split(",", -1);
-        if (parts.length < 2) return "FAIL,EMPTY";
-
-        int tid;
-        try { tid = Integer.parseInt(parts[0].trim()); }
-        catch (NumberFormatException e) { return "FAIL,BAD_TID"; }
+    private String handle(RMRequest request) {
+        System.out.println("RoomRM is handling: " + request);
+        int tid = request.getTid();
 
         // --- PREPARE/COMMIT/ABORT ---
-        String first = parts[1].trim().toUpperCase();
-        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "ABORT".equals(first)) {
+        String first = request.getCommand().toUpperCase();
+        if ("PREPARE".equals(first) || "COMMIT".equals(first) || "COMMITONEPHASE".equals(first)
+                || "ABORT".equals(first)) {
 
             switch (first) {
                 case "PREPARE":
                     try {
-                        return prepare(tid) ? "OK" : "FAIL,PREPARE_FAILED";
+                        Vote vote = prepare(tid);
+                        return (vote == Vote.NO) ? "FAIL,PREPARE_FAILED" : (vote == Vote.READ_ONLY) ? "OK,READ_ONLY" : "OK";
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
@@ -103,6 +68,12 @@ public class TCPRoomRM extends RoomResourceManager {
                     } catch (RemoteException e) {
                         throw new RuntimeException(e);
                     }
+                case "COMMITONEPHASE":
+                    try {
+                        return commitOnePhase(tid) ? "OK" : "FAIL,COMMIT_FAILED";
+                    } catch (RemoteException e) {
+                        throw new RuntimeException(e);
+                    }
                 case "ABORT":
                     try {
                         return abort(tid) ? "OK" : "FAIL,ABORT_FAILED";
@@ -113,33 +84,39 @@ public class TCPRoomRM extends RoomResourceManager {
         }
 
         // --- Normal ops ---
-        String cmd = parts[1].trim();
+        String cmd = request.getCommand();
 
         try {
             switch (cmd) {
                 case "AddRooms":
-                    if (parts.length < 5) return "FAIL,BAD_ARGS";
-                    return addRooms(tid, parts[2].trim(), Integer.parseInt(parts[3].trim()), Integer.parseInt(parts[4].trim())) ? "OK" : "FAIL,ADD_FAILED";
+                    if (request.size() < 3) return "FAIL,BAD_ARGS";
+                    return addRooms(tid, request.getString(0), request.getInt(1), request.getInt(2)) ? "OK" : "FAIL,ADD_FAILED";
                 case "DeleteRooms":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return deleteRooms(tid, parts[2].trim()) ? "OK" : "FAIL,DELETE_FAILED";
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return deleteRooms(tid, request.getString(0)) ? "OK" : "FAIL,DELETE_FAILED";
                 case "QueryRooms":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return "OK," + queryRooms(tid, parts[2].trim());
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return "OK," + queryRooms(tid, request.getString(0));
                 case "QueryRoomsPrice":
-                    if (parts.length < 3) return "FAIL,BAD_ARGS";
-                    return "OK," + queryRoomsPrice(tid, parts[2].trim());
+                    if (request.size() < 1) return "FAIL,BAD_ARGS";
+                    return "OK," + queryRoomsPrice(tid, request.getString(0));
                 case "ReserveRoom":
-                    if (parts.length < 4) return "FAIL,BAD_ARGS";
-                    int cust = Integer.parseInt(parts[2].trim());
-                    String loc = parts[3].trim();
+                    if (request.size() < 2) return "FAIL,BAD_ARGS";
+                    int cust = request.getInt(0);
+                    String loc = request.getString(1);
                     return reserveRoom(tid, cust, loc) ? "OK" : "FAIL,NO_ROOM";
+                case "Ping":
+                    return "OK";
+                case "LockStats":
+                    return "OK," + getLockStats();
+                case "InDoubt":
+                    return "OK" + Arrays.stream(getInDoubt()).mapToObj(t -> "," + t).collect(Collectors.joining());
                 case "QueryReserved":
-                    if(parts.length < 3) return "FAIL, BAD_ARGS";
-                    return String.valueOf(queryReserved(tid, parts[2].trim()));
+                    if(request.size() < 1) return "FAIL, BAD_ARGS";
+                    return String.valueOf(queryReserved(tid, request.getString(0)));
                 case "rollbackReserve":
-                    if(parts.length < 5) return "FAIL,BAD_ARGS";
-                    return rollbackReserve(tid, Integer.parseInt(parts[2].trim()), parts[3].trim().toLowerCase(), Integer.parseInt(parts[4].trim())) ? "OK" : "FAIL IN ROLLINGBACK";
+                    if(request.size() < 3) return "FAIL,BAD_ARGS";
+                    return rollbackReserve(tid, request.getInt(0), request.getString(1).toLowerCase(), request.getInt(2)) ? "OK" : "FAIL IN ROLLINGBACK";
                 default:
                     return "FAIL,UNKNOWN_CMD";
             }
@@ -1,67 +1,184 @@
 package Server.TCPHelper;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
  /**
- * RMConnection: manages a long-lived socket to each RM
+ * RMConnection: one long-lived socket to an RM, shared by all workers (see RMConnectionPool)
+ *
+ * A request goes out as "#<id>,<tid>,<msg>" and the RM answers "#<id>,<reply>" whenever it is
+ * done (see MiddlewareConnection), so any number of workers can have requests in flight on the
+ * same socket. A reader thread hands every reply to the request waiting on its id. Once the
+ * socket fails the connection is closed for good, and the requests waiting on it fail.
+ *
+ * On connecting it asks the RM for binary frames (see WireFormat): the same requests and
+ * replies, with typed fields instead of comma-separated text. An RM that doesn't know them
+ * keeps the connection in text.
  */
 public class RMConnection {
+    // -Dtm.rmProtocol=text keeps to text lines even with RMs that speak binary
+    private static final boolean BINARY = !"text".equals(System.getProperty("tm.rmProtocol", "binary"));
+
     private final String rmName; //TCPFlightServer
-    private final String host; //"tr-open-01.cs.mcgill.ca"
-    private final int port; //5001
+    private final Socket socket;
+    private final OutputStream out;
+    private final PrintWriter textOut; // null once the RM speaks binary
+    private ByteBuffer sendBuffer = ByteBuffer.allocate(WireFormat.BUFFER_SIZE); // guarded by out
+    private final Map<Long, CompletableFuture<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private volatile boolean open = true;
+    private volatile long lastReply = System.nanoTime();
 
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    public RMConnection(String rmName, String host, int port, int connectTimeout) throws IOException {
+        this.rmName = rmName;
+        socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        boolean binary;
+        try {
+            binary = BINARY && negotiate(in, connectTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        textOut = binary ? null : new PrintWriter(out, false);
+        Thread reader = new Thread(binary ? () -> readBinary(in) : () -> readText(in), "RMConn-" + rmName + "-reader");
+        reader.setDaemon(true);
+        reader.start();
+        System.out.println("Connected RM " + rmName + "@" + host + ":" + port + (binary ? " (binary)" : " (text)"));
+    }
 
-    // timeouts in ms
-    private static final int CONNECT_TIMEOUT = 2000;
-    private static final int SO_TIMEOUT = 3000;
+    // ask for binary frames; an RM that only knows text answers the hello with a FAIL line
+    private boolean negotiate(InputStream in, int timeout) throws IOException {
+        socket.setSoTimeout(timeout);
+        out.write((WireFormat.HELLO + "\n").getBytes(StandardCharsets.UTF_8));
+        String answer = WireFormat.readLine(in);
+        if (answer == null) {
+            throw new EOFException("closed by " + rmName);
+        }
+        socket.setSoTimeout(0);
+        return answer.equals(WireFormat.HELLO_OK);
+    }
 
-    public RMConnection(String rmName, String host, int port) {
-        this.rmName = rmName;
-        this.host = host;
-        this.port = port;
+    /**
+     * Write line ("<tid>,<msg>") to the RM.
+     * @return its reply, completed exceptionally if the connection fails first; cancel it to stop waiting
+     */
+    public CompletableFuture<String> send(String line) throws IOException {
+        long id = requestIds.incrementAndGet();
+        CompletableFuture<String> reply = new CompletableFuture<>();
+        pending.put(id, reply);
+        reply.whenComplete((r, e) -> pending.remove(id));
+        if (!open) {
+            // closed after the caller picked it, maybe before close() looked at pending
+            reply.cancel(false);
+            throw new IOException("connection to " + rmName + " closed");
+        }
+        synchronized (out) {
+            boolean failed;
+            if (textOut != null) {
+                textOut.print("#" + id + "," + line + "\n");
+                textOut.flush();
+                failed = textOut.checkError();
+            } else {
+                sendBuffer = WireFormat.writeRequest(sendBuffer, id, line);
+                try {
+                    out.write(sendBuffer.array(), sendBuffer.arrayOffset(), sendBuffer.limit());
+                    failed = false;
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+            if (failed) {
+                close(new IOException("write to " + rmName + " failed"));
+            }
+        }
+        return reply;
     }
 
-    synchronized void ensureConnected() throws IOException {
-        if (socket != null && socket.isConnected() && !socket.isClosed()) return;
-        reconnect();
+    public boolean isOpen() {
+        return open;
     }
 
-    synchronized void reconnect() throws IOException {
-        closeQuiet();
-        socket = new Socket();
-        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
-        socket.setSoTimeout(SO_TIMEOUT);
-        out = new PrintWriter(socket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        System.out.println("Connected RM " + rmName + "@" + host + ":" + port);
+    /** @return requests waiting for their reply */
+    public int getInFlight() {
+        return pending.size();
     }
 
-    public synchronized String send(String msg, int tid) {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+    /** @return System.nanoTime() of the last reply, or of connecting */
+    public long getLastReply() {
+        return lastReply;
+    }
 
-            out.println(tid + "," + msg);
-            return in.readLine();
+    public void close(IOException cause) {
+        open = false;
+        try { socket.close(); } catch (IOException ignored) {}
+        for (CompletableFuture<String> reply : pending.values()) {
+            reply.completeExceptionally(cause);
+        }
+    }
 
+    private void readText(InputStream input) {
+        BufferedReader in = new BufferedReader(new InputStreamReader(input));
+        IOException cause = new EOFException("closed by " + rmName);
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (!line.startsWith("#") || comma < 0) {
+                    System.err.println("[RMConn] Untagged reply from " + rmName + ": " + line);
+                    continue;
+                }
+                lastReply = System.nanoTime();
+                CompletableFuture<String> reply = pending.get(Long.parseLong(line.substring(1, comma)));
+                if (reply != null) {
+                    reply.complete(line.substring(comma + 1));
+                }
+            }
         } catch (IOException e) {
-            System.err.println("[RMConn] Error sending to " + rmName + ": " + e.getMessage());
-            return "ERROR";
+            cause = e;
+        } catch (NumberFormatException e) {
+            cause = new IOException("bad reply from " + rmName + ": " + e.getMessage());
         }
+        close(cause);
     }
 
-    synchronized void closeQuiet() {
-        try { if (in != null) in.close(); } catch (IOException ignored) {}
-        try { if (out != null) out.close(); } catch (Exception ignored) {}
-        try { if (socket != null) socket.close(); } catch (IOException ignored) {}
-        socket = null; in = null; out = null;
+    private void readBinary(InputStream input) {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        ByteBuffer buf = ByteBuffer.allocate(WireFormat.BUFFER_SIZE);
+        IOException cause = new EOFException("closed by " + rmName);
+        try {
+            while ((buf = WireFormat.readFrame(in, buf)) != null) {
+                long id = WireFormat.getVarlong(buf);
+                String resp = WireFormat.readReply(buf);
+                lastReply = System.nanoTime();
+                CompletableFuture<String> reply = pending.get(id);
+                if (reply != null) {
+                    reply.complete(resp);
+                }
+            }
+        } catch (IOException e) {
+            cause = (e instanceof ProtocolException)
+                    ? new IOException("bad reply from " + rmName + ": " + e.getMessage()) : e;
+        }
+        close(cause);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,232 @@
+package Server.TCPHelper;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RMConnectionPool: a fixed number of RMConnections to one RM, shared by all workers
+ *
+ * A send borrows the open connection with the fewest requests in flight, without locking: the
+ * connections are multiplexed, so borrowing one doesn't take it from anybody, and the request
+ * gives it back when its reply comes. A health thread pings connections that have gone quiet and
+ * opens the ones missing.
+ *
+ * When the RM can't be reached, the pool is marked down and retries with jittered exponential
+ * backoff; until then sends fail at once with "ERROR", instead of each waiting out the connect
+ * timeout.
+ *
+ * Occupancy (requests in flight, now and at peak) and the wait for a connection (picking or
+ * opening one, and getting the request onto its socket) are in getStats().
+ */
+public class RMConnectionPool {
+
+    // timeouts in ms; a reply can wait on RM locks (-Dlock.timeout), -Dtm.rmReplyTimeoutMs=<ms>
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final long REPLY_TIMEOUT = Long.getLong("tm.rmReplyTimeoutMs", 10000L);
+    // a connection quiet for this long gets pinged (ms), -Dtm.rmPingMs=<ms>, 0 turns pings off
+    private static final long PING_INTERVAL = Long.getLong("tm.rmPingMs", 1000L);
+    // first and longest wait before reconnecting to an RM that is down (ms)
+    private static final long BACKOFF_MIN = 100;
+    private static final long BACKOFF_MAX = 5000;
+
+    private final String rmName;
+    private final String host;
+    private final int port;
+    private final AtomicReferenceArray<RMConnection> connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();
+
+    // guarded by this, read without it to fail fast
+    private volatile boolean down;
+    private volatile long retryAt; // System.nanoTime() of the next connect attempt, while down
+    private int failures;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAccumulator peakInFlight = new LongAccumulator(Math::max, 0);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder fastFails = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+
+    public RMConnectionPool(String rmName, String host, int port, int size) {
+        this.rmName = rmName;
+        this.host = host;
+        this.port = port;
+        this.connections = new AtomicReferenceArray<>(Math.max(1, size));
+        Thread health = new Thread(this::checkHealth, "RMConn-" + rmName + "-health");
+        health.setDaemon(true);
+        health.start();
+    }
+
+    public String send(String msg, int tid) {
+        return sendAsync(msg, tid).join();
+    }
+
+    /**
+     * Send msg without waiting for the reply.
+     * @return the reply; "ERROR" if it can't be sent, or doesn't come in REPLY_TIMEOUT. Never completes exceptionally.
+     */
+    public CompletableFuture<String> sendAsync(String msg, int tid) {
+        long start = System.nanoTime();
+        CompletableFuture<String> reply;
+        try {
+            reply = borrow().send(tid + "," + msg);
+        } catch (IOException e) {
+            if (!down) { // going down was logged, and each send failing fast would flood the log
+                System.err.println("[RMConn] Error sending to " + rmName + ": " + e.getMessage());
+            }
+            return CompletableFuture.completedFuture("ERROR");
+        }
+        long waited = System.nanoTime() - start;
+        requests.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+        peakInFlight.accumulate(inFlight.incrementAndGet());
+        return reply.orTimeout(REPLY_TIMEOUT, TimeUnit.MILLISECONDS).handle((resp, e) -> {
+            inFlight.decrementAndGet();
+            if (e == null) {
+                return resp;
+            }
+            Throwable cause = (e instanceof CompletionException) ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                System.err.println("[RMConn] No reply from " + rmName + " in " + REPLY_TIMEOUT + " ms to: " + msg);
+            } else {
+                System.err.println("[RMConn] Error sending to " + rmName + ": " + cause.getMessage());
+            }
+            return "ERROR";
+        });
+    }
+
+    /**
+     * @return one line: size, open connections, requests in flight now and at peak, requests sent,
+     *         mean and longest wait for a connection, sends failed fast, connections opened, down or up
+     */
+    public String getStats() {
+        int open = 0;
+        for (int i = 0; i < connections.length(); i++) {
+            RMConnection connection = connections.get(i);
+            if (connection != null && connection.isOpen()) {
+                open++;
+            }
+        }
+        long n = requests.sum();
+        return String.format("%s size=%d open=%d inFlight=%d peakInFlight=%d requests=%d avgWaitUs=%.1f maxWaitUs=%d fastFails=%d connects=%d down=%b",
+                rmName, connections.length(), open, inFlight.get(), peakInFlight.get(), n,
+                (n == 0) ? 0.0 : waitNanos.sum() / 1e3 / n, maxWaitNanos.get() / 1000,
+                fastFails.sum(), connects.sum(), down);
+    }
+
+    // the open connection with the fewest requests in flight, opening one if there is none
+    private RMConnection borrow() throws IOException {
+        int size = connections.length();
+        int first = Math.floorMod(nextConnection.getAndIncrement(), size);
+        RMConnection best = null;
+        for (int i = 0; i < size; i++) {
+            RMConnection connection = connections.get((first + i) % size);
+            if (connection != null && connection.isOpen()
+                    && (best == null || connection.getInFlight() < best.getInFlight())) {
+                best = connection;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        if (isBackingOff()) {
+            fastFails.increment();
+            throw new IOException(rmName + " is down, next try in "
+                    + TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()) + " ms");
+        }
+        return connect(first);
+    }
+
+    // the connection in slot, opening it unless it is open already or the RM is down
+    private synchronized RMConnection connect(int slot) throws IOException {
+        RMConnection connection = connections.get(slot);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+        if (isBackingOff()) {
+            throw new IOException(rmName + " is down");
+        }
+        try {
+            connection = new RMConnection(rmName, host, port, CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            markDown(e);
+            throw e;
+        }
+        connections.set(slot, connection);
+        connects.increment();
+        if (down) {
+            System.out.println("[RMConn] " + rmName + " is back after " + failures + " failed tries");
+        }
+        down = false;
+        failures = 0;
+        return connection;
+    }
+
+    private boolean isBackingOff() {
+        return down && System.nanoTime() - retryAt < 0;
+    }
+
+    // wait before the next try: doubling with each failure, half of it random so pools don't retry in step
+    private synchronized void markDown(IOException cause) {
+        failures++;
+        long backoff = Math.min(BACKOFF_MAX, BACKOFF_MIN << Math.min(failures - 1, 20));
+        long wait = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+        down = true;
+        System.err.println("[RMConn] " + rmName + " unreachable (" + cause.getMessage() + "), retrying in " + wait + " ms");
+    }
+
+    // open the connections missing, and ping the ones quiet for PING_INTERVAL
+    private void checkHealth() {
+        long interval = (PING_INTERVAL > 0) ? PING_INTERVAL : BACKOFF_MIN;
+        while (true) {
+            for (int i = 0; i < connections.length(); i++) {
+                RMConnection connection = connections.get(i);
+                if (connection == null || !connection.isOpen()) {
+                    try {
+                        connect(i);
+                    } catch (IOException ignored) {
+                        // down; connect() logged it and set when to try again
+                    }
+                } else if (PING_INTERVAL > 0
+                        && System.nanoTime() - connection.getLastReply() >= TimeUnit.MILLISECONDS.toNanos(PING_INTERVAL)) {
+                    ping(connection);
+                }
+            }
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // an RM that doesn't answer a ping in CONNECT_TIMEOUT is taken as down
+    private void ping(RMConnection connection) {
+        CompletableFuture<String> reply = null;
+        try {
+            reply = connection.send("0,Ping");
+            reply.get(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            if (reply != null) {
+                reply.cancel(false);
+            }
+            IOException cause = new IOException("no answer to ping from " + rmName);
+            connection.close(cause);
+            markDown(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
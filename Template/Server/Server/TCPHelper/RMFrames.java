@@ -0,0 +1,113 @@
+package Server.TCPHelper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * RMFrames: the messages of one transaction, queued per RM and sent as one frame per RM
+ *
+ * A frame is a single request "Batch,<msg>␞<msg>..." (the messages joined by SEPARATOR, see
+ * MiddlewareConnection). The RM runs the messages in order and answers with their replies,
+ * joined the same way. Once one fails, the rest are not run and answer "FAIL,SKIPPED": any
+ * failure aborts the transaction anyway.
+ *
+ * A flush costs one round trip per RM with messages queued, however many there are, and the RMs
+ * work on theirs at the same time; unframed, a round trip per message, one after the other.
+ */
+public class RMFrames {
+
+    /** Between the messages of a frame, and between their replies; never part of either */
+    public static final String SEPARATOR = "\u001e";
+
+    /** The reply to a queued message, known once the flush that sends it returns */
+    static final class Reply implements Supplier<String> {
+        private final String msg;
+        private String value;
+
+        private Reply(String msg) {
+            this.msg = msg;
+        }
+
+        @Override
+        public String get() {
+            if (value == null) {
+                throw new IllegalStateException("not sent yet: " + msg);
+            }
+            return value;
+        }
+    }
+
+    private final int tid;
+    private final Map<String, RMConnectionPool> rmConnections;
+    private final boolean framed;
+    private final Map<String, List<Reply>> queued = new LinkedHashMap<>();
+
+    /** @param framed false sends every message on its own */
+    RMFrames(int tid, Map<String, RMConnectionPool> rmConnections, boolean framed) {
+        this.tid = tid;
+        this.rmConnections = rmConnections;
+        this.framed = framed;
+    }
+
+    /** Queue msg for rmName, behind the messages queued for it before */
+    Reply queue(String rmName, String msg) {
+        Reply reply = new Reply(msg);
+        queued.computeIfAbsent(rmName, k -> new ArrayList<>()).add(reply);
+        return reply;
+    }
+
+    /**
+     * Send what is queued and fill in the replies. The frames go out together, so a flush takes as
+     * long as the slowest RM; unframed, the messages go one at a time.
+     */
+    void flush() {
+        Map<List<Reply>, CompletableFuture<String[]>> sent = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Reply>> frame : queued.entrySet()) {
+            sent.put(frame.getValue(), send(frame.getKey(), frame.getValue()));
+        }
+        for (Map.Entry<List<Reply>, CompletableFuture<String[]>> frame : sent.entrySet()) {
+            List<Reply> replies = frame.getKey();
+            String[] values = frame.getValue().join(); // never fails: RMConnectionPool answers "ERROR" instead
+            for (int i = 0; i < replies.size(); i++) {
+                replies.get(i).value = values[i];
+            }
+        }
+        queued.clear();
+    }
+
+    private CompletableFuture<String[]> send(String rmName, List<Reply> replies) {
+        String[] values = new String[replies.size()];
+        RMConnectionPool conn = rmConnections.get(rmName);
+        if (conn == null) {
+            Arrays.fill(values, "ERROR,RMNotFound," + rmName);
+            return CompletableFuture.completedFuture(values);
+        }
+        if (!framed) {
+            for (int i = 0; i < replies.size(); i++) {
+                values[i] = conn.send(replies.get(i).msg, tid);
+            }
+            return CompletableFuture.completedFuture(values);
+        }
+        if (replies.size() == 1) {
+            return conn.sendAsync(replies.get(0).msg, tid).thenApply(resp -> new String[]{resp});
+        }
+        StringBuilder frame = new StringBuilder("Batch,");
+        for (int i = 0; i < replies.size(); i++) {
+            frame.append((i == 0) ? "" : SEPARATOR).append(replies.get(i).msg);
+        }
+        return conn.sendAsync(frame.toString(), tid).thenApply(resp -> {
+            String[] split = resp.split(SEPARATOR, -1);
+            if (split.length == values.length) {
+                return split;
+            }
+            // the frame as a whole failed ("ERROR", a lost connection...): so did every message in it
+            Arrays.fill(values, resp);
+            return values;
+        });
+    }
+}
@@ -0,0 +1,115 @@
+package Server.TCPHelper;
+
+/**
+ * RMRequest: one request to an RM, whichever protocol it came in
+ *
+ * A text line "<tid>,<command>,<arg>,..." is split once; its arguments are the fields after the
+ * command, trimmed, and getInt() parses them. A binary request (see WireFormat) comes with its
+ * arguments typed, so numbers are never printed and parsed again and strings may hold commas.
+ * A frame "<tid>,Batch,<msg>␞<msg>..." (see RMFrames) is a request whose messages are in getBatch().
+ */
+public final class RMRequest {
+    private final int tid;
+    private final String command;
+    private final String[] strings; // null where the argument came as a number
+    private final int[] numbers;
+    private final RMRequest[] batch;
+
+    RMRequest(int tid, String command, String[] strings, int[] numbers) {
+        this(tid, command, strings, numbers, null);
+    }
+
+    private RMRequest(int tid, String command, String[] strings, int[] numbers, RMRequest[] batch) {
+        this.tid = tid;
+        this.command = command;
+        this.strings = strings;
+        this.numbers = numbers;
+        this.batch = batch;
+    }
+
+    static RMRequest batch(int tid, RMRequest[] messages) {
+        return new RMRequest(tid, "Batch", new String[0], null, messages);
+    }
+
+    /**
+     * Parse a text request line.
+     * @throws IllegalArgumentException "EMPTY" without a command, "BAD_TID" if the tid isn't a number
+     */
+    public static RMRequest parse(String line) {
+        int comma = line.indexOf(',');
+        if (comma < 0) throw new IllegalArgumentException("EMPTY");
+        int tid;
+        try { tid = Integer.parseInt(line.substring(0, comma).trim()); }
+        catch (NumberFormatException e) { throw new IllegalArgumentException("BAD_TID"); }
+
+        String msg = line.substring(comma + 1);
+        int end = msg.indexOf(',');
+        if (end >= 0 && msg.substring(0, end).trim().equals("Batch")) {
+            String[] msgs = msg.substring(end + 1).split(RMFrames.SEPARATOR, -1);
+            RMRequest[] messages = new RMRequest[msgs.length];
+            for (int i = 0; i < msgs.length; i++) {
+                messages[i] = parse(tid, msgs[i]);
+            }
+            return batch(tid, messages);
+        }
+        return parse(tid, msg);
+    }
+
+    // msg is "<command>,<arg>,..."
+    private static RMRequest parse(int tid, String msg) {
+        String[] fields = msg.split(",", -1);
+        String[] args = new String[fields.length - 1];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = fields[i + 1].trim();
+        }
+        return new RMRequest(tid, fields[0].trim(), args, null);
+    }
+
+    public int getTid() {
+        return tid;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /** @return the number of arguments */
+    public int size() {
+        return strings.length;
+    }
+
+    public String getString(int i) {
+        return (strings[i] != null) ? strings[i] : String.valueOf(numbers[i]);
+    }
+
+    /** @throws NumberFormatException if argument i is text that isn't a number */
+    public int getInt(int i) {
+        return (strings[i] != null) ? Integer.parseInt(strings[i]) : numbers[i];
+    }
+
+    /** @return the messages of a frame, in order; null if this is a single message */
+    public RMRequest[] getBatch() {
+        return batch;
+    }
+
+    /** @return the request as a text line */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(tid).append(',').append(command);
+        if (batch != null) {
+            for (int i = 0; i < batch.length; i++) {
+                sb.append((i == 0) ? "," : RMFrames.SEPARATOR).append(batch[i].message());
+            }
+            return sb.toString();
+        }
+        for (int i = 0; i < strings.length; i++) {
+            sb.append(',').append(getString(i));
+        }
+        return sb.toString();
+    }
+
+    private String message() {
+        String line = toString();
+        return line.substring(line.indexOf(',') + 1);
+    }
+}
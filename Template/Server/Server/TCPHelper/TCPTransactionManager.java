@@ -1,6 +1,14 @@
 package Server.TCPHelper;
 
+import Server.Common.DecisionLog;
+import Server.Common.TimeWheel;
+import Server.Common.TransactionTable;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -9,9 +17,21 @@ import java.util.concurrent.atomic.AtomicInteger;
  * TCPTransactionManager:
  * 1. Allocating tid, maintaining transaction status (commit, abort...)
  * 2. Not participating in commit/abort of RMs
+ * 3. Logging commit decisions and the tid high-water mark (see DecisionLog), so a restarted
+ *    middleware neither reuses tids nor forgets what it committed
  */
 public class TCPTransactionManager {
 
+    // where the decision log goes, -Dtm.logdir=<dir>; -Dtm.log=false keeps decisions in memory only
+    private static final String LOG_DIR = System.getProperty("tm.logdir", "logs");
+    private static final boolean LOGGING = Boolean.parseBoolean(System.getProperty("tm.log", "true"));
+    // tids reserved by each forced write of the high-water mark, -Dtm.tidBlock=<n>
+    private static final int TID_BLOCK = Integer.getInteger("tm.tidBlock", 1000);
+    // seconds a transaction may go without a client request before it is aborted, -Dtm.idleTimeoutSeconds=<s>, 0 turns it off
+    private static final int IDLE_TIMEOUT_SECONDS = Integer.getInteger("tm.idleTimeoutSeconds", 60);
+    // recent tids whose status is kept exactly, -Dtm.statusSlots=<n>; older ones read as aborted unless still running or undelivered
+    private static final int STATUS_SLOTS = Integer.getInteger("tm.statusSlots", 1 << 16);
+
     public enum TransactionStatus {
         ACTIVE,
         PREPARED,
@@ -22,23 +42,93 @@ public class TCPTransactionManager {
 
     private final AtomicInteger tidGen = new AtomicInteger(1000);
     private final ConcurrentHashMap<Integer, Set<String>> participants = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<Integer, TransactionStatus> states = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<String>> writers = new ConcurrentHashMap<>(); // participants tid changed something at
+    private final ConcurrentHashMap<Integer, String> handedOff = new ConcurrentHashMap<>(); // tid -> RM committing it in one phase, until its answer is in
+    private final TransactionTable<TransactionStatus> states = new TransactionTable<>(STATUS_SLOTS,
+            TransactionStatus.values(), TransactionStatus.UNKNOWN, TransactionStatus.COMMITTED, TransactionStatus.ABORTED);
+    private DecisionLog log; // null when logging is off
+    private volatile int reservedTid = Integer.MAX_VALUE; // tids up to here are covered by the log
+    private final TimeWheel idle = (IDLE_TIMEOUT_SECONDS > 0)
+            ? new TimeWheel("TCPMiddleware-idle", IDLE_TIMEOUT_SECONDS * 1000L, this::expire) : null; // null when off
 
+    public TCPTransactionManager() {
+        if (!LOGGING) {
+            return;
+        }
+        try {
+            log = new DecisionLog(Paths.get(LOG_DIR, "TCPMiddleware.decisions"));
+        } catch (IOException e) {
+            System.err.println("[TM] Can't open the decision log, running without one: " + e.getMessage());
+            return;
+        }
+        reservedTid = Math.max(log.getHighWater(), tidGen.get() - 1);
+        tidGen.set(reservedTid + 1);
+        for (int tid : log.getCommitted()) {
+            states.pin(tid);
+        }
+        System.out.println("[TM] Recovered " + log.getCommitted().size() + " commit decisions, next tid " + tidGen.get());
+    }
 
-    public int start() {
+    public int start() throws IOException {
         int tid = tidGen.getAndIncrement();
+        if (tid > reservedTid) {
+            reserveThrough(tid);
+        }
         participants.put(tid, ConcurrentHashMap.newKeySet());
         states.put(tid, TransactionStatus.ACTIVE);
+        touch(tid);
         System.out.println("[TM] START T" + tid);
         return tid;
     }
 
+    /** The client sent a request for tid: restart its idle timeout */
+    public void touch(int tid) {
+        if (idle != null) {
+            idle.touch(tid);
+        }
+    }
+
+    /**
+     * Take tid out of the idle reaper's reach, before running it.
+     * @return false if the reaper took it first, or it is not active anymore
+     */
+    public boolean claim(int tid) {
+        return (idle == null || idle.cancel(tid)) && getStatus(tid) == TransactionStatus.ACTIVE;
+    }
+
+    /** @return number of transactions aborted for going idle */
+    public long getExpiredCount() {
+        return (idle == null) ? 0 : idle.getExpiredCount();
+    }
+
+    // the client sent nothing for tid in IDLE_TIMEOUT_SECONDS; nothing reached the RMs yet, so forgetting it is enough
+    private void expire(int tid) {
+        if (states.replace(tid, TransactionStatus.ACTIVE, TransactionStatus.ABORTED)) {
+            end(tid);
+            System.out.println("[TM] T" + tid + " idle for " + IDLE_TIMEOUT_SECONDS + " s, aborted ("
+                    + idle.getExpiredCount() + " expired so far)");
+        }
+    }
+
+    // make tid durable as handed out, with the rest of its block
+    private synchronized void reserveThrough(int tid) throws IOException {
+        if (tid > reservedTid) {
+            int upTo = Math.max(reservedTid, tid - 1) + TID_BLOCK;
+            log.reserveTids(upTo);
+            reservedTid = upTo;
+        }
+    }
+
     public TransactionStatus getStatus(int tid) {
-        return states.getOrDefault(tid, TransactionStatus.UNKNOWN);
+        return states.get(tid);
     }
 
-    public void addParticipant(int tid, String rmName) {
+    /** @param writes tid changes something at rmName, rather than only reading there */
+    public void addParticipant(int tid, String rmName, boolean writes) {
         participants.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(rmName);
+        if (writes) {
+            writers.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(rmName);
+        }
         System.out.println("[TM] T" + tid + " add participant " + rmName);
     }
 
@@ -46,32 +136,123 @@ public class TCPTransactionManager {
         return participants.getOrDefault(tid, Collections.emptySet());
     }
 
+    /** @return the participants tid changed something at */
+    public Set<String> getWriters(int tid) {
+        return writers.getOrDefault(tid, Collections.emptySet());
+    }
+
+    /**
+     * Decide to commit tid, once every participant voted yes. The decision is durable when this
+     * returns true; the participants stay known until end(tid).
+     */
     public boolean commit(int tid) {
+        return decideCommit(tid, true);
+    }
+
+    /**
+     * Decide to commit tid without logging it, when no participant holds tid prepared: they all
+     * voted read-only, or the only one with changes committed it in one phase.
+     */
+    public boolean commitUnlogged(int tid) {
+        return decideCommit(tid, false);
+    }
+
+    private boolean decideCommit(int tid, boolean logged) {
         TransactionStatus status = getStatus(tid);
         if (status != TransactionStatus.ACTIVE && status != TransactionStatus.PREPARED) {
             System.out.println("[TM] Commit ignored, T" + tid + " is already " + status);
             return false;
         }
+        if (logged && log != null) {
+            try {
+                log.commit(tid);
+            } catch (IOException e) {
+                System.err.println("[TM] Can't log the commit of T" + tid + ": " + e.getMessage());
+                return false;
+            }
+        }
 
+        if (logged) {
+            states.pin(tid); // until delivered(): the participants still have to hear of it
+        }
         states.put(tid, TransactionStatus.COMMITTED);
-        Set<String> rms = participants.remove(tid);
-        System.out.println("[TM] COMMIT T" + tid + " participants=" + rms);
+        System.out.println("[TM] COMMIT T" + tid + " participants=" + getParticipants(tid));
         return true;
     }
 
+    /**
+     * Leave the outcome of tid to rmName, its only participant with changes, which is about to
+     * commit it in one phase. Until onePhaseOutcome, tid is PREPARED and no abort takes it; if the
+     * answer is lost, the resolver asks rmName again.
+     */
+    public void handOff(int tid, String rmName) {
+        handedOff.put(tid, rmName);
+        states.put(tid, TransactionStatus.PREPARED);
+    }
+
+    /** The RM tid was handed off to answered: record its outcome */
+    public void onePhaseOutcome(int tid, boolean committed) {
+        handedOff.remove(tid);
+        if (committed) {
+            commitUnlogged(tid);
+        } else {
+            abort(tid);
+        }
+    }
+
+    /** @return tid -> RM, for the one-phase commits whose answer isn't in */
+    public Map<Integer, String> getHandedOff() {
+        return Collections.unmodifiableMap(handedOff);
+    }
+
+    /** Decide to abort tid. Nothing is logged: a tid without a commit decision counts as aborted. */
     public boolean abort(int tid) {
         TransactionStatus status = getStatus(tid);
         if (status == TransactionStatus.COMMITTED || status == TransactionStatus.ABORTED) {
             System.out.println("[TM] Abort ignored, T" + tid + " already " + status);
             return false;
         }
+        if (handedOff.containsKey(tid)) {
+            System.out.println("[TM] Abort ignored, T" + tid + " is committing in one phase at " + handedOff.get(tid));
+            return false;
+        }
 
         states.put(tid, TransactionStatus.ABORTED);
-        Set<String> rms = participants.remove(tid);
-        System.out.println("[TM] ABORT T" + tid + " participants=" + rms);
+        if (idle != null) {
+            idle.cancel(tid);
+        }
+        System.out.println("[TM] ABORT T" + tid + " participants=" + getParticipants(tid));
         return true;
     }
 
+    /** The participants of tid have been told the decision */
+    public void end(int tid) {
+        participants.remove(tid);
+        writers.remove(tid);
+    }
+
+    /** @return committed tids some participant may not have been told about yet */
+    public Set<Integer> getUndelivered() {
+        return states.getPinned();
+    }
+
+    /** Every participant of these committed tids has been told */
+    public void delivered(Collection<Integer> tids) {
+        states.unpin(tids);
+    }
+
+    /** Forget the commit decisions recovered from the log, once every RM has been told them */
+    public void compactLog() {
+        if (log == null || log.getCommitted().isEmpty()) {
+            return;
+        }
+        try {
+            log.compact();
+        } catch (IOException e) {
+            System.err.println("[TM] Can't compact the decision log: " + e.getMessage());
+        }
+    }
+
 
     public void printStatus(int tid) {
         System.out.println("[TM] T" + tid + " status=" + getStatus(tid)
@@ -0,0 +1,506 @@
+package Server.TCPHelper;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * WireFormat: the binary protocol between the middleware and the RMs
+ *
+ * A connection starts in text. The middleware sends the line HELLO; an RM that speaks binary
+ * answers HELLO_OK and from then on both sides send frames. Any other answer (an RM that only
+ * knows text replies "FAIL,BAD_TID") keeps the connection in text.
+ *
+ * A frame is a 4-byte length, then the payload. Numbers are varints: lengths, counts and request
+ * ids unsigned, tids and int arguments zigzag. A string is its length in bytes, then its UTF-8.
+ * <pre>
+ * request  = id op body
+ *   op RAW:    the request as a text line, tid included
+ *   op BATCH:  tid count (op fields)*count, the messages of a frame (see RMFrames); count is 4 bytes
+ *   other ops: tid fields, one per letter of the op's schema, S a string, I an int
+ * reply    = id kind value
+ *   kind OK nothing ("OK"), OK_VALUE string ("OK,..."), FAIL string ("FAIL,..."),
+ *   TEXT string (any other reply), BATCH count (kind value)*count
+ * </pre>
+ * Requests are encoded straight from their text line, without splitting it: a line that doesn't
+ * fit its op's schema (an argument missing or not a number, an unknown command) goes RAW, so
+ * the RM parses it as text and answers exactly as it would have in text.
+ *
+ * Frames are written into and read from ByteBuffers the caller keeps and reuses; a method that
+ * may need a bigger one returns the buffer to keep.
+ */
+public final class WireFormat {
+
+    public static final String HELLO = "Hello,binary/1";
+    public static final String HELLO_OK = "OK,binary/1";
+    /** To allocate reusable buffers with; they grow when a frame needs it */
+    public static final int BUFFER_SIZE = 4096;
+    private static final int MAX_FRAME = 64 << 20;
+
+    private static final int RAW = 0;
+    private static final int BATCH = 1;
+    // the commands of the four RMs and their arguments; the opcode is the index, never reorder
+    private static final String[][] OPS = {
+            {null, null}, {"Batch", null},
+            {"Prepare", ""}, {"Commit", ""}, {"CommitOnePhase", ""}, {"Abort", ""},
+            {"AddFlight", "SII"}, {"DeleteFlight", "S"}, {"QueryFlight", "S"}, {"QueryFlightPrice", "S"},
+            {"ReserveFlight", "IS"}, {"FlightExists", "S"},
+            {"AddCars", "SII"}, {"DeleteCars", "S"}, {"QueryCars", "S"}, {"QueryCarsPrice", "S"},
+            {"ReserveCar", "IS"}, {"CarExists", "S"},
+            {"AddRooms", "SII"}, {"DeleteRooms", "S"}, {"QueryRooms", "S"}, {"QueryRoomsPrice", "S"},
+            {"ReserveRoom", "IS"}, {"RoomExists", "S"},
+            {"AddCustomer", ""}, {"AddCustomerID", "I"}, {"DeleteCustomer", "I"}, {"QueryCustomer", "I"},
+            {"CustomerExists", "I"}, {"CustomerReserve", "ISII"}, {"getItem", "S"},
+            {"QueryReserved", "S"}, {"rollbackReserve", "ISI"},
+            {"Ping", ""}, {"LockStats", ""}, {"InDoubt", ""},
+    };
+    // opcodes by the low bits of their command's hashCode(), to look a command up without cutting it out of its line
+    private static final int[][] OPCODES = new int[64][0];
+    static {
+        for (int op = BATCH; op < OPS.length; op++) {
+            int h = OPS[op][0].hashCode() & (OPCODES.length - 1);
+            OPCODES[h] = Arrays.copyOf(OPCODES[h], OPCODES[h].length + 1);
+            OPCODES[h][OPCODES[h].length - 1] = op;
+        }
+    }
+
+    private static final int OK = 0;
+    private static final int OK_VALUE = 1;
+    private static final int FAIL = 2;
+    private static final int TEXT = 3;
+    private static final int REPLIES = 4;
+
+    private WireFormat() {}
+
+    // ------------------------ requests ------------------------
+
+    /**
+     * Encode the text request line ("<tid>,<msg>") as a frame.
+     * @return buf, or a bigger buffer if it didn't fit, flipped for writing out
+     */
+    public static ByteBuffer writeRequest(ByteBuffer buf, long id, String line) {
+        while (true) {
+            try {
+                buf.clear();
+                buf.position(4);
+                putVarlong(buf, id);
+                int start = buf.position();
+                if (!putTyped(buf, line)) {
+                    buf.position(start);
+                    buf.put((byte) RAW);
+                    putString(buf, line, 0, line.length());
+                }
+                return endFrame(buf);
+            } catch (BufferOverflowException e) {
+                buf = ByteBuffer.allocate(buf.capacity() * 2);
+            }
+        }
+    }
+
+    private static boolean putTyped(ByteBuffer buf, String line) {
+        int length = line.length();
+        int comma = next(line, 0, ',');
+        if (comma == length) return false;
+        long tid = parseInt(line, 0, comma);
+        if (tid == Long.MIN_VALUE) return false;
+        int at = next(line, comma + 1, ',');
+        int op = opcode(line, comma + 1, at);
+        if (op < 0) return false;
+        buf.put((byte) op);
+        putVarlong(buf, zigzag((int) tid));
+        if (op != BATCH) {
+            return putFields(buf, op, line, at, ',') == length;
+        }
+        if (at == length) return false;
+        // the count goes in front of the messages, once they are counted
+        char separator = RMFrames.SEPARATOR.charAt(0);
+        int countAt = buf.position();
+        buf.putInt(0);
+        int count = 0;
+        do {
+            int from = at + 1;
+            at = next(line, from, ',', separator);
+            int msgOp = opcode(line, from, at);
+            if (msgOp < 0 || msgOp == BATCH) return false;
+            buf.put((byte) msgOp);
+            at = putFields(buf, msgOp, line, at, separator);
+            if (at < 0 || (at < length && line.charAt(at) != separator)) return false;
+            count++;
+        } while (at < length);
+        buf.putInt(countAt, count);
+        return true;
+    }
+
+    /**
+     * Put the arguments that follow line[at], where the command ends, as op's schema has them.
+     * @return where they end: at end, the end of the line or the next message; -1 if they don't fit the schema
+     */
+    private static int putFields(ByteBuffer buf, int op, String line, int at, char end) {
+        String schema = OPS[op][1];
+        for (int i = 0; i < schema.length(); i++) {
+            if (at == line.length() || line.charAt(at) != ',') return -1; // missing
+            int start = at + 1;
+            at = next(line, start, ',', end);
+            if (schema.charAt(i) == 'I') {
+                long n = parseInt(line, start, at);
+                if (n == Long.MIN_VALUE) return -1;
+                putVarlong(buf, zigzag((int) n));
+            } else {
+                int to = at;
+                while (start < to && line.charAt(start) <= ' ') start++;
+                while (to > start && line.charAt(to - 1) <= ' ') to--;
+                putString(buf, line, start, to);
+            }
+        }
+        // more arguments than the schema has: send the line as it is, for the RM to see them
+        return (at < line.length() && line.charAt(at) == ',') ? -1 : at;
+    }
+
+    // the first c (or d) in s from from on, or the end of s
+    private static int next(String s, int from, char c) {
+        return next(s, from, c, c);
+    }
+
+    private static int next(String s, int from, char c, char d) {
+        int length = s.length();
+        for (int i = from; i < length; i++) {
+            char ch = s.charAt(i);
+            if (ch == c || ch == d) return i;
+        }
+        return length;
+    }
+
+    /**
+     * Decode a request, after its id.
+     * @throws IllegalArgumentException a RAW request that doesn't parse (see RMRequest.parse)
+     * @throws ProtocolException if the payload isn't a request
+     */
+    public static RMRequest readRequest(ByteBuffer buf) throws ProtocolException {
+        try {
+            int op = buf.get() & 0xff;
+            if (op == RAW) {
+                return RMRequest.parse(getString(buf));
+            }
+            int tid = unzigzag(getVarlong(buf));
+            if (op != BATCH) {
+                return getFields(buf, tid, op);
+            }
+            int count = buf.getInt();
+            if (count < 0 || count > buf.remaining()) throw new ProtocolException("batch of " + count + " in " + buf.remaining() + " bytes");
+            RMRequest[] messages = new RMRequest[count];
+            for (int i = 0; i < messages.length; i++) {
+                int msgOp = buf.get() & 0xff;
+                if (msgOp == RAW || msgOp == BATCH) throw new ProtocolException("op " + msgOp + " in a batch");
+                messages[i] = getFields(buf, tid, msgOp);
+            }
+            return RMRequest.batch(tid, messages);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("truncated request");
+        }
+    }
+
+    private static RMRequest getFields(ByteBuffer buf, int tid, int op) throws ProtocolException {
+        if (op >= OPS.length) throw new ProtocolException("unknown op " + op);
+        String schema = OPS[op][1];
+        String[] strings = new String[schema.length()];
+        int[] numbers = new int[schema.length()];
+        for (int i = 0; i < schema.length(); i++) {
+            if (schema.charAt(i) == 'I') {
+                numbers[i] = unzigzag(getVarlong(buf));
+            } else {
+                strings[i] = getString(buf);
+            }
+        }
+        return new RMRequest(tid, OPS[op][0], strings, numbers);
+    }
+
+    // ------------------------ replies ------------------------
+
+    /**
+     * Encode the replies to one request: one reply, or those of a frame's messages.
+     * @return buf, or a bigger buffer if it didn't fit, flipped for writing out
+     */
+    public static ByteBuffer writeReply(ByteBuffer buf, long id, String[] replies, boolean batch) {
+        while (true) {
+            try {
+                buf.clear();
+                buf.position(4);
+                putVarlong(buf, id);
+                if (batch) {
+                    buf.put((byte) REPLIES);
+                    putVarlong(buf, replies.length);
+                }
+                for (int i = 0; i < (batch ? replies.length : 1); i++) {
+                    putReply(buf, replies[i]);
+                }
+                return endFrame(buf);
+            } catch (BufferOverflowException e) {
+                buf = ByteBuffer.allocate(buf.capacity() * 2);
+            }
+        }
+    }
+
+    private static void putReply(ByteBuffer buf, String reply) {
+        if (reply.equals("OK")) {
+            buf.put((byte) OK);
+        } else if (reply.startsWith("OK,")) {
+            buf.put((byte) OK_VALUE);
+            putString(buf, reply, 3, reply.length());
+        } else if (reply.startsWith("FAIL,")) {
+            buf.put((byte) FAIL);
+            putString(buf, reply, 5, reply.length());
+        } else {
+            buf.put((byte) TEXT);
+            putString(buf, reply, 0, reply.length());
+        }
+    }
+
+    /**
+     * Decode a reply, after its id, as it would have come in text: the replies of a frame joined
+     * by RMFrames.SEPARATOR.
+     * @throws ProtocolException if the payload isn't a reply
+     */
+    public static String readReply(ByteBuffer buf) throws ProtocolException {
+        try {
+            int kind = buf.get() & 0xff;
+            if (kind != REPLIES) {
+                return getReply(buf, kind);
+            }
+            int count = count(buf);
+            StringBuilder replies = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) replies.append(RMFrames.SEPARATOR);
+                appendReply(buf, buf.get() & 0xff, replies);
+            }
+            return replies.toString();
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("truncated reply");
+        }
+    }
+
+    private static String getReply(ByteBuffer buf, int kind) throws ProtocolException {
+        switch (kind) {
+            case OK: return "OK";
+            case OK_VALUE: return "OK," + getString(buf);
+            case FAIL: return "FAIL," + getString(buf);
+            case TEXT: return getString(buf);
+            default: throw new ProtocolException("unknown reply kind " + kind);
+        }
+    }
+
+    private static void appendReply(ByteBuffer buf, int kind, StringBuilder sb) throws ProtocolException {
+        switch (kind) {
+            case OK: sb.append("OK"); return;
+            case OK_VALUE: sb.append("OK,"); break;
+            case FAIL: sb.append("FAIL,"); break;
+            case TEXT: break;
+            default: throw new ProtocolException("unknown reply kind " + kind);
+        }
+        int n = stringLength(buf);
+        int at = buf.position();
+        for (int i = 0; i < n; i++) {
+            if (buf.get(at + i) < 0) { // not ASCII
+                sb.append(getString(buf, n));
+                return;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            sb.append((char) buf.get());
+        }
+    }
+
+    // ------------------------ frames ------------------------
+
+    /**
+     * Read the next frame from in into buf.
+     * @return buf, or a bigger buffer if the frame didn't fit, ready to decode; null at the end of the stream
+     */
+    public static ByteBuffer readFrame(DataInputStream in, ByteBuffer buf) throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        int length = (first << 24) | (in.readUnsignedShort() << 8) | in.readUnsignedByte();
+        if (length < 0 || length > MAX_FRAME) throw new ProtocolException("frame of " + length + " bytes");
+        if (buf.capacity() < length) {
+            buf = ByteBuffer.allocate(Math.max(length, buf.capacity() * 2));
+        }
+        buf.clear();
+        in.readFully(buf.array(), buf.arrayOffset(), length);
+        buf.limit(length);
+        return buf;
+    }
+
+    /**
+     * Take the next frame off in, for a reader that doesn't block: in holds what has come so
+     * far, ready to read from.
+     * @return the frame, ready to decode; null if it hasn't all come yet
+     */
+    public static ByteBuffer nextFrame(ByteBuffer in) throws ProtocolException {
+        if (in.remaining() < 4) return null;
+        int length = in.getInt(in.position());
+        if (length < 0 || length > MAX_FRAME) throw new ProtocolException("frame of " + length + " bytes");
+        if (in.remaining() < 4 + length) return null;
+        ByteBuffer frame = in.slice(in.position() + 4, length);
+        in.position(in.position() + 4 + length);
+        return frame;
+    }
+
+    /** A text line, read a byte at a time so nothing after it is taken off the stream; null at its end */
+    public static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) return (line.length() == 0) ? null : line.toString();
+            line.append((char) b);
+        }
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') end--;
+        return new String(line.substring(0, end).getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer endFrame(ByteBuffer buf) {
+        buf.putInt(0, buf.position() - 4);
+        buf.flip();
+        return buf;
+    }
+
+    // ------------------------ fields ------------------------
+
+    public static void putVarlong(ByteBuffer buf, long value) {
+        if (buf.hasArray() && buf.remaining() >= 10) { // straight into the array: put() checks every byte
+            byte[] dst = buf.array();
+            int start = buf.arrayOffset() + buf.position();
+            int at = start;
+            while ((value & ~0x7FL) != 0) {
+                dst[at++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            dst[at++] = (byte) value;
+            buf.position(buf.position() + at - start);
+            return;
+        }
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static long getVarlong(ByteBuffer buf) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+        throw new ProtocolException("varint too long");
+    }
+
+    private static long zigzag(int n) {
+        return ((n << 1) ^ (n >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(long n) {
+        int z = (int) n;
+        return (z >>> 1) ^ -(z & 1);
+    }
+
+    private static int count(ByteBuffer buf) throws ProtocolException {
+        long count = getVarlong(buf);
+        if (count > buf.remaining()) throw new ProtocolException("count " + count + " in " + buf.remaining() + " bytes");
+        return (int) count;
+    }
+
+    // s[from, to) in UTF-8, after its length
+    private static void putString(ByteBuffer buf, String s, int from, int to) {
+        int length = to - from;
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) >= 0x80) {
+                byte[] utf8 = s.substring(from, to).getBytes(StandardCharsets.UTF_8);
+                putVarlong(buf, utf8.length);
+                buf.put(utf8);
+                return;
+            }
+        }
+        putVarlong(buf, length);
+        if (buf.remaining() < length) throw new BufferOverflowException();
+        if (buf.hasArray()) {
+            byte[] dst = buf.array();
+            int at = buf.arrayOffset() + buf.position();
+            for (int i = 0; i < length; i++) {
+                dst[at + i] = (byte) s.charAt(from + i);
+            }
+            buf.position(buf.position() + length);
+        } else {
+            for (int i = from; i < to; i++) {
+                buf.put((byte) s.charAt(i));
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer buf) throws ProtocolException {
+        return getString(buf, stringLength(buf));
+    }
+
+    private static int stringLength(ByteBuffer buf) throws ProtocolException {
+        long length = getVarlong(buf);
+        if (length > buf.remaining()) throw new ProtocolException("string of " + length + " in " + buf.remaining() + " bytes");
+        return (int) length;
+    }
+
+    // the n bytes at buf's position, as UTF-8
+    private static String getString(ByteBuffer buf, int n) {
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), n, StandardCharsets.UTF_8);
+            buf.position(buf.position() + n);
+        } else {
+            byte[] bytes = new byte[n];
+            buf.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    // s[from, to), trimmed, as Integer.parseInt would take it; Long.MIN_VALUE if it wouldn't
+    private static long parseInt(String s, int from, int to) {
+        while (from < to && s.charAt(from) <= ' ') from++;
+        while (to > from && s.charAt(to - 1) <= ' ') to--;
+        boolean negative = false;
+        if (from < to && (s.charAt(from) == '-' || s.charAt(from) == '+')) {
+            negative = s.charAt(from) == '-';
+            from++;
+        }
+        if (from == to || to - from > 10) return Long.MIN_VALUE;
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return Long.MIN_VALUE;
+            n = n * 10 + (c - '0');
+        }
+        n = negative ? -n : n;
+        return (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) ? Long.MIN_VALUE : n;
+    }
+
+    // the opcode of the command in s[from, to), trimmed; -1 if it has none
+    private static int opcode(String s, int from, int to) {
+        while (from < to && s.charAt(from) <= ' ') from++;
+        while (to > from && s.charAt(to - 1) <= ' ') to--;
+        int h = 0;
+        for (int i = from; i < to; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        for (int op : OPCODES[h & (OPCODES.length - 1)]) {
+            String command = OPS[op][0];
+            if (command.length() == to - from && s.startsWith(command, from)) {
+                return op;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,11 +1,16 @@
 package Server.TCPHelper;
 
+import Server.Common.FanOut;
 import Server.Common.Trace;
+import Server.Interface.IResourceManager.Vote;
 
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * Worker: processes one transaction at a time.
@@ -13,12 +18,21 @@ import java.util.concurrent.BlockingQueue;
  */
 public class Worker implements Runnable {
 
+    // how long each 2PC phase waits for its slowest participant (ms), -Dtm.prepareTimeoutMs / -Dtm.commitTimeoutMs
+    private static final long PREPARE_TIMEOUT = Long.getLong("tm.prepareTimeoutMs", 5000L);
+    private static final long COMMIT_TIMEOUT = Long.getLong("tm.commitTimeoutMs", 5000L);
+    // -Dtm.plain2pc=true: every participant gets prepare and commit, without the read-only and one-phase shortcuts
+    private static final boolean PLAIN_2PC = Boolean.getBoolean("tm.plain2pc");
+
+    // -Dtm.frames=false: each message to an RM in a round trip of its own, instead of a frame per RM (see RMFrames)
+    private final boolean framed = Boolean.parseBoolean(System.getProperty("tm.frames", "true"));
+
     private final BlockingQueue<Request> txQueue;
-    private final Map<String, RMConnection> rmConnections;
+    private final Map<String, RMConnectionPool> rmConnections;
     private final TCPTransactionManager tm;
 
     public Worker(BlockingQueue<Request> txQueue,
-                  Map<String, RMConnection> rmConnections,
+                  Map<String, RMConnectionPool> rmConnections,
                   TCPTransactionManager tm) {
         this.txQueue = txQueue;
         this.rmConnections = rmConnections;
@@ -28,437 +42,551 @@ public class Worker implements Runnable {
     @Override
     public void run() {
         while (true) {
+            Request tx;
             try {
-                Request tx = txQueue.take();
-                int tid = tx.getTid();
-                Socket clientSocket = tx.getClientSocket();
+                tx = txQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            handle(tx);
+        }
+    }
 
-                PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+    /** Run one transaction to its end and send the client its result; a Worker can run several at once */
+    public void handle(Request tx) {
+        try {
+            int tid = tx.getTid();
+            Socket clientSocket = tx.getClientSocket();
+
+            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+
+            if (tx.abortFlag) {
+                tm.abort(tid);
+                broadcastAbort(tid);
+                out.println("TXN_RESULT_BEGIN");
+                out.println("Transaction " + tid + " ABORTED");
+                out.println("TXN_RESULT_END");
+                return;
+            }
+
+            // the idle reaper may have aborted tid while its client was quiet
+            if (!tm.claim(tid)) {
+                out.println("TXN_RESULT_BEGIN");
+                out.println("Transaction " + tid + " ABORTED, it was idle too long");
+                out.println("TXN_RESULT_END");
+                return;
+            }
 
-                if (tx.abortFlag) {
+            // the requests go out as one frame per RM, in as few rounds as their dependencies allow
+            Batch batch = new Batch(tid);
+            for (String req : tx.getRequests()) {
+                if (!plan(batch, req)) {
+                    break; // fail fast
+                }
+            }
+            boolean success = batch.settle();
+            List<String> results = batch.results;
+
+            // ------------ Final decision at Commit ------------
+            try {
+                out = new PrintWriter(clientSocket.getOutputStream(), true);
+                if (success) {
+                    TCPTransactionManager.TransactionStatus outcome = commit(tid);
+                    out.println("TXN_RESULT_BEGIN");
+                    results.forEach(out::println);
+                    if (outcome == TCPTransactionManager.TransactionStatus.COMMITTED) {
+                        out.println("Transaction " + tid + " COMMITTED");
+                    } else if (outcome == TCPTransactionManager.TransactionStatus.ABORTED) {
+                        out.println("Transaction " + tid + " ABORTED");
+                    } else {
+                        out.println("Transaction " + tid + " IN DOUBT, its commit got no answer in time");
+                    }
+                    out.println("TXN_RESULT_END");
+                } else {
                     tm.abort(tid);
                     broadcastAbort(tid);
                     out.println("TXN_RESULT_BEGIN");
+                    results.forEach(out::println);
                     out.println("Transaction " + tid + " ABORTED");
                     out.println("TXN_RESULT_END");
-                    continue;
                 }
+            } catch (Exception e) {
+                System.err.println("[Worker] exception: " + e.getMessage());
+                e.printStackTrace();
+            }
 
-                boolean success = true;
-                List<String> results = new ArrayList<>();
-
-                for (String req : tx.getRequests()) {
-                    //System.out.println(tx.getRequests()); //
-                    String[] parts = req.split(",");
-                    String command = parts[0].trim();
-                    String resp;
-
-                    switch (command) {
-                        // ------------ Flight ------------
-                        case "AddFlight":
-                        case "QueryFlight":
-                        case "QueryFlightPrice":
-                            resp = sendToRM("FlightRM", tid, req);
-                            break;
-
-                        case "DeleteFlight": {
-                            String flightNum = parts[1].trim();
-                            String exists = sendToRM("FlightRM", tid, "FlightExists," + flightNum);
-                            if (exists == null || !exists.startsWith("OK")) {
-                                resp = "FAIL,FlightNotFound";
-                                break;
-                            }
-                            String reserved = sendToRM("FlightRM", tid, "QueryReserved," + flightNum);
-                            if (reserved == null || !reserved.startsWith("OK,")) {
-                                resp = "FAIL,QueryReservedError";
-                                break;
-                            }
-                            int r = Integer.parseInt(reserved.split(",")[1]);
-                            if (r > 0) {
-                                resp = "FAIL,FlightHasReservations";
-                                break;
-                            }
-                            resp = sendToRM("FlightRM", tid, req);
-                            break;
-                        }
-
-                        // ------------ Car ------------
-                        case "AddCars":
-                        case "QueryCars":
-                        case "QueryCarsPrice":
-                            resp = sendToRM("CarRM", tid, req);
-                            break;
-
-                        case "DeleteCars": {
-                            String loc = parts[1].trim();
-                            String exists = sendToRM("CarRM", tid, "CarExists," + loc);
-                            if (exists == null || !exists.startsWith("OK")) {
-                                resp = "FAIL,CarNotFound";
-                                break;
-                            }
-                            String reserved = sendToRM("CarRM", tid, "QueryReserved," + loc);
-                            if (reserved == null || !reserved.startsWith("OK,")) {
-                                resp = "FAIL,QueryReservedError";
-                                break;
-                            }
-                            int r = Integer.parseInt(reserved.split(",")[1]);
-                            if (r > 0) {
-                                resp = "FAIL,CarHasReservations";
-                                break;
-                            }
-                            resp = sendToRM("CarRM", tid, req);
-                            break;
-                        }
-
-                        // ------------ Room ------------
-                        case "AddRooms":
-                        case "QueryRooms":
-                        case "QueryRoomsPrice":
-                            resp = sendToRM("RoomRM", tid, req);
-                            break;
-
-                        case "DeleteRooms": {
-                            String loc = parts[1].trim();
-                            String exists = sendToRM("RoomRM", tid, "RoomExists," + loc);
-                            if (exists == null || !exists.startsWith("OK")) {
-                                resp = "FAIL,RoomNotFound";
-                                break;
-                            }
-                            String reserved = sendToRM("RoomRM", tid, "QueryReserved," + loc);
-                            if (reserved == null || !reserved.startsWith("OK,")) {
-                                resp = "FAIL,QueryReservedError";
-                                break;
-                            }
-                            int r = Integer.parseInt(reserved.split(",")[1]);
-                            if (r > 0) {
-                                resp = "FAIL,RoomHasReservations";
-                                break;
-                            }
-                            resp = sendToRM("RoomRM", tid, req);
-                            break;
-                        }
-
-                        // ------------ Customer ------------
-                        case "AddCustomer":
-                        case "AddCustomerID":
-                        case "QueryCustomer":
-                            resp = sendToRM("CustomerRM", tid, req);
-                            break;
-                        case "DeleteCustomer": {
-                            try {
-                                int customerID = Integer.parseInt(parts[1]);
-
-                                // 1. Get customer reservations
-                                String custResp = sendToRM("CustomerRM", tid, "getItem,customer-" + customerID);
-                                if (custResp == null || custResp.startsWith("ERROR") || custResp.equals("NOT_FOUND")) {
-                                    resp = "FAIL,NoSuchCustomer";
-                                    break;
-                                }
-
-                                // Response: OK,<reservationKey1>:count; <reservationKey2>:count; ...
-                                System.out.println("---------------------------------------------" + custResp);
-
-                                String[] tokens = custResp.split(",", 2);
-                                if (tokens.length < 2) {
-                                    resp = "FAIL,BadCustomerFormat";
-                                    break;
-                                }
-
-                                String reservationsStr = tokens[1].trim();
-                                if (reservationsStr.isEmpty()) {
-                                    reservationsStr = ""; // no reservations
-                                }
-
-                                boolean rollbackOK = true;
-
-                                String[] items = reservationsStr.split(";");
-                                for (String item : items) {
-                                    String[] partsItem = item.trim().split(":");
-                                    String reservedKey = partsItem[0];
-                                    int count = (partsItem.length > 1) ? Integer.parseInt(partsItem[1]) : 1;
-
-                                    if (count <= 0) continue;
-
-                                    String rmType;
-                                    if (reservedKey.startsWith("flight-")) {
-                                        rmType = "FlightRM";
-                                    } else if (reservedKey.startsWith("car-")) {
-                                        rmType = "CarRM";
-                                    } else if (reservedKey.startsWith("room-")) {
-                                        rmType = "RoomRM";
-                                    } else {
-                                        continue; // unknown type, skip
-                                    }
-
-                                    String res = sendToRM(rmType, tid, "rollbackReserve," + customerID + "," + reservedKey + "," + count);
-                                    if (res == null || !res.startsWith("OK")) {
-                                        rollbackOK = false;
-                                        Trace.warn("Worker::DeleteCustomer rollback failed for " + reservedKey);
-                                    }
-                                }
-
-                                if (!rollbackOK) {
-                                    resp = "FAIL,RollbackFailed";
-                                    break;
-                                }
-
-                                // 2. Delete customer after successful rollbacks
-                                String delResp = sendToRM("CustomerRM", tid, "DeleteCustomer," + customerID);
-                                resp = (delResp != null && delResp.startsWith("OK")) ? "OK,CustomerDeleted"
-                                        : "FAIL,DeleteCustomerFailed";
-
-                            } catch (Exception e) {
-                                resp = "ERROR,DeleteCustomer," + e.getMessage();
-                                e.printStackTrace();
-                            }
-                            break;
-                        }
-
-                        // ------------ Reservation ------------
-                        case "ReserveFlight":
-                        case "ReserveCar":
-                        case "ReserveRoom":
-                        case "Bundle":
-                            resp = handleReservation(tid, parts);
-                            break;
-
-                        // ------------ Commit (marker only) ------------
-                        case "Commit":
-                            resp = "Commit requested";
-                            break;
-
-                        default:
-                            resp = "ERROR,UnknownCommand," + command;
-                            success = false;
-                    }
+        } catch (Exception e) {
+            System.err.println("[Worker] exception: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
 
-                    results.add(command + " -> " + resp);
+    // ------------ helpers ------------
 
-                    if (resp == null || resp.startsWith("ERROR") || resp.startsWith("FAIL")) {
-                        success = false;
-                        break; // fail fast
-                    }
-                }
+    /**
+     * The requests of one transaction, planned into frames (see RMFrames). Each request queues its
+     * messages and leaves an outcome, which reads their replies once they are sent. A request that
+     * needs a reply to go on (a price, a customer's reservations) settles what is queued first.
+     *
+     * That is the only dependency between requests the planning has to respect: messages to one RM
+     * keep their client order in its frame, and RMs share no state, so the frames of different RMs
+     * run at the same time. Outcomes are settled in client order, whatever order the replies came in.
+     */
+    private final class Batch {
+        private final int tid;
+        private final RMFrames frames;
+        private final List<String> commands = new ArrayList<>();
+        private final List<Supplier<String>> outcomes = new ArrayList<>();
+        final List<String> results = new ArrayList<>(); // "command -> outcome", of the requests settled
+        private boolean failed;
+
+        Batch(int tid) {
+            this.tid = tid;
+            this.frames = new RMFrames(tid, rmConnections, framed);
+        }
 
-                // ------------ Final decision at Commit ------------
-                try {
-                    out = new PrintWriter(clientSocket.getOutputStream(), true);
-                    if (success) {
-                        boolean prepared = broadcastPrepare(tid);
-                        //System.out.println("Prepare:" + prepared);
-                        if (prepared) {
-                            System.out.println("Worker call commit!!!");
-                            if(broadcastCommit(tid)) {
-                                tm.commit(tid);
-                                out.println("TXN_RESULT_BEGIN");
-                                results.forEach(out::println);
-                                out.println("Transaction " + tid + " COMMITTED");
-                                out.println("TXN_RESULT_END");
-                            }
-                        } else {
-                            tm.abort(tid);
-                            broadcastAbort(tid);
-                            out.println("TXN_RESULT_BEGIN");
-                            results.forEach(out::println);
-                            out.println("Transaction " + tid + " ABORTED");
-                            out.println("TXN_RESULT_END");
-                        }
-                    } else {
-                        tm.abort(tid);
-                        broadcastAbort(tid);
-                        out.println("TXN_RESULT_BEGIN");
-                        results.forEach(out::println);
-                        out.println("Transaction " + tid + " ABORTED");
-                        out.println("TXN_RESULT_END");
-                    }
-                } catch (Exception e) {
-                    System.err.println("[Worker] exception: " + e.getMessage());
-                    e.printStackTrace();
-                }
+        RMFrames.Reply send(String rmName, String msg) {
+            tm.addParticipant(tid, rmName, !isQuery(msg));
+            return frames.queue(rmName, msg);
+        }
 
-            } catch (Exception e) {
-                System.err.println("[Worker] exception: " + e.getMessage());
-                e.printStackTrace();
+        void add(String command, Supplier<String> outcome) {
+            commands.add(command);
+            outcomes.add(outcome);
+        }
+
+        /**
+         * Send what is queued, and work out the outcome of every request added so far, in order.
+         * @return false once one failed; the requests after it are left out of the results
+         */
+        boolean settle() {
+            frames.flush();
+            while (!failed && results.size() < outcomes.size()) {
+                int i = results.size();
+                String resp = outcomes.get(i).get();
+                results.add(commands.get(i) + " -> " + resp);
+                failed = failed(resp);
             }
+            return !failed;
         }
     }
 
-    // ------------ helpers ------------
+    private static boolean failed(String resp) {
+        return resp == null || resp.startsWith("ERROR") || resp.startsWith("FAIL");
+    }
+
+    private static boolean ok(RMFrames.Reply reply) {
+        return reply.get() != null && reply.get().startsWith("OK");
+    }
 
-    private String sendToRM(String rmName, int tid, String msg) {
-        RMConnection conn = rmConnections.get(rmName);
-        if (conn == null) {
-            return "ERROR,RMNotFound," + rmName;
+    /**
+     * Queue the messages of one client request.
+     * @return false if it failed already, or settling on the way found a failed request
+     */
+    private boolean plan(Batch batch, String req) {
+        String[] parts = req.split(",");
+        String command = parts[0].trim();
+
+        switch (command) {
+            // ------------ Flight ------------
+            case "AddFlight":
+            case "QueryFlight":
+            case "QueryFlightPrice":
+                batch.add(command, batch.send("FlightRM", req));
+                return true;
+
+            case "DeleteFlight":
+                planDelete(batch, command, req, parts[1].trim(), "FlightRM", "FlightExists", "Flight");
+                return true;
+
+            // ------------ Car ------------
+            case "AddCars":
+            case "QueryCars":
+            case "QueryCarsPrice":
+                batch.add(command, batch.send("CarRM", req));
+                return true;
+
+            case "DeleteCars":
+                planDelete(batch, command, req, parts[1].trim(), "CarRM", "CarExists", "Car");
+                return true;
+
+            // ------------ Room ------------
+            case "AddRooms":
+            case "QueryRooms":
+            case "QueryRoomsPrice":
+                batch.add(command, batch.send("RoomRM", req));
+                return true;
+
+            case "DeleteRooms":
+                planDelete(batch, command, req, parts[1].trim(), "RoomRM", "RoomExists", "Room");
+                return true;
+
+            // ------------ Customer ------------
+            case "AddCustomer":
+            case "AddCustomerID":
+            case "QueryCustomer":
+                batch.add(command, batch.send("CustomerRM", req));
+                return true;
+
+            case "DeleteCustomer":
+                return planDeleteCustomer(batch, command, parts);
+
+            // ------------ Reservation ------------
+            case "ReserveFlight":
+            case "ReserveCar":
+            case "ReserveRoom":
+            case "Bundle":
+                return planReservation(batch, parts);
+
+            // ------------ Commit (marker only) ------------
+            case "Commit":
+                batch.add(command, () -> "Commit requested");
+                return true;
+
+            default:
+                batch.add(command, () -> "ERROR,UnknownCommand," + command);
+                return false;
         }
-        tm.addParticipant(tid, rmName);
-        return conn.send(msg, tid);
     }
 
-    private boolean broadcastPrepare(int tid) {
-        for (String rm : tm.getParticipants(tid)) {
-            String resp = rmConnections.get(rm).send("Prepare", tid);
-            if (resp == null || !resp.startsWith("OK")) {
+    // the item must exist and have no reservations; the delete goes in the same frame as the
+    // checks, and counts only if they pass (otherwise tid aborts, and the delete with it)
+    private void planDelete(Batch batch, String command, String req, String key,
+                            String rmName, String existsCommand, String noun) {
+        RMFrames.Reply exists = batch.send(rmName, existsCommand + "," + key);
+        RMFrames.Reply reserved = batch.send(rmName, "QueryReserved," + key);
+        RMFrames.Reply deleted = batch.send(rmName, req);
+        batch.add(command, () -> {
+            if (!ok(exists)) {
+                return "FAIL," + noun + "NotFound";
+            }
+            if (reserved.get() == null || !reserved.get().startsWith("OK,")) {
+                return "FAIL,QueryReservedError";
+            }
+            if (Integer.parseInt(reserved.get().split(",")[1]) > 0) {
+                return "FAIL," + noun + "HasReservations";
+            }
+            return deleted.get();
+        });
+    }
+
+    // the customer's reservations decide what to release where, so they are read first; the
+    // releases and the delete then go out together
+    private boolean planDeleteCustomer(Batch batch, String command, String[] parts) {
+        try {
+            int customerID = Integer.parseInt(parts[1]);
+
+            // 1. Get customer reservations
+            RMFrames.Reply cust = batch.send("CustomerRM", "getItem,customer-" + customerID);
+            if (!batch.settle()) {
+                return false;
+            }
+            String custResp = cust.get();
+            if (custResp == null || custResp.startsWith("ERROR") || custResp.equals("NOT_FOUND")) {
+                batch.add(command, () -> "FAIL,NoSuchCustomer");
+                return false;
+            }
+
+            // Response: OK,<reservationKey1>:count; <reservationKey2>:count; ...
+            System.out.println("---------------------------------------------" + custResp);
+
+            String[] tokens = custResp.split(",", 2);
+            if (tokens.length < 2) {
+                batch.add(command, () -> "FAIL,BadCustomerFormat");
                 return false;
             }
+
+            Map<String, RMFrames.Reply> rollbacks = new LinkedHashMap<>();
+            for (String item : tokens[1].trim().split(";")) {
+                String[] partsItem = item.trim().split(":");
+                String reservedKey = partsItem[0];
+                int count = (partsItem.length > 1) ? Integer.parseInt(partsItem[1]) : 1;
+
+                if (count <= 0) continue;
+
+                String rmType;
+                if (reservedKey.startsWith("flight-")) {
+                    rmType = "FlightRM";
+                } else if (reservedKey.startsWith("car-")) {
+                    rmType = "CarRM";
+                } else if (reservedKey.startsWith("room-")) {
+                    rmType = "RoomRM";
+                } else {
+                    continue; // unknown type, skip
+                }
+                rollbacks.put(reservedKey, batch.send(rmType, "rollbackReserve," + customerID + "," + reservedKey + "," + count));
+            }
+
+            // 2. Delete customer, counting only if every rollback succeeded
+            RMFrames.Reply deleted = batch.send("CustomerRM", "DeleteCustomer," + customerID);
+            batch.add(command, () -> {
+                boolean rollbackOK = true;
+                for (Map.Entry<String, RMFrames.Reply> rollback : rollbacks.entrySet()) {
+                    if (!ok(rollback.getValue())) {
+                        rollbackOK = false;
+                        Trace.warn("Worker::DeleteCustomer rollback failed for " + rollback.getKey());
+                    }
+                }
+                if (!rollbackOK) {
+                    return "FAIL,RollbackFailed";
+                }
+                return ok(deleted) ? "OK,CustomerDeleted" : "FAIL,DeleteCustomerFailed";
+            });
+            return true;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            batch.add(command, () -> "ERROR,DeleteCustomer," + e.getMessage());
+            return false;
         }
-        return true;
+    }
+    // commands that only read at the RM; anything else counts as a change
+    private static boolean isQuery(String msg) {
+        String command = msg.split(",", 2)[0].trim();
+        return command.startsWith("Query") || command.endsWith("Exists") || command.equals("getItem");
     }
 
-    private boolean broadcastCommit(int tid) {
-        boolean allSuccess = true;
+    /**
+     * Commit tid at its participants and end it. Two-phase, except that RMs voting read-only
+     * drop out after phase 1, and a transaction with one writer has the readers vote first and
+     * then commits at the writer in a single round trip.
+     * @return COMMITTED, ABORTED, or PREPARED if the writer's one-phase answer didn't come in time
+     */
+    private TCPTransactionManager.TransactionStatus commit(int tid) {
+        Set<String> participants = tm.getParticipants(tid);
+        Set<String> writers = tm.getWriters(tid);
+        Map<String, Vote> votes = new ConcurrentHashMap<>();
+        if (!PLAIN_2PC && writers.size() == 1) {
+            List<String> readers = new ArrayList<>(participants);
+            readers.removeAll(writers);
+            if (broadcastPrepare(tid, readers, votes) && !votes.containsValue(Vote.YES)) {
+                return commitOnePhase(tid, writers.iterator().next());
+            }
+            // a no vote, or a reader that had changes after all: regular two-phase
+        }
 
-        for (String rm : tm.getParticipants(tid)) {
-            System.out.println("send commit request to " + rm);
+        boolean prepared = !votes.containsValue(Vote.NO) && broadcastPrepare(tid, participants, votes);
+        List<String> pending = new ArrayList<>();
+        for (String rm : participants) {
+            if (PLAIN_2PC || votes.get(rm) != Vote.READ_ONLY) {
+                pending.add(rm);
+            }
+        }
+        // the decision is logged before any RM hears of it, unless none is left to hear of it
+        if (prepared && (pending.isEmpty() ? tm.commitUnlogged(tid) : tm.commit(tid))) {
+            if (broadcastCommit(tid, pending)) {
+                tm.delivered(Collections.singleton(tid));
+            } else {
+                System.err.println("[Worker] T" + tid + " committed, the resolver will retry the RMs that missed it");
+            }
+            return TCPTransactionManager.TransactionStatus.COMMITTED;
+        }
+        tm.abort(tid);
+        broadcastAbort(tid, pending);
+        return TCPTransactionManager.TransactionStatus.ABORTED;
+    }
+
+    // the only writer validates and commits alone; nothing to log, it holds the outcome
+    private TCPTransactionManager.TransactionStatus commitOnePhase(int tid, String rm) {
+        tm.handOff(tid, rm);
+        String resp = FanOut.one(() -> rmConnections.get(rm).send("CommitOnePhase", tid), COMMIT_TIMEOUT);
+        if (resp != null && (resp.startsWith("OK") || resp.equals("FAIL,COMMIT_FAILED"))) {
+            boolean committed = resp.startsWith("OK");
+            tm.onePhaseOutcome(tid, committed);
+            if (!committed) {
+                broadcastAbort(tid, Collections.singletonList(rm)); // lets the RM drop what it keeps for a refused tid
+            }
+            tm.end(tid);
+            return committed ? TCPTransactionManager.TransactionStatus.COMMITTED : TCPTransactionManager.TransactionStatus.ABORTED;
+        }
+        // no answer, or an error that doesn't say: tid may have committed, the resolver asks again
+        System.err.println("[Worker] T" + tid + " one-phase commit at " + rm + " answered " + resp + ", in doubt");
+        tm.end(tid);
+        return TCPTransactionManager.TransactionStatus.PREPARED;
+    }
 
-            String resp =rmConnections.get(rm).send("Commit", tid);
-            if (resp == null || !resp.startsWith("OK")) {
-                System.err.println("[broadcastCommit] Commit failed for " + rm + " in T" + tid);
-                allSuccess = false;
+    // the given RMs that have not voted yet, at once: done when the slowest answers, or at the first no
+    private boolean broadcastPrepare(int tid, Collection<String> rms, Map<String, Vote> votes) {
+        List<Callable<Boolean>> prepares = new ArrayList<>();
+        for (String rm : rms) {
+            if (votes.containsKey(rm)) {
+                continue;
             }
+            prepares.add(() -> {
+                String resp = rmConnections.get(rm).send("Prepare", tid);
+                Vote vote = (resp == null || !resp.startsWith("OK")) ? Vote.NO
+                        : resp.equals("OK,READ_ONLY") ? Vote.READ_ONLY : Vote.YES;
+                votes.put(rm, vote);
+                return vote != Vote.NO;
+            });
         }
+        return prepares.isEmpty() || FanOut.allTrue(prepares, PREPARE_TIMEOUT);
+    }
+
+    private boolean broadcastCommit(int tid, Collection<String> rms) {
+        List<Callable<Boolean>> commits = new ArrayList<>();
+        for (String rm : rms) {
+            commits.add(() -> {
+                System.out.println("send commit request to " + rm);
+                String resp = rmConnections.get(rm).send("Commit", tid);
+                if (resp == null || !resp.startsWith("OK")) {
+                    System.err.println("[broadcastCommit] Commit failed for " + rm + " in T" + tid);
+                    return false;
+                }
+                return true;
+            });
+        }
+        boolean allSuccess = FanOut.allTrue(commits, COMMIT_TIMEOUT);
+        tm.end(tid);
 
         return allSuccess;
     }
 
 
     private void broadcastAbort(int tid) {
-        for (String rm : tm.getParticipants(tid)) {
-            rmConnections.get(rm).send("Abort", tid);
+        broadcastAbort(tid, tm.getParticipants(tid));
+    }
+
+    private void broadcastAbort(int tid, Collection<String> rms) {
+        List<Callable<String>> aborts = new ArrayList<>();
+        for (String rm : rms) {
+            aborts.add(() -> rmConnections.get(rm).send("Abort", tid));
         }
+        FanOut.all(aborts, COMMIT_TIMEOUT);
+        tm.end(tid);
     }
 
     // ------------ Reservation handler ------------
-    private String handleReservation(int tid, String[] parts) {
-        System.out.println("Worker now working on:" + Arrays.toString(parts));
-        String cmd = parts[0];
-        try {
-            switch (cmd) {
-                case "ReserveFlight": {
-                    int customerID = Integer.parseInt(parts[1]);
-                    String flightNum = parts[2];
-
-                    // 1. Check customer exists
-                    String exists = sendToRM("CustomerRM", tid, "CustomerExists," + customerID);
-                    if (!"OK".equals(exists)) return "FAIL,CustomerDoesNotExist";
-
-                    // 2. Query flight price (optional)
-                    String priceResp = sendToRM("FlightRM", tid, "QueryFlightPrice," + flightNum);
-                    if (!priceResp.startsWith("OK")) return "FAIL,FlightNotFound";
-                    int price = Integer.parseInt(priceResp.split(",")[1]);
-
-                    // 3. Reserve flight
-                    String reserved = sendToRM("FlightRM", tid, "ReserveFlight," + customerID + "," + flightNum);
-                    if (!"OK".equals(reserved)) return "FAIL,FlightNotReserved";
-
-                    // 4. Update customer reservations
-                    String added = sendToRM("CustomerRM", tid, "CustomerReserve," + customerID + ",flight-" + flightNum + ",1," + price);
-                    if (!"OK".equals(added)) {
-                        sendToRM("FlightRM", tid, "RollbackReserve," + customerID + "," + flightNum); // rollback
-                        return "FAIL,CouldNotUpdateCustomer";
-                    }
-
-                    return "Flight reserved";
-
-                }
-                case "ReserveCar": {
-                    int customerID = Integer.parseInt(parts[1]);
-                    String location = parts[2];
-
-                    // check customer
-                    String exists = sendToRM("CustomerRM", tid, "CustomerExists," + customerID);
-                    if (!"OK".equals(exists)) return "FAIL,CustomerDoesNotExist";
-
-                    // query price
-                    String priceResp = sendToRM("CarRM", tid, "QueryCarsPrice," + location);
-                    if (!priceResp.startsWith("OK")) return "FAIL,CarNotFound";
-                    int price = Integer.parseInt(priceResp.split(",")[1]);
-
-                    // reserve
-                    String reserved = sendToRM("CarRM", tid, "ReserveCar," + customerID + "," + location);
-                    if (!"OK".equals(reserved)) return "FAIL,CarNotReserved";
-
-                    // update customer
-                    String added = sendToRM("CustomerRM", tid, "CustomerReserve," + customerID + ",car-" + location + ",1," + price);
-                    if (!"OK".equals(added)) {
-                        sendToRM("CarRM", tid, "RollbackReserve," + customerID + "," + location);
-                        return "FAIL,CouldNotUpdateCustomer";
-                    }
-
-                    return "Car reserved";
-                }
-                case "ReserveRoom": {
-                    int customerID = Integer.parseInt(parts[1]);
-                    String location = parts[2];
-
-                    String exists = sendToRM("CustomerRM", tid, "CustomerExists," + customerID);
-                    if (!"OK".equals(exists)) return "FAIL,CustomerDoesNotExist";
 
-                    String priceResp = sendToRM("RoomRM", tid, "QueryRoomsPrice," + location);
-                    if (!priceResp.startsWith("OK")) return "FAIL,RoomNotFound";
-                    int price = Integer.parseInt(priceResp.split(",")[1]);
+    // how to reserve each kind of item
+    private enum Item {
+        FLIGHT("ReserveFlight", "FlightRM", "QueryFlightPrice", "flight-", "Flight"),
+        CAR("ReserveCar", "CarRM", "QueryCarsPrice", "car-", "Car"),
+        ROOM("ReserveRoom", "RoomRM", "QueryRoomsPrice", "room-", "Room");
 
-                    String reserved = sendToRM("RoomRM", tid, "ReserveRoom," + customerID + "," + location);
-                    if (!"OK".equals(reserved)) return "FAIL,RoomNotReserved";
+        final String command, rmName, priceCommand, keyPrefix, noun;
 
-                    String added = sendToRM("CustomerRM", tid, "CustomerReserve," + customerID + ",room-" + location + ",1," + price);
-                    if (!"OK".equals(added)) {
-                        sendToRM("RoomRM", tid, "RollbackReserve," + customerID + "," + location);
-                        return "FAIL,CouldNotUpdateCustomer";
-                    }
+        Item(String command, String rmName, String priceCommand, String keyPrefix, String noun) {
+            this.command = command;
+            this.rmName = rmName;
+            this.priceCommand = priceCommand;
+            this.keyPrefix = keyPrefix;
+            this.noun = noun;
+        }
 
-                    return "Room reserved";
-                }
-                case "Bundle": {
-                    return handleBundle(tid, parts);
+        static Item of(String command) {
+            for (Item item : values()) {
+                if (item.command.equals(command)) {
+                    return item;
                 }
-                default:
-                    return "ERROR,UnknownReservationCommand," + cmd;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "FAIL,Exception:" + e.getMessage();
+            throw new IllegalArgumentException("UnknownReservationCommand," + command);
         }
     }
 
+    // one reservation: checked, priced and reserved in a first round, recorded at the customer in the next
+    private static final class Reservation {
+        final Item item;
+        final int customerID;
+        final String name; // flight number or location
+        RMFrames.Reply exists, price, reserved, added;
+
+        Reservation(Item item, int customerID, String name) {
+            this.item = item;
+            this.customerID = customerID;
+            this.name = name;
+        }
 
-    // ------------ Bundle (all-or-nothing) ------------
-// Bundle, cid, <flightnum...>, location, T/F(car), T/F(room)
-    private String handleBundle(int tid, String[] parts) {
-        try {
-            int customerId = Integer.parseInt(parts[1]);
+        String op() {
+            return item.command + "," + customerID + "," + name;
+        }
+    }
 
-            //  parts[3] to parts[length-3]
-            List<String> flightNos = new ArrayList<>();
-            for (int i = 2; i < parts.length - 3; i++) {
-                flightNos.add(parts[i]);
+    /**
+     * Queue a reservation, or a bundle of them (all-or-nothing). The customer's record needs each
+     * item's price, so the checks, prices and reservations of the whole request go in one round and
+     * the customer's records in the next.
+     */
+    private boolean planReservation(Batch batch, String[] parts) {
+        System.out.println("Worker now working on:" + Arrays.toString(parts));
+        String cmd = parts[0];
+        boolean bundle = cmd.equals("Bundle");
+        List<Reservation> reservations = new ArrayList<>();
+        try {
+            if (bundle) {
+                reservations.addAll(parseBundle(parts));
+            } else {
+                reservations.add(new Reservation(Item.of(cmd), Integer.parseInt(parts[1]), parts[2]));
             }
+        } catch (Exception e) {
+            String resp = bundle ? "ERROR,InvalidBundleFormat," + e.getMessage() : "FAIL,Exception:" + e.getMessage();
+            batch.add(cmd, () -> resp);
+            return false;
+        }
 
-            String location = parts[parts.length - 3];
-            boolean reserveCar = Boolean.parseBoolean(parts[parts.length - 2]);
-            boolean reserveRoom = Boolean.parseBoolean(parts[parts.length - 1]);
-
-            List<String> ops = new ArrayList<>();
-            for (String f : flightNos) {
-                ops.add("ReserveFlight," + customerId + "," + f);
-            }
-            if (reserveCar) {
-                ops.add("ReserveCar," + customerId + "," + location);
-            }
-            if (reserveRoom) {
-                ops.add("ReserveRoom," + customerId + "," + location);
+        for (Reservation r : reservations) {
+            // 1. Check customer exists, 2. query the price, 3. reserve
+            r.exists = batch.send("CustomerRM", "CustomerExists," + r.customerID);
+            r.price = batch.send(r.item.rmName, r.item.priceCommand + "," + r.name);
+            r.reserved = batch.send(r.item.rmName, r.op());
+        }
+        if (!batch.settle()) {
+            return false;
+        }
+        for (Reservation r : reservations) {
+            String failure = check(r);
+            if (failure != null) {
+                batch.add(cmd, () -> bundle ? "ERROR,BundleFailed -> " + r.op() : failure);
+                return false;
             }
-
-            for (String op : ops) {
-                String resp = handleReservation(tid, op.split(","));
-                if (resp == null || resp.startsWith("ERROR") || resp.startsWith("FAIL")) {
-                    return "ERROR,BundleFailed -> " + op;
+            // 4. Update customer reservations
+            int price = Integer.parseInt(r.price.get().split(",")[1]);
+            r.added = batch.send("CustomerRM", "CustomerReserve," + r.customerID + "," + r.item.keyPrefix + r.name + ",1," + price);
+        }
+        // a customer record that can't be updated fails the request, and tid's abort undoes the reservation
+        batch.add(cmd, () -> {
+            for (Reservation r : reservations) {
+                if (!"OK".equals(r.added.get())) {
+                    return bundle ? "ERROR,BundleFailed -> " + r.op() : "FAIL,CouldNotUpdateCustomer";
                 }
             }
-            return "OK,BundleSuccess";
+            return bundle ? "OK,BundleSuccess" : reservations.get(0).item.noun + " reserved";
+        });
+        return true;
+    }
 
-        } catch (Exception e) {
-            return "ERROR,InvalidBundleFormat," + e.getMessage();
+    // why the first round of r failed, or null
+    private static String check(Reservation r) {
+        if (!"OK".equals(r.exists.get())) return "FAIL,CustomerDoesNotExist";
+        if (!r.price.get().startsWith("OK")) return "FAIL," + r.item.noun + "NotFound";
+        try {
+            Integer.parseInt(r.price.get().split(",")[1]);
+        } catch (RuntimeException e) {
+            return "FAIL,Exception:" + e.getMessage();
+        }
+        if (!"OK".equals(r.reserved.get())) return "FAIL," + r.item.noun + "NotReserved";
+        return null;
+    }
+
+    // Bundle, cid, <flightnum...>, location, T/F(car), T/F(room)
+    private static List<Reservation> parseBundle(String[] parts) {
+        int customerId = Integer.parseInt(parts[1]);
+        String location = parts[parts.length - 3];
+        boolean reserveCar = Boolean.parseBoolean(parts[parts.length - 2]);
+        boolean reserveRoom = Boolean.parseBoolean(parts[parts.length - 1]);
+
+        List<Reservation> reservations = new ArrayList<>();
+        //  parts[2] to parts[length-4]
+        for (int i = 2; i < parts.length - 3; i++) {
+            reservations.add(new Reservation(Item.FLIGHT, customerId, parts[i]));
+        }
+        if (reserveCar) {
+            reservations.add(new Reservation(Item.CAR, customerId, location));
+        }
+        if (reserveRoom) {
+            reservations.add(new Reservation(Item.ROOM, customerId, location));
         }
+        return reservations;
     }
 
 }
@@ -0,0 +1,96 @@
+package Server.Test;
+
+import Server.Common.Middleware;
+import Server.RMI.RMICarServer;
+import Server.RMI.RMICustomerServer;
+import Server.RMI.RMIFlightServer;
+import Server.RMI.RMIRoomServer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ConcurrentReservationTest
+ *
+ * Customers buying seats on one flight at once, through the middleware the way a client does:
+ * Middleware.reserveFlight checks the customer, queries the price and reserves, then the
+ * transaction commits. Every buyer must hold its reservation while the others take theirs, so
+ * none of them waits for another's commit; then every commit must go through, with each seat
+ * taken once.
+ *
+ * Exits with status 1 on a failed check.
+ *
+ * Usage: java Server.Test.ConcurrentReservationTest [buyers]
+ */
+public class ConcurrentReservationTest {
+
+    private static final int SEATS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int buyers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        System.setProperty("rm.log", "false");
+        System.setProperty("tm.log", "false");
+        System.setProperty("tm.resolveSeconds", "0");
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Middleware middleware = new Middleware(new RMIFlightServer("Flights"), new RMICarServer("Cars"),
+                new RMIRoomServer("Rooms"), new RMICustomerServer("Customers"));
+        int setup = middleware.startTransaction();
+        middleware.addFlight(setup, "F1", SEATS, 100);
+        for (int c = 1; c <= buyers; c++) {
+            middleware.newCustomerID(setup, c);
+        }
+        check(middleware.commitTransaction(setup), "the flight and customers are added");
+
+        // all reserve, all wait until every one holds its seat, then all commit
+        CyclicBarrier reserved = new CyclicBarrier(buyers);
+        AtomicInteger committed = new AtomicInteger();
+        Thread[] threads = new Thread[buyers];
+        for (int c = 1; c <= buyers; c++) {
+            int customer = c;
+            threads[c - 1] = new Thread(() -> {
+                try {
+                    int tid = middleware.startTransaction();
+                    if (!middleware.reserveFlight(tid, customer, "F1")) {
+                        fail("customer " + customer + " couldn't reserve while the others held theirs");
+                    }
+                    reserved.await(10, TimeUnit.SECONDS);
+                    if (middleware.commitTransaction(tid)) {
+                        committed.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    fail("customer " + customer + ": " + e);
+                }
+            });
+            threads[c - 1].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        check(committed.get() == buyers, committed.get() + " of " + buyers + " reservations committed");
+
+        int tid = middleware.startTransaction();
+        int seats = middleware.queryFlight(tid, "F1");
+        middleware.commitTransaction(tid);
+        check(seats == SEATS - buyers, (SEATS - seats) + " seats taken by " + buyers + " buyers");
+
+        System.setOut(console);
+        System.out.println("ConcurrentReservationTest: OK");
+        System.exit(0);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            fail(what);
+        }
+    }
+
+    private static void fail(String what) {
+        System.err.println("ConcurrentReservationTest: FAILED: " + what);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,124 @@
+package Server.Test;
+
+import Server.Interface.IResourceManager.Vote;
+import Server.RMI.RMIFlightServer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * EscrowRecoveryTest
+ *
+ * A prepared escrow reservation commits while a fuzzy checkpoint is taken, and the RM crashes
+ * right after the checkpoint: on restart the transaction is in doubt again, the TM re-sends its
+ * commit, and the seat must be taken once. The commit is held where it takes the log gate, the
+ * way a checkpoint picking its start holds it, and the checkpoint is taken there; the files on
+ * disk at that point, the checkpoint and the log segment it rolled to, are what the restarted RM
+ * recovers from. Also checks that nobody reads the
+ * commit before its record is durable.
+ *
+ * Exits with status 1 on a failed check.
+ *
+ * Usage: java Server.Test.EscrowRecoveryTest
+ */
+public class EscrowRecoveryTest {
+
+    private static final String NAME = "Flights";
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("escrow-recovery");
+        System.setProperty("rm.logdir", dir.toString());
+        System.setProperty("rm.checkpoint.seconds", "0"); // checkpoint when the test says so
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        GatedFlights rm = new GatedFlights();
+        rm.addFlight(1, "F1", 10, 100);
+        rm.commit(1);
+        check(rm.reserveFlight(2, 1, "F1"), "reserve a seat");
+        check(rm.prepare(2) == Vote.YES, "prepare votes yes");
+
+        rm.gate().writeLock().lock();
+        Thread committer = new Thread(() -> {
+            try {
+                rm.commit(2);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        committer.start();
+        while (!rm.gate().hasQueuedThreads()) {
+            Thread.sleep(1);
+        }
+        check(seats(rm, 3) == 10, "the commit is not readable before its record is durable");
+        rm.checkpoint();
+        check(!Files.exists(dir.resolve(NAME + ".log")), "the log before the checkpoint is deleted");
+        Path crash = Files.createDirectory(dir.resolve("crash"));
+        copyFiles(dir, crash);
+        rm.gate().writeLock().unlock();
+        committer.join();
+        check(seats(rm, 4) == 9, "the commit took one seat");
+        rm.closeLog();
+
+        for (Path file : rmFiles(dir)) {
+            Files.delete(file);
+        }
+        copyFiles(crash, dir);
+        GatedFlights restarted = new GatedFlights();
+        check(Arrays.equals(restarted.getInDoubt(), new int[]{2}), "T2 is in doubt after the restart");
+        restarted.commit(2); // re-sent by the TM
+        int seats = seats(restarted, 5);
+        check(seats == 9, "the re-sent commit took the seat once, " + seats + " left of 10");
+        restarted.closeLog();
+
+        System.setOut(console);
+        System.out.println("EscrowRecoveryTest: OK");
+        System.exit(0);
+    }
+
+    // the RM's log segments and checkpoint in dir
+    private static List<Path> rmFiles(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().startsWith(NAME + ".")).collect(Collectors.toList());
+        }
+    }
+
+    private static void copyFiles(Path from, Path to) throws IOException {
+        for (Path file : rmFiles(from)) {
+            Files.copy(file, to.resolve(file.getFileName()));
+        }
+    }
+
+    // free seats on F1, read by tid
+    private static int seats(GatedFlights rm, int tid) throws Exception {
+        int seats = rm.queryFlight(tid, "F1");
+        rm.commit(tid);
+        return seats;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.err.println("EscrowRecoveryTest: FAILED: " + what);
+            System.exit(1);
+        }
+    }
+
+    // a flight RM whose log gate the test can hold
+    private static final class GatedFlights extends RMIFlightServer {
+        GatedFlights() {
+            super(NAME);
+        }
+
+        ReentrantReadWriteLock gate() {
+            return logGate;
+        }
+    }
+}
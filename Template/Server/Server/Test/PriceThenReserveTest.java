@@ -0,0 +1,70 @@
+package Server.Test;
+
+import Server.RMI.RMIFlightServer;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * PriceThenReserveTest
+ *
+ * The way a client buys a seat: query the price, then reserve. Two transactions do so on one
+ * flight, interleaved, at a flight RM: each reads the price from its snapshot, and its reserve
+ * then locks what it read. Both reserves must go through at once, sharing the flight in escrow,
+ * and both commits must take their seat. A transaction whose price changed between its query
+ * and its reserve must still be refused.
+ *
+ * Exits with status 1 on a failed check.
+ *
+ * Usage: java Server.Test.PriceThenReserveTest
+ */
+public class PriceThenReserveTest {
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("rm.log", "false");
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        RMIFlightServer rm = new RMIFlightServer("Flights");
+        rm.addFlight(1, "F1", 10, 100);
+        check(rm.commitOnePhase(1), "the flight is added");
+
+        check(rm.queryFlightPrice(2, "F1") == 100, "T2 reads the price");
+        check(rm.queryFlightPrice(3, "F1") == 100, "T3 reads the price");
+        long start = System.nanoTime();
+        check(reserve(rm, 2), "T2 reserves a seat");
+        check(reserve(rm, 3), "T3 reserves a seat while T2 holds one");
+        long millis = (System.nanoTime() - start) / 1000000;
+        check(millis < 500, "the reserves didn't wait for each other, took " + millis + " ms");
+        check(rm.commitOnePhase(2), "T2 commits");
+        check(rm.commitOnePhase(3), "T3 commits");
+        int seats = rm.queryFlight(4, "F1");
+        rm.commit(4);
+        check(seats == 8, "both seats are taken, " + seats + " left of 10");
+
+        check(rm.queryFlightPrice(5, "F1") == 100, "T5 reads the price");
+        rm.addFlight(6, "F1", 0, 150);
+        check(rm.commitOnePhase(6), "the price goes up");
+        check(!reserve(rm, 5), "T5 can't reserve at the price it read");
+
+        System.setOut(console);
+        System.out.println("PriceThenReserveTest: OK");
+        System.exit(0);
+    }
+
+    // false if the reserve was refused, or failed to lock
+    private static boolean reserve(RMIFlightServer rm, int tid) {
+        try {
+            return rm.reserveFlight(tid, tid, "F1");
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.err.println("PriceThenReserveTest: FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}